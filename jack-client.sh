@@ -0,0 +1,57 @@
+#!/bin/bash
+# Sends a compile to a running compile server (java def.compiler.JackCompiler --server)
+# without starting a JVM.  Usage: jack-client.sh [-t|-p|-e|-c] [-j] [-i] [-O|--optimization-name] [--port=N] path
+# Sends the token the server wrote to ~/.jack-server-PORT.token.  Exits 1 if the compile failed.
+
+mode=COMPILE parallel=false incremental=false optimizations= port=7077 path=
+safe_optimizations=fold-constants,reduce-strength,peephole,eliminate-dead-code,order-operands,layout-branches
+all_optimizations=$safe_optimizations,pool-strings,precedence,short-circuit
+
+for arg in "$@"; do
+    case "$arg" in
+        -t|--tokenize) mode=TOKENIZE ;;
+        -p|--parse) mode=PARSE ;;
+        -e|--extended-parse) mode=EXTENDED_PARSE ;;
+        -c|--compile) mode=COMPILE ;;
+        -j|--parallel) parallel=true ;;
+        -i|--incremental) incremental=true ;;
+        -O|--optimize) optimizations="${optimizations:+$optimizations,}$safe_optimizations" ;;
+        --port=*) port="${arg#--port=}" ;;
+        --*)
+            case ",$all_optimizations," in
+                *",${arg#--},"*) optimizations="${optimizations:+$optimizations,}${arg#--}" ;;
+                *) echo "invalid tag $arg"; exit 2 ;;
+            esac ;;
+        -*) echo "invalid tag $arg"; exit 2 ;;
+        *) path="$arg" ;;
+    esac
+done
+
+if [ -z "$path" ]; then
+    echo "usage: $0 [-t|-p|-e|-c] [-j] [-i] [-O|--optimization-name] [--port=N] path"
+    exit 2
+fi
+case "$path" in
+    /*) ;;
+    *) path="$PWD/$path" ;;
+esac
+
+token_file="$HOME/.jack-server-$port.token"
+if [ ! -r "$token_file" ]; then
+    echo "No compile server token in $token_file"
+    exit 1
+fi
+read -r token < "$token_file"
+
+exec 3<>"/dev/tcp/127.0.0.1/$port" || exit 1
+echo "$token $mode $parallel $incremental ${optimizations:--} $path" >&3
+
+while IFS= read -r line <&3; do
+    case "$line" in
+        "#done "*) exit "${line#\#done }" ;;
+        *) echo "$line" ;;
+    esac
+done
+
+echo "The compile server closed the connection before finishing"
+exit 1
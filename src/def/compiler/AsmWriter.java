@@ -0,0 +1,462 @@
+package def.compiler;
+
+import def.compiler.VMCommand.Type;
+import def.compiler.VMWriter.Command;
+import def.compiler.VMWriter.Segment;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates the {@link VMCommand}s of a whole program straight into Hack assembly, without a separate VM translator.
+ * The assembly is written as text, or given to a {@link HackAssembler} to be assembled in memory.
+ * <p>
+ * The code keeps the top of the stack in the D register whenever it can: a push leaves its value in D instead of
+ * writing it to the stack, and the next command uses it from there.  The stack in memory is only brought up to date
+ * at labels, jumps, and calls, so every label is reached with the whole stack in memory.  Comparisons followed by an
+ * if-goto jump on the difference directly.  gt and lt go through shared code that only subtracts operands of the same
+ * sign, so they are right when the difference would overflow, as in the interpreter.
+ * <p>
+ * Calls and returns share one copy of the code that builds and tears down a frame, so each call is 8 to 12
+ * instructions and each return 2, and the return value comes back in D.  The bootstrap sets up the stack and calls
+ * Sys.init.  RAM[13] to RAM[15] are used by the shared code and the pops to far indexes.
+ * <p>
+ * A VM label is written as {@code function$label}.  VM labels can not have a $ in them, so the labels made up here
+ * are {@code function$$name}, and those of the shared code start with $.
+ */
+public class AsmWriter {
+    // the pops and pushes to indexes up to these walk the address up one at a time instead of adding the index
+    private static final int MAX_POP_WALK = 8;
+    private static final int MAX_PUSH_WALK = 2;
+    // calls with up to this many arguments have their own entry to the shared call code
+    private static final int MAX_CALL_ENTRY_ARGUMENTS = 3;
+
+    // one of these is set, to write the assembly as text or to assemble it in memory
+    private final PrintWriter writer;
+    private final HackAssembler assembler;
+    private String className;
+    private String function;
+    // true if the value on top of the stack is in D instead of memory
+    private boolean cached;
+    private int labelCount;
+    private int instructionCount;
+
+    /**
+     * Creates a new file and prepares it for writing.
+     * @param outputFile The file to output to.
+     */
+    public AsmWriter(File outputFile) throws FileNotFoundException {
+        this(new PrintWriter(outputFile));
+    }
+
+    public AsmWriter(PrintWriter writer) {
+        this.writer = writer;
+        assembler = null;
+    }
+
+    /**
+     * Prepares to give the instructions straight to an assembler, without writing them as text.
+     * @param assembler The assembler to give each instruction and label to.
+     */
+    public AsmWriter(HackAssembler assembler) {
+        writer = null;
+        this.assembler = assembler;
+    }
+
+    /**
+     * Writes the bootstrap, the shared call, return, and compare code, and every class of a program.
+     * @param program A whole program, which has to define Sys.init and every function it calls.
+     */
+    public void writeProgram(VMProgram program) {
+        checkProgram(program);
+        writeBootstrap();
+        writeCallCode();
+        writeReturnCode();
+        writeCompareCode();
+        for (String className : program.classNames()) {
+            writeClass(className, program.commandsOf(className));
+        }
+    }
+
+    /**
+     * Checks that a program can be translated on its own: the assembler would take a call to a function that is not
+     * defined for a variable.
+     * @throws CompilationEngine.CompilationException if the program has no Sys.init, or calls a function that is
+     *         not defined.
+     */
+    public static void checkProgram(VMProgram program) {
+        Map<String, List<VMCommand>> functions = program.functions();
+        if (!functions.containsKey("Sys.init")) {
+            throw new CompilationEngine.CompilationException("The program has no Sys.init to start from");
+        }
+        for (List<VMCommand> commands : functions.values()) {
+            for (VMCommand command : commands) {
+                if (command.type == Type.CALL && !functions.containsKey(command.name)) {
+                    throw new CompilationEngine.CompilationException(
+                            command.name + " is called but not defined, the OS may be missing");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of instructions written so far, which is the size of the ROM image.
+     */
+    public int instructionCount() {
+        return instructionCount;
+    }
+
+    public void close() {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    private void writeBootstrap() {
+        writeComment("bootstrap");
+        write("@256", "D=A", "@SP", "M=D");
+        write("@Sys.init", "D=A", "@R13", "M=D", "@$halt", "D=A", "@$call0", "0;JMP");
+        writeLabel("$halt");
+        write("@$halt", "0;JMP");
+    }
+
+    // jumps to R13 with a new frame, entered with the return address in D and the argument count in R14, or at
+    // $callN for N arguments
+    private void writeCallCode() {
+        writeComment("call");
+        for (int arguments = 0; arguments <= MAX_CALL_ENTRY_ARGUMENTS; arguments++) {
+            writeLabel("$call" + arguments);
+            write("@R15", "M=D", "@" + (arguments + 5), "D=A", "@R14", "M=D", "@R15", "D=M");
+            if (arguments < MAX_CALL_ENTRY_ARGUMENTS) {
+                write("@$call", "0;JMP");
+            }
+        }
+        writeLabel("$call");
+        write("@SP", "AM=M+1", "A=A-1", "M=D");
+        for (String pointer : new String[] {"LCL", "ARG", "THIS", "THAT"}) {
+            write("@" + pointer, "D=M", "@SP", "AM=M+1", "A=A-1", "M=D");
+        }
+        write("@R14", "D=M", "@SP", "D=M-D", "@ARG", "M=D");
+        write("@SP", "D=M", "@LCL", "M=D");
+        write("@R13", "A=M", "0;JMP");
+    }
+
+    // returns from the current frame, entered with the return value in D, and leaves it in D
+    private void writeReturnCode() {
+        writeComment("return");
+        writeLabel("$return");
+        write("@R13", "M=D");
+        write("@LCL", "D=M", "@R14", "M=D");
+        write("@5", "A=D-A", "D=M", "@R15", "M=D");
+        write("@ARG", "D=M", "@SP", "M=D");
+        for (String pointer : new String[] {"THAT", "THIS", "ARG", "LCL"}) {
+            write("@R14", "AM=M-1", "D=M", "@" + pointer, "M=D");
+        }
+        write("@R13", "D=M", "@R15", "A=M", "0;JMP");
+    }
+
+    // pops x and leaves in D a value with the sign of x - y, entered with y in R13 and the return address in D; when
+    // the signs differ x - y may overflow, but x > y exactly when x is not negative
+    private void writeCompareCode() {
+        writeComment("compare");
+        writeLabel("$compare");
+        write("@R14", "M=D", "@SP", "AM=M-1", "D=M", "@$compare$negative", "D;JLT");
+        write("@R13", "D=M", "@$compare$same", "D;JGE", "D=1", "@R14", "A=M", "0;JMP");
+        writeLabel("$compare$negative");
+        write("@R13", "D=M", "@$compare$same", "D;JLT", "@SP", "A=M", "D=M", "@R14", "A=M", "0;JMP");
+        writeLabel("$compare$same");
+        write("@SP", "A=M", "D=M", "@R13", "D=D-M", "@R14", "A=M", "0;JMP");
+    }
+
+    private void writeClass(String className, List<VMCommand> commands) {
+        this.className = className;
+        function = className;
+        cached = false;
+        for (int i = 0; i < commands.size(); i++) {
+            i += writeCommand(commands, i);
+        }
+        flush();
+    }
+
+    /**
+     * @return the number of commands after commands[index] that were written along with it.
+     */
+    private int writeCommand(List<VMCommand> commands, int index) {
+        VMCommand command = commands.get(index);
+        switch (command.type) {
+            case PUSH:
+                writePush(command.segment, command.number);
+                return 0;
+            case POP:
+                writePop(command.segment, command.number);
+                return 0;
+            case ARITHMETIC:
+                return writeArithmetic(commands, index);
+            case LABEL:
+                flush();
+                writeLabel(function + "$" + command.name);
+                return 0;
+            case GOTO:
+                flush();
+                write("@" + function + "$" + command.name, "0;JMP");
+                return 0;
+            case IF_GOTO:
+                load();
+                write("@" + function + "$" + command.name, "D;JNE");
+                cached = false;
+                return 0;
+            case CALL:
+                writeCall(command.name, command.number);
+                return 0;
+            case FUNCTION:
+                writeFunction(command.name, command.number);
+                return 0;
+            case RETURN:
+                load();
+                write("@$return", "0;JMP");
+                cached = false;
+                return 0;
+            default:
+                throw new IllegalArgumentException("Unknown command " + command);
+        }
+    }
+
+    private void writePush(Segment segment, int index) {
+        flush();
+        switch (segment) {
+            case CONSTANT:
+                if (index <= 1) {
+                    write("D=" + index);
+                } else {
+                    write("@" + index, "D=A");
+                }
+                break;
+            case LOCAL:
+            case ARGUMENT:
+            case THIS:
+            case THAT:
+                if (index <= MAX_PUSH_WALK) {
+                    write("@" + baseOf(segment), "A=M");
+                    for (int i = 0; i < index; i++) {
+                        write("A=A+1");
+                    }
+                } else {
+                    write("@" + baseOf(segment), "D=M", "@" + index, "A=D+A");
+                }
+                write("D=M");
+                break;
+            default:
+                write("@" + addressOf(segment, index), "D=M");
+                break;
+        }
+        cached = true;
+    }
+
+    private void writePop(Segment segment, int index) {
+        load();
+        switch (segment) {
+            case LOCAL:
+            case ARGUMENT:
+            case THIS:
+            case THAT:
+                if (index <= MAX_POP_WALK) {
+                    write("@" + baseOf(segment), "A=M");
+                    for (int i = 0; i < index; i++) {
+                        write("A=A+1");
+                    }
+                    write("M=D");
+                } else {
+                    write("@R13", "M=D", "@" + baseOf(segment), "D=M", "@" + index, "D=D+A", "@R14", "M=D");
+                    write("@R13", "D=M", "@R14", "A=M", "M=D");
+                }
+                break;
+            case CONSTANT:
+                throw new IllegalArgumentException("Can not pop to constant");
+            default:
+                write("@" + addressOf(segment, index), "M=D");
+                break;
+        }
+        cached = false;
+    }
+
+    /**
+     * @return the number of commands after commands[index] that were written along with it.
+     */
+    private int writeArithmetic(List<VMCommand> commands, int index) {
+        Command command = commands.get(index).command;
+        load();
+        switch (command) {
+            case NEG:
+                write("D=-D");
+                return 0;
+            case NOT:
+                VMCommand next = index + 1 < commands.size() ? commands.get(index + 1) : null;
+                if (next != null && next.type == Type.IF_GOTO) {
+                    // jumps unless the value is -1
+                    write("D=D+1", "@" + function + "$" + next.name, "D;JNE");
+                    cached = false;
+                    return 1;
+                }
+                write("D=!D");
+                return 0;
+            case ADD:
+                write("@SP", "AM=M-1", "D=D+M");
+                return 0;
+            case SUB:
+                write("@SP", "AM=M-1", "D=M-D");
+                return 0;
+            case AND:
+                write("@SP", "AM=M-1", "D=D&M");
+                return 0;
+            case OR:
+                write("@SP", "AM=M-1", "D=D|M");
+                return 0;
+            default:
+                return writeComparison(commands, index);
+        }
+    }
+
+    // x - y is in D for eq, and a value with its sign for gt and lt
+    private int writeComparison(List<VMCommand> commands, int index) {
+        Command command = commands.get(index).command;
+        String jump = command == Command.EQ ? "JEQ" : command == Command.GT ? "JGT" : "JLT";
+        if (command == Command.EQ) {
+            write("@SP", "AM=M-1", "D=M-D");
+        } else {
+            String returnAddress = function + "$$compare" + labelCount;
+            labelCount++;
+            write("@R13", "M=D", "@" + returnAddress, "D=A", "@$compare", "0;JMP");
+            writeLabel(returnAddress);
+        }
+
+        VMCommand next = index + 1 < commands.size() ? commands.get(index + 1) : null;
+        VMCommand afterNext = index + 2 < commands.size() ? commands.get(index + 2) : null;
+        if (next != null && next.type == Type.IF_GOTO) {
+            write("@" + function + "$" + next.name, "D;" + jump);
+            cached = false;
+            return 1;
+        } else if (next != null && next.is(Command.NOT) && afterNext != null && afterNext.type == Type.IF_GOTO) {
+            write("@" + function + "$" + afterNext.name, "D;" + opposite(jump));
+            cached = false;
+            return 2;
+        }
+
+        String isTrue = "$$true" + labelCount, end = "$$end" + labelCount;
+        labelCount++;
+        write("@" + function + isTrue, "D;" + jump, "D=0", "@" + function + end, "0;JMP");
+        writeLabel(function + isTrue);
+        write("D=-1");
+        writeLabel(function + end);
+        return 0;
+    }
+
+    private void writeCall(String name, int arguments) {
+        flush();
+        String returnAddress = function + "$$return" + labelCount;
+        labelCount++;
+        write("@" + name, "D=A", "@R13", "M=D");
+        if (arguments <= MAX_CALL_ENTRY_ARGUMENTS) {
+            write("@" + returnAddress, "D=A", "@$call" + arguments, "0;JMP");
+        } else {
+            write("@" + (arguments + 5), "D=A", "@R14", "M=D", "@" + returnAddress, "D=A", "@$call", "0;JMP");
+        }
+        writeLabel(returnAddress);
+        cached = true;
+    }
+
+    private void writeFunction(String name, int locals) {
+        flush();
+        function = name;
+        labelCount = 0;
+        writeLabel(name);
+        if (locals > 0) {
+            write("@SP", "A=M", "M=0");
+            for (int i = 1; i < locals; i++) {
+                write("A=A+1", "M=0");
+            }
+            write("D=A+1", "@SP", "M=D");
+        }
+        cached = false;
+    }
+
+    // puts the value on top of the stack in D, and takes it off the stack in memory
+    private void load() {
+        if (!cached) {
+            write("@SP", "AM=M-1", "D=M");
+            cached = true;
+        }
+    }
+
+    // puts the value in D back on top of the stack in memory
+    private void flush() {
+        if (cached) {
+            write("@SP", "AM=M+1", "A=A-1", "M=D");
+            cached = false;
+        }
+    }
+
+    private String addressOf(Segment segment, int index) {
+        switch (segment) {
+            case STATIC:
+                return className + "." + index;
+            case POINTER:
+                return String.valueOf(3 + index);
+            case TEMP:
+                return String.valueOf(5 + index);
+            default:
+                throw new IllegalArgumentException("No fixed address for " + segment);
+        }
+    }
+
+    private static String baseOf(Segment segment) {
+        switch (segment) {
+            case LOCAL:
+                return "LCL";
+            case ARGUMENT:
+                return "ARG";
+            case THIS:
+                return "THIS";
+            default:
+                return "THAT";
+        }
+    }
+
+    private static String opposite(String jump) {
+        switch (jump) {
+            case "JEQ":
+                return "JNE";
+            case "JGT":
+                return "JLE";
+            default:
+                return "JGE";
+        }
+    }
+
+    private void writeComment(String comment) {
+        if (writer != null) {
+            writer.println("// " + comment);
+        }
+    }
+
+    private void writeLabel(String label) {
+        if (writer != null) {
+            writer.println("(" + label + ")");
+        } else {
+            assembler.label(label);
+        }
+    }
+
+    private void write(String... instructions) {
+        for (String instruction : instructions) {
+            if (writer != null) {
+                writer.println(instruction);
+            } else {
+                assembler.instruction(instruction);
+            }
+            instructionCount++;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package def.compiler;
+
+import def.compiler.VMWriter.Command;
+import def.compiler.VMWriter.Segment;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class AsmWriterTest {
+    @Test
+    public void runOnTheHackCpu() throws Exception {
+        VMProgram program = new VMProgram();
+        program.addClass("Sys", Arrays.asList(VMCommand.function("Sys.init", 0), VMCommand.push(Segment.CONSTANT, 5),
+                VMCommand.call("Main.triangle", 1), VMCommand.pop(Segment.TEMP, 0), VMCommand.push(Segment.CONSTANT, 3000),
+                VMCommand.pop(Segment.POINTER, 1), VMCommand.push(Segment.CONSTANT, 7), VMCommand.call("Main.count", 1),
+                VMCommand.pop(Segment.THAT, 12), VMCommand.push(Segment.CONSTANT, 3), VMCommand.push(Segment.CONSTANT, 3),
+                VMCommand.arithmetic(Command.EQ), VMCommand.pop(Segment.THAT, 0),
+                // -20000 < 20000 and 20000 > -20000, though the differences overflow, unfused and before if-goto
+                VMCommand.push(Segment.CONSTANT, 20000), VMCommand.arithmetic(Command.NEG),
+                VMCommand.push(Segment.CONSTANT, 20000), VMCommand.arithmetic(Command.LT), VMCommand.pop(Segment.THAT, 1),
+                VMCommand.push(Segment.CONSTANT, 20000), VMCommand.push(Segment.CONSTANT, 20000),
+                VMCommand.arithmetic(Command.NEG), VMCommand.arithmetic(Command.LT), VMCommand.pop(Segment.THAT, 2),
+                VMCommand.push(Segment.CONSTANT, 20000), VMCommand.arithmetic(Command.NEG),
+                VMCommand.push(Segment.CONSTANT, 20000), VMCommand.arithmetic(Command.GT), VMCommand.ifGoTo("wrong"),
+                VMCommand.push(Segment.CONSTANT, 20000), VMCommand.push(Segment.CONSTANT, 20000),
+                VMCommand.arithmetic(Command.NEG), VMCommand.arithmetic(Command.GT), VMCommand.arithmetic(Command.NOT),
+                VMCommand.ifGoTo("wrong"), VMCommand.push(Segment.CONSTANT, 20000), VMCommand.arithmetic(Command.NEG),
+                VMCommand.push(Segment.CONSTANT, 20000), VMCommand.arithmetic(Command.LT), VMCommand.ifGoTo("right"),
+                VMCommand.label("wrong"), VMCommand.push(Segment.CONSTANT, 1), VMCommand.pop(Segment.THAT, 3),
+                VMCommand.label("right"), VMCommand.push(Segment.CONSTANT, 0), VMCommand.returnCommand()));
+        program.addClass("Main", Arrays.asList(
+                // function int triangle(int n) { if (n < 2) { return n; } return n + Main.triangle(n - 1); }
+                VMCommand.function("Main.triangle", 0), VMCommand.push(Segment.ARGUMENT, 0),
+                VMCommand.push(Segment.CONSTANT, 2), VMCommand.arithmetic(Command.LT), VMCommand.ifGoTo("small"),
+                VMCommand.push(Segment.ARGUMENT, 0), VMCommand.push(Segment.ARGUMENT, 0),
+                VMCommand.push(Segment.CONSTANT, 1), VMCommand.arithmetic(Command.SUB),
+                VMCommand.call("Main.triangle", 1), VMCommand.arithmetic(Command.ADD), VMCommand.returnCommand(),
+                VMCommand.label("small"), VMCommand.push(Segment.ARGUMENT, 0), VMCommand.returnCommand(),
+                // the same sum with a loop, counting down in local 9, then two not; if-goto that must and must not jump
+                VMCommand.function("Main.count", 10), VMCommand.push(Segment.ARGUMENT, 0), VMCommand.pop(Segment.LOCAL, 9),
+                VMCommand.label("loop"), VMCommand.push(Segment.LOCAL, 9), VMCommand.push(Segment.CONSTANT, 0),
+                VMCommand.arithmetic(Command.GT), VMCommand.arithmetic(Command.NOT), VMCommand.ifGoTo("end"),
+                VMCommand.push(Segment.LOCAL, 0), VMCommand.push(Segment.LOCAL, 9), VMCommand.arithmetic(Command.ADD),
+                VMCommand.pop(Segment.LOCAL, 0), VMCommand.push(Segment.LOCAL, 9), VMCommand.push(Segment.CONSTANT, 1),
+                VMCommand.arithmetic(Command.SUB), VMCommand.pop(Segment.LOCAL, 9), VMCommand.goTo("loop"),
+                VMCommand.label("end"), VMCommand.push(Segment.LOCAL, 8), VMCommand.arithmetic(Command.NOT),
+                VMCommand.ifGoTo("jumped"), VMCommand.push(Segment.CONSTANT, 99), VMCommand.pop(Segment.LOCAL, 0),
+                VMCommand.label("jumped"), VMCommand.push(Segment.CONSTANT, 0), VMCommand.arithmetic(Command.NOT),
+                VMCommand.arithmetic(Command.NOT), VMCommand.ifGoTo("wrong"), VMCommand.push(Segment.LOCAL, 0),
+                VMCommand.returnCommand(), VMCommand.label("wrong"), VMCommand.push(Segment.CONSTANT, 98),
+                VMCommand.returnCommand()));
+
+        HackAssembler assembler = new HackAssembler();
+        new AsmWriter(assembler).writeProgram(program);
+        short[] ram = new short[32768];
+        run(assembler.assemble(), ram, 100000);
+
+        // the bootstrap's call of Sys.init returned, leaving the stack empty
+        assertEquals(256, ram[0]);
+        assertEquals(15, ram[5]);
+        assertEquals(28, ram[3012]);
+        assertEquals(-1, ram[3000]);
+        assertEquals(-1, ram[3001]);
+        assertEquals(0, ram[3002]);
+        assertEquals(0, ram[3003]);
+    }
+
+    // runs a ROM image on the Hack CPU until it reaches the @N; 0;JMP loop at N that halts, or runs out of cycles
+    private static void run(short[] rom, short[] ram, int maxCycles) {
+        int pc = 0, a = 0, d = 0;
+        for (int cycle = 0; cycle < maxCycles; cycle++) {
+            int instruction = rom[pc];
+            if ((instruction & 0x8000) == 0) {
+                a = instruction;
+                pc++;
+                continue;
+            }
+
+            // the ALU: zx, nx, zy, ny, f, and no, with y from M if the a bit is set
+            int x = d, y = (instruction & 0x1000) != 0 ? ram[a & 0x7FFF] : a;
+            if ((instruction & 0x0800) != 0) {
+                x = 0;
+            }
+            if ((instruction & 0x0400) != 0) {
+                x = ~x;
+            }
+            if ((instruction & 0x0200) != 0) {
+                y = 0;
+            }
+            if ((instruction & 0x0100) != 0) {
+                y = ~y;
+            }
+            int out = (instruction & 0x0080) != 0 ? x + y : x & y;
+            if ((instruction & 0x0040) != 0) {
+                out = ~out;
+            }
+            out = (short) out;
+
+            // M and the jump use A from before the instruction
+            int address = a & 0xFFFF;
+            if ((instruction & 0x0008) != 0) {
+                ram[address & 0x7FFF] = (short) out;
+            }
+            if ((instruction & 0x0020) != 0) {
+                a = out;
+            }
+            if ((instruction & 0x0010) != 0) {
+                d = out;
+            }
+            boolean jump = out < 0 && (instruction & 0x0004) != 0 || out == 0 && (instruction & 0x0002) != 0
+                    || out > 0 && (instruction & 0x0001) != 0;
+            if (jump && address == pc - 1 && rom[pc - 1] == pc - 1) {
+                return;
+            }
+            pc = jump ? address : pc + 1;
+        }
+        throw new AssertionError("The program did not halt in " + maxCycles + " cycles");
+    }
+}
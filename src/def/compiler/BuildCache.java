@@ -0,0 +1,94 @@
+package def.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An on-disk cache of compiler outputs, keyed by a hash of the source file contents,
+ * the compiler version, and the compilation settings.  When a source file has not changed
+ * since it was last compiled with the same settings, its output is copied out of the cache
+ * instead of compiling it again.
+ * <p>
+ * Each entry is one file in the cache directory, named by its key.  Entries are written to a
+ * temporary file first and then moved into place, so several compilers can share a cache.
+ * Nothing is ever removed from the cache; delete the directory to clear it.
+ */
+public class BuildCache {
+    public static final String DEFAULT_DIRECTORY_NAME = ".jackcache";
+
+    private final File cacheDirectory;
+
+    /**
+     * Opens a cache in the given directory, creating the directory if needed.
+     * @param cacheDirectory The directory the cache entries are kept in.
+     */
+    public BuildCache(File cacheDirectory) throws IOException {
+        this.cacheDirectory = cacheDirectory;
+        Files.createDirectories(cacheDirectory.toPath());
+    }
+
+    /**
+     * Works out the cache key for compiling a source file with the given settings.
+     * @param sourceFile The Jack file to compile.
+     * @param settings A description of everything besides the source that changes the output.
+     * @return The key, as a hex string.
+     */
+    public String key(File sourceFile, String settings) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available!", e);
+        }
+
+        digest.update((JackCompiler.VERSION + "\n" + settings + "\n").getBytes("UTF-8"));
+        byte[] hash = digest.digest(Files.readAllBytes(sourceFile.toPath()));
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : hash) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Copies a cached output to the output file, if there is one.
+     * @param key The key of the output.
+     * @param outputFile Where to copy the output to.
+     * @return true if the output was in the cache, false if it must be compiled.
+     */
+    public boolean restore(String key, File outputFile) throws IOException {
+        File entry = new File(cacheDirectory, key);
+        if (!entry.isFile()) {
+            return false;
+        }
+
+        Files.copy(entry.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Adds a freshly compiled output to the cache.
+     * @param key The key of the output.
+     * @param outputFile The output to keep a copy of.
+     */
+    public void store(String key, File outputFile) throws IOException {
+        Path temporary = Files.createTempFile(cacheDirectory.toPath(), key, ".tmp");
+        try {
+            Files.copy(outputFile.toPath(), temporary, StandardCopyOption.REPLACE_EXISTING);
+            try {
+                Files.move(temporary, new File(cacheDirectory, key).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, new File(cacheDirectory, key).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+}
@@ -1,16 +1,37 @@
 package def.compiler;
 
+import def.compiler.CompilerOptions.Optimization;
 import def.compiler.JackTokenizer.KeyWord;
 import def.compiler.JackTokenizer.TokenType;
 import def.compiler.SymbolTable.Kind;
-import def.compiler.VMWriter.Command;
-import def.compiler.VMWriter.Segment;
+import def.compiler.SyntaxTree.ArrayEntry;
+import def.compiler.SyntaxTree.BinaryOperation;
+import def.compiler.SyntaxTree.ClassDeclaration;
+import def.compiler.SyntaxTree.DoStatement;
+import def.compiler.SyntaxTree.Expression;
+import def.compiler.SyntaxTree.IfStatement;
+import def.compiler.SyntaxTree.IntegerConstant;
+import def.compiler.SyntaxTree.KeywordConstant;
+import def.compiler.SyntaxTree.LetStatement;
+import def.compiler.SyntaxTree.Parentheses;
+import def.compiler.SyntaxTree.ReturnStatement;
+import def.compiler.SyntaxTree.Statement;
+import def.compiler.SyntaxTree.StringConstant;
+import def.compiler.SyntaxTree.SubroutineCall;
+import def.compiler.SyntaxTree.SubroutineDeclaration;
+import def.compiler.SyntaxTree.UnaryOperation;
+import def.compiler.SyntaxTree.Variable;
+import def.compiler.SyntaxTree.VariableDeclaration;
+import def.compiler.SyntaxTree.WhileStatement;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Created by dflor on 7/19/2017.
@@ -36,121 +57,297 @@ import java.util.List;
  * called if indeed xxx is the next syntactic element of the input.  If xxx is a part of an
  * expression and thus has a value, the emitted code should compute this value and
  * leave it at the top of the VM stack.
+ *
+ * Parsing and output are separate phases.  Each compilexxx() routine first parses xxx into a
+ * {@link SyntaxTree}, and then hands the tree to an {@link XMLEmitter} or a {@link VMEmitter}, which
+ * keep the symbol table and write the output.  {@link #parseClass()} only parses, so that one tree can
+ * be given to several emitters, or rewritten before it is emitted.  Most optimizations are {@link TreeRewriter}
+ * passes over the tree, the {@link PeepholeRule}s rewrite the VM code the {@link VMWriter} is given.
  */
 public class CompilationEngine {
 
-    public static boolean outputXML = true;
-    public static boolean extendedXML = false;
+    private final boolean outputXML;
+    private final boolean operatorPrecedence;
+    private final List<TreeRewriter> optimizations;
     private JackTokenizer inputTokenizer;
     private PrintWriter outputWriter;
     private VMWriter vmWriter;
-    private String indentLevel;
-    private SymbolTable symbolTable;
+    private XMLEmitter xmlEmitter;
+    private VMEmitter vmEmitter;
 
-    private String className;
-    private int labelCount;
-    private boolean subroutineIsMethodCall;
+    /**
+     * Creates a new compilation engine with the given input and output, that outputs the parse tree in xml.
+     * The next routine called must be {@link #compileClass()}.
+     *
+     * @param inputTokenizer A Jack Tokenizer constructed on the input file to translate.
+     *                       The constructor will do the first call to {@link JackTokenizer#advance()}
+     * @param outputFile     The file to output the xml code.
+     */
+    public CompilationEngine(JackTokenizer inputTokenizer, File outputFile) throws FileNotFoundException {
+        this(inputTokenizer, outputFile, CompilerOptions.XML);
+    }
 
     /**
      * Creates a new compilation engine with the given input and output.
      * The next routine called must be {@link #compileClass()}.
      *
      * @param inputTokenizer A Jack Tokenizer constructed on the input file to translate.
-     *                       The constructor will do the first call to {@link JackTokenizer#advance()}
+     *                       The constructor will do the first call to {@link JackTokenizer#advance()}.
+     *                       Any comment tokens it returns are skipped.
      * @param outputFile     The file to output the compiled VM/xml code.
+     * @param options        The options for the compilation, which decide what is output.
      */
-    public CompilationEngine(JackTokenizer inputTokenizer, File outputFile) throws FileNotFoundException {
+    public CompilationEngine(JackTokenizer inputTokenizer, File outputFile, CompilerOptions options)
+            throws FileNotFoundException {
+        this(inputTokenizer, options, options.outputXML() ? new PrintWriter(outputFile) : null,
+                options.outputXML() ? null : new VMWriter(outputFile, peepholeRulesOf(options)));
+    }
+
+    /**
+     * Creates a new compilation engine that adds the VM code it compiles to a list, for the passes over a whole
+     * {@link VMProgram}.  The next routine called must be {@link #compileClass()}.
+     *
+     * @param inputTokenizer A Jack Tokenizer constructed on the input file to translate.
+     * @param commands       The list to add the VM commands to.
+     * @param options        The options for the compilation, which must not output xml.
+     */
+    public CompilationEngine(JackTokenizer inputTokenizer, List<VMCommand> commands, CompilerOptions options) {
+        this(inputTokenizer, options, null, new VMWriter(commands, peepholeRulesOf(options)));
+        if (outputXML) {
+            throw new IllegalArgumentException("Only VM code can be compiled into a list");
+        }
+    }
+
+    private CompilationEngine(JackTokenizer inputTokenizer, CompilerOptions options, PrintWriter outputWriter,
+                              VMWriter vmWriter) {
         this.inputTokenizer = inputTokenizer;
-        outputWriter = new PrintWriter(outputFile);
-        vmWriter = new VMWriter(outputFile);
+        this.outputXML = options.outputXML();
+        // the xml always shows expressions as they are written
+        this.operatorPrecedence = !outputXML && options.optimizes(Optimization.OPERATOR_PRECEDENCE);
 
-        JackTokenizer.NO_COMMENTS = true;
+        optimizations = new ArrayList<>();
+        if (options.optimizes(Optimization.FOLD_CONSTANTS)) {
+            optimizations.add(new ConstantFolder());
+        }
+        if (options.optimizes(Optimization.ELIMINATE_DEAD_CODE)) {
+            optimizations.add(new DeadCodeEliminator());
+        }
+        if (options.optimizes(Optimization.ORDER_OPERANDS)) {
+            optimizations.add(new OperandOrderer());
+        }
+
+        if (outputXML) {
+            this.outputWriter = outputWriter;
+            xmlEmitter = new XMLEmitter(outputWriter, options.extendedXML(), inputTokenizer.identifierPool());
+        } else {
+            this.vmWriter = vmWriter;
+            vmEmitter = new VMEmitter(vmWriter, inputTokenizer.identifierPool(), options);
+        }
 
         if (inputTokenizer.hasMoreTokens()) {
-            inputTokenizer.advance();
+            advanceTokenizer();
         } else {
             throw new CompilationException("No tokens in this file!");
         }
+    }
 
-        indentLevel = "";
-        symbolTable = new SymbolTable();
-        labelCount = 0;
-        subroutineIsMethodCall = false;
+    // the peephole rules of the optimizations that are on
+    private static Set<PeepholeRule> peepholeRulesOf(CompilerOptions options) {
+        Set<PeepholeRule> rules = EnumSet.noneOf(PeepholeRule.class);
+        for (PeepholeRule rule : PeepholeRule.values()) {
+            if (options.optimizes(rule.optimization())) {
+                rules.add(rule);
+            }
+        }
+        return rules;
     }
 
     private void advanceTokenizer() {
-        if (inputTokenizer.hasMoreTokens()) {
-            inputTokenizer.advance();
+        do {
+            if (inputTokenizer.hasMoreTokens()) {
+                inputTokenizer.advance();
+            } else {
+                throw new CompilationException("End of file reached while compiling!");
+            }
+        } while (inputTokenizer.tokenType() == TokenType.COMMENT || inputTokenizer.tokenType() == TokenType.BLOCK_COMMENT);
+    }
+
+    /**
+     * Compiles a complete class.  The optimizations of the options are made here, on the whole class,
+     * before its VM code is generated.
+     */
+    public void compileClass() {
+        ClassDeclaration classDeclaration = parseClass();
+
+        if (outputXML) {
+            xmlEmitter.emitClass(classDeclaration);
         } else {
-            throw new CompilationException("End of file reached while compiling!");
+            for (TreeRewriter optimization : optimizations) {
+                classDeclaration = optimization.rewriteClass(classDeclaration);
+            }
+            vmEmitter.emitClass(classDeclaration);
         }
     }
 
-    private void increaseIndent() {
-        indentLevel += "  ";
+    /**
+     * Compiles a static declaration or a field declaration
+     */
+    public void compileClassVariableDeclaration() {
+        VariableDeclaration declaration = parseClassVariableDeclaration();
+
+        if (outputXML) {
+            xmlEmitter.emitClassVariableDeclaration(declaration);
+        } else {
+            vmEmitter.declareVariables(Collections.singletonList(declaration));
+        }
     }
 
-    private void decreaseIndent() {
-        if (indentLevel.length() >= 2)
-            indentLevel = indentLevel.substring(0, indentLevel.length() - 2);
+    /**
+     * Compiles a complete method, function, or constructor.
+     */
+    public void compileSubroutine() {
+        SubroutineDeclaration subroutine = parseSubroutine();
+
+        if (outputXML) {
+            xmlEmitter.emitSubroutine(subroutine);
+        } else {
+            vmEmitter.emitSubroutine(subroutine);
+        }
+    }
+
+    /**
+     * Compiles a (possibly empty) parameter list, not including the enclosing "()".
+     */
+    public void compileParameterList() {
+        List<VariableDeclaration> parameters = parseParameterList();
+
+        if (outputXML) {
+            xmlEmitter.emitParameterList(parameters);
+        } else {
+            vmEmitter.declareVariables(parameters);
+        }
+    }
+
+    /**
+     * Compiles a var declaration.
+     */
+    public void compileVariableDeclaration() {
+        VariableDeclaration declaration = parseVariableDeclaration();
+
+        if (outputXML) {
+            xmlEmitter.emitVariableDeclaration(declaration);
+        } else {
+            vmEmitter.declareVariables(Collections.singletonList(declaration));
+        }
     }
 
-    private void println(String preIndentLine) {
-        outputWriter.println(indentLevel + preIndentLine);
+    /**
+     * Compiles a sequence of statements, not including the enclosing "{}".
+     */
+    public void compileStatements() {
+        List<Statement> statements = parseStatements();
+
+        if (outputXML) {
+            xmlEmitter.emitStatements(statements);
+        } else {
+            vmEmitter.emitStatements(statements);
+        }
     }
 
-    private void printIdentifier(String identifier) {
-        printIdentifier(identifier, "", false, -1, "");
+    /**
+     * Compiles a do statement.
+     */
+    public void compileDo() {
+        compileStatement(parseDo());
     }
 
-    private void printIdentifier(String identifier, String category, boolean isBeingDefined) {
-        printIdentifier(identifier, category, isBeingDefined, -1, "");
+    /**
+     * Compiles a let statement.
+     */
+    public void compileLet() {
+        compileStatement(parseLet());
     }
 
-    private void printIdentifier(String identifier, String category, boolean isBeingDefined, int index, String type) {
-        if (extendedXML) {
-            println("<identifier category=\"" + category + "\" > ");
-            increaseIndent();
-            println(identifier);
-            println(isBeingDefined?"<definition />":"<usage />");
-            if (index != -1) {
-                println("<index> " + index + " </index>");
-            }
-            if (type != null && !type.equals("")) {
-                println("<type> " + type + " </type>");
-            }
-            decreaseIndent();
-            println("</identifier>");
+    /**
+     * Compiles a while statement.
+     */
+    public void compileWhile() {
+        compileStatement(parseWhile());
+    }
+
+    /**
+     * Compiles an if statement, possibly with a trailing else clause.
+     */
+    public void compileIf() {
+        compileStatement(parseIf());
+    }
+
+    /**
+     * Compiles a return statement.
+     */
+    public void compileReturn() {
+        compileStatement(parseReturn());
+    }
+
+    private void compileStatement(Statement statement) {
+        if (outputXML) {
+            xmlEmitter.emitStatement(statement);
         } else {
-            println("<identifier> " + identifier + " </identifier>");
+            vmEmitter.emitStatement(statement);
         }
     }
 
-    private Segment kindToSegment(Kind kind) {
-        Segment segment = null;
-        switch (kind) {
-            case STATIC:
-                segment = Segment.STATIC;
-                break;
-            case FIELD:
-                segment = Segment.THIS;
-                break;
-            case ARG:
-                segment = Segment.ARGUMENT;
-                break;
-            case VAR:
-                segment = Segment.LOCAL;
-                break;
-            default:
-                throw new CompilationException("The given variable does not exist!");
+    /**
+     * Compiles an expression.
+     */
+    public void compileExpression() {
+        Expression expression = parseExpression();
+
+        if (outputXML) {
+            xmlEmitter.emitExpression(expression);
+        } else {
+            vmEmitter.emitExpression(expression);
         }
-        return segment;
     }
 
     /**
-     * Compiles a complete class.
+     * Compiles a term.
+     * This routine is faced with a slight difficulty when trying to decide between some of the alternative parsing rules.
+     * Specifically, if the current token is an identifier, the routine must distinguish between a variable, an array entry, and a subroutine call.
+     * A single lookahead token, which may be one of "[", "(", or "." suffices to distinguish between the three possibilities.
+     * Any other token is not part of this term and should not be advanced over.
      */
-    public void compileClass() {
+    public void compileTerm() {
+        Expression term = parseTerm();
+
+        if (outputXML) {
+            xmlEmitter.emitTerm(term);
+        } else {
+            vmEmitter.emitExpression(term);
+        }
+    }
+
+    /**
+     * Compiles a (possibly empty) comma-separated list of expressions.
+     * @return The number of expressions in the expression list.
+     */
+    public int compileExpressionList() {
+        List<Expression> expressions = parseExpressionList();
+
+        if (outputXML) {
+            xmlEmitter.emitExpressionList(expressions);
+        } else {
+            vmEmitter.emitExpressionList(expressions);
+        }
+
+        return expressions.size();
+    }
+
+    /**
+     * Parses a complete class, without outputting anything.
+     * @return The syntax tree of the class.
+     */
+    public ClassDeclaration parseClass() {
         //class
         //  'class' className '{' classVarDec* subroutineDec* '}'
 
@@ -162,20 +359,15 @@ public class CompilationEngine {
         if (inputTokenizer.tokenType() != TokenType.IDENTIFIER)
             throw new CompilationException("the class name is not an identifier");
 
-        className = inputTokenizer.identifier();
+        String className = inputTokenizer.identifier();
 
         advanceTokenizer();
 
         if (inputTokenizer.tokenType() != TokenType.SYMBOL && inputTokenizer.symbol() != '{')
             throw new CompilationException("Missing \'{\' in class declaration");
 
-        if (outputXML) {
-            println("<class>");
-            increaseIndent();
-            println("<keyword> class </keyword>");
-            printIdentifier(className, "class", true);
-            println("<symbol> { </symbol>");
-        }
+        List<VariableDeclaration> variables = new ArrayList<>();
+        List<SubroutineDeclaration> subroutines = new ArrayList<>();
 
         boolean isClassVarDec;
 
@@ -186,7 +378,7 @@ public class CompilationEngine {
 
         while (isClassVarDec) {
             // the next construct is a classVarDec
-            compileClassVariableDeclaration();
+            variables.add(parseClassVariableDeclaration());
 
             // the tokenizer is now advanced past the last classVarDec
             isClassVarDec = inputTokenizer.tokenType() == TokenType.KEYWORD &&
@@ -201,26 +393,19 @@ public class CompilationEngine {
                 || inputTokenizer.keyWord() == KeyWord.METHOD || inputTokenizer.keyWord() == KeyWord.FUNCTION);
 
         while (isSubroutineDec) {
-            compileSubroutine();
+            subroutines.add(parseSubroutine());
             isSubroutineDec = inputTokenizer.tokenType() == TokenType.KEYWORD && (inputTokenizer.keyWord() == KeyWord.CONSTRUCTOR
                     || inputTokenizer.keyWord() == KeyWord.METHOD || inputTokenizer.keyWord() == KeyWord.FUNCTION);
         }
 
-        // compile methods have advanced past all the methods and variable declarations, now we are at the end of the class
+        // parse methods have advanced past all the methods and variable declarations, now we are at the end of the class
         if (inputTokenizer.tokenType() != TokenType.SYMBOL && inputTokenizer.symbol() != '}')
             throw new CompilationException("Missing \'}\' in class declaration");
 
-        if (outputXML) {
-            println("<symbol> } </symbol>");
-            decreaseIndent();
-            println("</class>");
-        }
+        return new ClassDeclaration(className, variables, subroutines);
     }
 
-    /**
-     * Compiles a static declaration or a field declaration
-     */
-    public void compileClassVariableDeclaration() {
+    private VariableDeclaration parseClassVariableDeclaration() {
         //classVarDec
         //  ('static'|'field') ('int'|'char'|'boolean'| className) varName (',' varName)* ';'
 
@@ -230,16 +415,17 @@ public class CompilationEngine {
         advanceTokenizer();
 
         boolean typeIsPrimitive = inputTokenizer.tokenType() != TokenType.IDENTIFIER;
-        KeyWord primitiveType = null;
-        String identifierType = null;
+        String type;
 
         if (typeIsPrimitive) {
-            primitiveType = inputTokenizer.keyWord();
+            KeyWord primitiveType = inputTokenizer.keyWord();
 
             if (inputTokenizer.tokenType() != TokenType.KEYWORD || (primitiveType != KeyWord.INT && primitiveType != KeyWord.CHAR && primitiveType != KeyWord.BOOLEAN))
                 throw new CompilationException("Variable type is not an class name or a primitive data type!");
+
+            type = primitiveType.toString().toLowerCase();
         } else {
-            identifierType = inputTokenizer.identifier();
+            type = inputTokenizer.identifier();
         }
 
         advanceTokenizer();
@@ -255,9 +441,6 @@ public class CompilationEngine {
 
             varNames.add(inputTokenizer.identifier());
 
-            symbolTable.define(inputTokenizer.identifier(), typeIsPrimitive?primitiveType.toString().toLowerCase():identifierType,
-                    isStatic? Kind.STATIC: Kind.FIELD);
-
             advanceTokenizer();
 
             if (inputTokenizer.tokenType() != TokenType.SYMBOL || (inputTokenizer.symbol() != ',' && inputTokenizer.symbol() != ';'))
@@ -268,62 +451,34 @@ public class CompilationEngine {
             advanceTokenizer();
         }
 
-        if (outputXML) {
-            println("<classVarDec>");
-            increaseIndent();
-            println("<keyword> " + (isStatic ? "static" : "field") + " </keyword>");
-            if (typeIsPrimitive) {
-                println("<keyword> " + primitiveType.toString().toLowerCase() + " </keyword>");
-            } else {
-                printIdentifier(identifierType, "class", false);
-            }
-
-            for (int i = 0; i < varNames.size(); i++) {
-                printIdentifier(varNames.get(i), isStatic?"static":"field", true,
-                        symbolTable.indexOf(varNames.get(i)), symbolTable.typeOf(varNames.get(i)));
-                println("<symbol> " + (i + 1 == varNames.size() ? ";" : ",") + " </symbol>");
-            }
-
-            decreaseIndent();
-            println("</classVarDec>");
-        }
+        return new VariableDeclaration(isStatic ? Kind.STATIC : Kind.FIELD, type, typeIsPrimitive, varNames);
     }
 
-    /**
-     * Compiles a complete method, function, or constructor.
-     */
-    public void compileSubroutine() {
+    private SubroutineDeclaration parseSubroutine() {
         //subroutineDec
         //  ('constructor'|'function'|'method') ('void'|'int'|'char'|'boolean'| className) subroutineName '('
         //      parameterList ')'
         //subroutineBody
         //  '{' varDec* statements '}'
 
-        symbolTable.startSubroutine();
-
-        // we know the token is a valid keyword, the compileClass() makes sure of this
+        // we know the token is a valid keyword, the parseClass() makes sure of this
         KeyWord subroutineType = inputTokenizer.keyWord();
 
-        subroutineIsMethodCall = subroutineType == KeyWord.METHOD;
-
-        if (subroutineType == KeyWord.METHOD) {
-            symbolTable.define("this", className, Kind.ARG);
-        }
-
         advanceTokenizer();
 
         boolean returnTypeIsPrimitive = inputTokenizer.tokenType() != TokenType.IDENTIFIER;
-        KeyWord primitiveType = null;
-        String identifierType = null;
+        String returnType;
 
         if (returnTypeIsPrimitive) {
-            primitiveType = inputTokenizer.keyWord();
+            KeyWord primitiveType = inputTokenizer.keyWord();
 
             if (inputTokenizer.tokenType() != TokenType.KEYWORD || (primitiveType != KeyWord.INT && primitiveType != KeyWord.CHAR
                     && primitiveType != KeyWord.BOOLEAN && primitiveType != KeyWord.VOID))
                 throw new CompilationException("Return type is not an class name, a primitive data type, or void!");
+
+            returnType = primitiveType.toString().toLowerCase();
         } else {
-            identifierType = inputTokenizer.identifier();
+            returnType = inputTokenizer.identifier();
         }
 
         advanceTokenizer();
@@ -340,22 +495,7 @@ public class CompilationEngine {
 
         advanceTokenizer();
 
-        if (outputXML) {
-            println("<subroutineDec>");
-            increaseIndent();
-            println("<keyword> " + subroutineType.toString().toLowerCase() + " </keyword>");
-
-            if (returnTypeIsPrimitive) {
-                println("<keyword> " + primitiveType.toString().toLowerCase() + " </keyword>");
-            } else {
-                printIdentifier(identifierType, "class", false);
-            }
-
-            printIdentifier(subroutineName, "subroutine", true);
-            println("<symbol> ( </symbol>");
-        }
-
-        compileParameterList();
+        List<VariableDeclaration> parameters = parseParameterList();
 
         if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != ')')
             throw new CompilationException("Expected \')\' after parameter list");
@@ -365,60 +505,29 @@ public class CompilationEngine {
         if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != '{')
             throw new CompilationException("Expected \'{\' to begin subroutine body!");
 
-
-        if (outputXML) {
-            println("<symbol> ) </symbol>");
-            println("<subroutineBody>");
-            increaseIndent();
-            println("<symbol> { </symbol>");
-        }
-
         advanceTokenizer();
 
+        List<VariableDeclaration> localVariables = new ArrayList<>();
+
         boolean hasMoreVarDecs = inputTokenizer.tokenType() == TokenType.KEYWORD && inputTokenizer.keyWord() == KeyWord.VAR;
 
         while (hasMoreVarDecs) {
-            compileVariableDeclaration();
+            localVariables.add(parseVariableDeclaration());
             hasMoreVarDecs = inputTokenizer.tokenType() == TokenType.KEYWORD && inputTokenizer.keyWord() == KeyWord.VAR;
         }
 
-        if (!outputXML) {
-            vmWriter.writeFunction(className + "." + subroutineName, symbolTable.varCount(Kind.VAR));
-
-            // set the this pointer for methods
-            if (subroutineType == KeyWord.METHOD) {
-                vmWriter.writePush(Segment.ARGUMENT, 0);
-                vmWriter.writePop(Segment.POINTER, 0);
-            }
-
-            // allocate a space in the heap, and point the this pointer at it.
-            if (subroutineType == KeyWord.CONSTRUCTOR) {
-                vmWriter.writePush(Segment.CONSTANT, symbolTable.varCount(Kind.FIELD));
-                vmWriter.writeCall("Memory.alloc", 1);
-                vmWriter.writePop(Segment.POINTER, 0);
-            }
-        }
-
-        compileStatements();
+        List<Statement> statements = parseStatements();
 
         if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != '}')
             throw new CompilationException("Expected \'}\' after statements, to close subroutine body");
 
         advanceTokenizer();
 
-        if (outputXML) {
-            println("<symbol> } </symbol>");
-            decreaseIndent();
-            println("</subroutineBody>");
-            decreaseIndent();
-            println("</subroutineDec>");
-        }
+        return new SubroutineDeclaration(subroutineType, returnType, returnTypeIsPrimitive, subroutineName,
+                parameters, localVariables, statements);
     }
 
-    /**
-     * Compiles a (possibly empty) parameter list, not including the enclosing "()".
-     */
-    public void compileParameterList() {
+    private List<VariableDeclaration> parseParameterList() {
         //parameterList
         //  ( (('int'|'char'|'boolean'| className) varName) (',' ('int'|'char'|'boolean'| className) varName)*)?
 
@@ -426,12 +535,7 @@ public class CompilationEngine {
 
         hasMoreParams = inputTokenizer.tokenType() != TokenType.SYMBOL;
 
-        List<Boolean> typeIsPrimitive = new ArrayList<>();
-        List<KeyWord> primitiveType = new ArrayList<>();
-        List<String> identifierType = new ArrayList<>();
-        List<String> variableName = new ArrayList<>();
-
-        int i = 0;
+        List<VariableDeclaration> parameters = new ArrayList<>();
 
         while (hasMoreParams) {
             KeyWord primitiveVarType = inputTokenizer.keyWord();
@@ -439,16 +543,15 @@ public class CompilationEngine {
                     (primitiveVarType != KeyWord.INT && primitiveVarType != KeyWord.CHAR && primitiveVarType != KeyWord.BOOLEAN)))
                 throw new CompilationException("Expected primitive type or class name in parameter list!");
 
-            typeIsPrimitive.add(inputTokenizer.tokenType() == TokenType.KEYWORD);
-            primitiveType.add(primitiveVarType);
-            identifierType.add(inputTokenizer.identifier());
+            boolean typeIsPrimitive = inputTokenizer.tokenType() == TokenType.KEYWORD;
+            String type = typeIsPrimitive ? primitiveVarType.toString().toLowerCase() : inputTokenizer.identifier();
 
             advanceTokenizer();
 
             if (inputTokenizer.tokenType() != TokenType.IDENTIFIER)
                 throw new CompilationException("Expected an identifier for the parameter variable name!");
 
-            variableName.add(inputTokenizer.identifier());
+            String variableName = inputTokenizer.identifier();
 
             advanceTokenizer();
 
@@ -461,38 +564,13 @@ public class CompilationEngine {
                 advanceTokenizer();
             }
 
-            symbolTable.define(variableName.get(i), typeIsPrimitive.get(i)?
-                    primitiveType.get(i).toString().toLowerCase():identifierType.get(i), Kind.ARG);
-
-            i++;
+            parameters.add(new VariableDeclaration(Kind.ARG, type, typeIsPrimitive, Collections.singletonList(variableName)));
         }
 
-        if (outputXML) {
-            println("<parameterList>");
-            increaseIndent();
-            for (i = 0; i < variableName.size(); i++) {
-                if (typeIsPrimitive.get(i)) {
-                    println("<keyword> " + primitiveType.get(i).toString().toLowerCase() + " </keyword>");
-                } else {
-                    printIdentifier(identifierType.get(i), "class", false);
-                }
-
-                printIdentifier(variableName.get(i), "arg", true,
-                        symbolTable.indexOf(variableName.get(i)), symbolTable.typeOf(variableName.get(i)));
-
-                if (i < variableName.size() - 1) {
-                    println("<symbol> , </symbol>");
-                }
-            }
-            decreaseIndent();
-            println("</parameterList>");
-        }
+        return parameters;
     }
 
-    /**
-     * Compiles a var declaration.
-     */
-    public void compileVariableDeclaration() {
+    private VariableDeclaration parseVariableDeclaration() {
         //varDec
         //  'var' ('int'|'char'|'boolean'| className) varName (',' varName)* ';'
 
@@ -525,8 +603,6 @@ public class CompilationEngine {
 
             variableNames.add(inputTokenizer.identifier());
 
-            symbolTable.define(inputTokenizer.identifier(), typeIsPrimitive?primitiveType.toString().toLowerCase():identifierType, Kind.VAR);
-
             advanceTokenizer();
 
             if (inputTokenizer.tokenType() != TokenType.SYMBOL || (inputTokenizer.symbol() != ',' && inputTokenizer.symbol() != ';'))
@@ -538,36 +614,11 @@ public class CompilationEngine {
         // advance the tokenizer past the terminating ;
         advanceTokenizer();
 
-        if (outputXML) {
-            println("<varDec>");
-            increaseIndent();
-            println("<keyword> var </keyword>");
-
-            if (typeIsPrimitive) {
-                println("<keyword> " + primitiveType.toString().toLowerCase() + " </keyword>");
-            } else {
-                printIdentifier(identifierType, "class", false);
-            }
-
-            // we know there is at least one variable declared
-            printIdentifier(variableNames.get(0), "var", true,
-                    symbolTable.indexOf(variableNames.get(0)), symbolTable.typeOf(variableNames.get(0)));
-
-            for (int i = 1; i < variableNames.size(); i++) {
-                println("<symbol> , </symbol>");
-                printIdentifier(variableNames.get(i), "var", true, symbolTable.indexOf(variableNames.get(i)), symbolTable.typeOf(variableNames.get(i)));
-            }
-
-            println("<symbol> ; </symbol>");
-            decreaseIndent();
-            println("</varDec>");
-        }
+        return new VariableDeclaration(Kind.VAR, typeIsPrimitive ? primitiveType.toString().toLowerCase() : identifierType,
+                typeIsPrimitive, variableNames);
     }
 
-    /**
-     * Compiles a sequence of statements, not including the enclosing "{}".
-     */
-    public void compileStatements() {
+    private List<Statement> parseStatements() {
         //statements
         //  statement*
         //statement
@@ -576,10 +627,7 @@ public class CompilationEngine {
         // TODO: expand definition of a statement to include statement block? ('{' statements '}')
         //      This would change the definition of if and while statements.
 
-        if (outputXML) {
-            println("<statements>");
-            increaseIndent();
-        }
+        List<Statement> statements = new ArrayList<>();
 
         boolean hasMoreStatements;
 
@@ -591,19 +639,19 @@ public class CompilationEngine {
         while (hasMoreStatements) {
             switch (statementKeyword) {
                 case LET:
-                    compileLet();
+                    statements.add(parseLet());
                     break;
                 case DO:
-                    compileDo();
+                    statements.add(parseDo());
                     break;
                 case IF:
-                    compileIf();
+                    statements.add(parseIf());
                     break;
                 case WHILE:
-                    compileWhile();
+                    statements.add(parseWhile());
                     break;
                 case RETURN:
-                    compileReturn();
+                    statements.add(parseReturn());
                     break;
             }
 
@@ -613,16 +661,10 @@ public class CompilationEngine {
                     statementKeyword == KeyWord.RETURN);
         }
 
-        if (outputXML) {
-            decreaseIndent();
-            println("</statements>");
-        }
+        return statements;
     }
 
-    /**
-     * Compiles a do statement.
-     */
-    public void compileDo() {
+    private DoStatement parseDo() {
         //doStatement
         //  'do' subroutineCall ';'
 
@@ -634,38 +676,22 @@ public class CompilationEngine {
         if (inputTokenizer.tokenType() != TokenType.IDENTIFIER)
             throw new CompilationException("Expected an identifier for the subroutine name!");
 
-        if (outputXML) {
-            println("<doStatement>");
-            increaseIndent();
-            println("<keyword> do </keyword>");
-        }
-
         String subroutineString = inputTokenizer.identifier();
+        int subroutineStringId = inputTokenizer.identifierId();
 
         advanceTokenizer();
 
-        compileSubroutineCall(subroutineString);
+        SubroutineCall call = parseSubroutineCall(subroutineString, subroutineStringId);
 
         if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != ';')
             throw new CompilationException("Expected symbol \';\' terminating do statement");
 
         advanceTokenizer();
 
-        if (outputXML) {
-            println("<symbol> ; </symbol>");
-            decreaseIndent();
-            println("</doStatement>");
-        } else {
-            // discard the return value
-            vmWriter.writePop(Segment.TEMP, 0);
-        }
-
+        return new DoStatement(call);
     }
 
-    /**
-     * Compiles a let statement.
-     */
-    public void compileLet() {
+    private LetStatement parseLet() {
         //letStatement
         //  'let' varName ('[' expression ']')? '=' expression ';'
 
@@ -678,6 +704,7 @@ public class CompilationEngine {
             throw new CompilationException("Expected an identifier for a let statement!");
 
         String variableName = inputTokenizer.identifier();
+        int variableId = inputTokenizer.identifierId();
 
         boolean arrayExpression;
 
@@ -688,24 +715,12 @@ public class CompilationEngine {
 
         arrayExpression = inputTokenizer.symbol() == '[';
 
+        Expression index = null;
+
         if (arrayExpression) {
             advanceTokenizer();
-        }
 
-        if (outputXML) {
-            println("<letStatement>");
-            increaseIndent();
-            println("<keyword> let </keyword>");
-            printIdentifier(variableName, symbolTable.kindOf(variableName).toString().toLowerCase(), false,
-                    symbolTable.indexOf(variableName), symbolTable.typeOf(variableName));
-
-            if (arrayExpression) {
-                println("<symbol> [ </symbol>");
-            }
-        }
-
-        if (arrayExpression) {
-            compileExpression();
+            index = parseExpression();
 
             if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != ']')
                 throw new CompilationException("Expected symbol \']\' after array index expression!");
@@ -718,50 +733,19 @@ public class CompilationEngine {
 
         advanceTokenizer();
 
-        if (outputXML) {
-            if (arrayExpression) {
-                println("<symbol> ] </symbol>");
-            }
-
-            println("<symbol> = </symbol>");
-        }
-
-        compileExpression();
+        Expression value = parseExpression();
 
         if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != ';')
             throw new CompilationException("Expected symbol \';\' terminating let statement!");
 
         advanceTokenizer();
 
-        if (outputXML) {
-            println("<symbol> ; </symbol>");
-            decreaseIndent();
-            println("</letStatement>");
-        } else {
-            // at the top of the stack is the value of the expression to the right of the '=' sign.
-            // underneath that is the array index, if using arrays.
-
-            if (arrayExpression) {
-                vmWriter.writePop(Segment.TEMP, 1);
-                vmWriter.writePush(kindToSegment(symbolTable.kindOf(variableName)), symbolTable.indexOf(variableName));
-                vmWriter.writeArithmetic(Command.ADD);
-                vmWriter.writePop(Segment.POINTER, 1);
-                vmWriter.writePush(Segment.TEMP, 1);
-                vmWriter.writePop(Segment.THAT, 0);
-            } else {
-                vmWriter.writePop(kindToSegment(symbolTable.kindOf(variableName)), symbolTable.indexOf(variableName));
-            }
-        }
+        return new LetStatement(variableName, variableId, index, value);
     }
 
-    /**
-     * Compiles a while statement.
-     */
-    public void compileWhile() {
+    private WhileStatement parseWhile() {
         //whileStatement
         //  'while' '(' expression ')' '{' statements '}'
-        int labelCount = this.labelCount;
-        this.labelCount++;
 
         if (inputTokenizer.tokenType() != TokenType.KEYWORD || inputTokenizer.keyWord() != KeyWord.WHILE)
             throw new CompilationException("Expected keyword \'while\' in while statement!");
@@ -773,17 +757,7 @@ public class CompilationEngine {
 
         advanceTokenizer();
 
-        if (outputXML) {
-            println("<whileStatement>");
-            increaseIndent();
-            println("<keyword> while </keyword>");
-            println("<symbol> ( </symbol>");
-        } else {
-            // insert the loop label
-            vmWriter.writeLabel("whileStart"+labelCount);
-        }
-
-        compileExpression();
+        Expression condition = parseExpression();
 
         if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != ')')
             throw new CompilationException("Expected symbol \')\' in while statement!");
@@ -795,41 +769,19 @@ public class CompilationEngine {
 
         advanceTokenizer();
 
-        if (outputXML) {
-            println("<symbol> ) </symbol>");
-            println("<symbol> { </symbol>");
-        } else {
-            // the top of the stack is the boolean condition for the loop
-            vmWriter.writeArithmetic(Command.NOT);
-            vmWriter.writeIf("whileEnd"+labelCount);
-        }
-
-        compileStatements();
+        List<Statement> statements = parseStatements();
 
         if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != '}')
             throw new CompilationException("Expected symbol \'}\' in while statement!");
 
         advanceTokenizer();
 
-        if (outputXML) {
-            println("<symbol> } </symbol>");
-            decreaseIndent();
-            println("</whileStatement>");
-        } else {
-            //end of loop, return to beginning
-            vmWriter.writeGoto("whileStart"+labelCount);
-            vmWriter.writeLabel("whileEnd"+labelCount);
-        }
+        return new WhileStatement(condition, statements);
     }
 
-    /**
-     * Compiles an if statement, possibly with a trailing else clause.
-     */
-    public void compileIf() {
+    private IfStatement parseIf() {
         //ifStatement
         //  'if '(' expression ')' '{' statements '}' ('else' '{'statements'}')?
-        int labelCount = this.labelCount;
-        this.labelCount++;
 
         if (inputTokenizer.tokenType() != TokenType.KEYWORD || inputTokenizer.keyWord() != KeyWord.IF)
             throw new CompilationException("Expected keyword \'if\' in if statement!");
@@ -841,14 +793,7 @@ public class CompilationEngine {
 
         advanceTokenizer();
 
-        if (outputXML) {
-            println("<ifStatement>");
-            increaseIndent();
-            println("<keyword> if </keyword>");
-            println("<symbol> ( </symbol>");
-        }
-
-        compileExpression();
+        Expression condition = parseExpression();
 
         if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != ')')
             throw new CompilationException("Expected symbol \')\' in if statement!");
@@ -860,16 +805,8 @@ public class CompilationEngine {
 
         advanceTokenizer();
 
-        if (outputXML) {
-            println("<symbol> ) </symbol>");
-            println("<symbol> { </symbol>");
-        } else {
-            // top of the stack is the boolean condition for the if statement
-            vmWriter.writeArithmetic(Command.NOT);
-            vmWriter.writeIf("ifEnd"+labelCount);
-        }
-
-        compileStatements();
+        List<Statement> thenStatements = parseStatements();
+        List<Statement> elseStatements = null;
 
         if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != '}')
             throw new CompilationException("Expected symbol \'}\' in if statement!");
@@ -884,42 +821,18 @@ public class CompilationEngine {
 
             advanceTokenizer();
 
-            if (outputXML) {
-                println("<symbol> } </symbol>");
-                println("<keyword> else </keyword>");
-                println("<symbol> { </symbol>");
-            } else {
-                vmWriter.writeGoto("elseEnd"+labelCount);
-                vmWriter.writeLabel("ifEnd"+labelCount);
-            }
-
-            compileStatements();
+            elseStatements = parseStatements();
 
             if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != '}')
                 throw new CompilationException("Expected symbol \'}\' in if statement!");
 
             advanceTokenizer();
-
-            if (!outputXML) {
-                vmWriter.writeLabel("elseEnd"+labelCount);
-            }
-        } else {
-            if (!outputXML) {
-                vmWriter.writeLabel("ifEnd"+labelCount);
-            }
         }
 
-        if (outputXML) {
-            println("<symbol> } </symbol>");
-            decreaseIndent();
-            println("</ifStatement>");
-        }
+        return new IfStatement(condition, thenStatements, elseStatements);
     }
 
-    /**
-     * Compiles a return statement.
-     */
-    public void compileReturn() {
+    private ReturnStatement parseReturn() {
         //returnStatement
         //  'return' expression? ';'
 
@@ -928,18 +841,10 @@ public class CompilationEngine {
 
         advanceTokenizer();
 
-        if (outputXML) {
-            println("<returnStatement>");
-            increaseIndent();
-            println("<keyword> return </keyword>");
-        }
+        Expression value = null;
 
         if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != ';') {
-            compileExpression();
-        } else {
-            if (!outputXML) {
-                vmWriter.writePush(Segment.CONSTANT, 0);
-            }
+            value = parseExpression();
         }
 
         if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != ';')
@@ -947,97 +852,87 @@ public class CompilationEngine {
 
         advanceTokenizer();
 
-        if (outputXML) {
-            println("<symbol> ; </symbol>");
-            decreaseIndent();
-            println("</returnStatement>");
-        } else {
-            vmWriter.writeReturn();
-        }
+        return new ReturnStatement(value);
     }
 
-    /**
-     * Compiles an expression.
-     */
-    public void compileExpression() {
+    private Expression parseExpression() {
         //expression
         //  term (('+'|'-'|'*'|'/'|'&'|'|'|'<'|'>'|'=') term)*
 
-        // TODO: rewrite expression compilation to obey order of operations?
+        Expression expression = parseTerm();
 
-        if (outputXML) {
-            println("<expression>");
-            increaseIndent();
+        if (operatorPrecedence) {
+            return parseOperations(expression, 0);
         }
 
-        compileTerm();
-
         boolean hasMoreTerms = inputTokenizer.tokenType() == TokenType.SYMBOL && "+-*/&|<>=".indexOf(inputTokenizer.symbol()) != -1;
 
         while (hasMoreTerms) {
             char operator = inputTokenizer.symbol();
 
-            if (outputXML) {
-                switch (operator) {
-                    case '<':
-                        println("<symbol> &lt; </symbol>");
-                        break;
-                    case '>':
-                        println("<symbol> &gt; </symbol>");
-                        break;
-                    case '&':
-                        println("<symbol> &amp; </symbol>");
-                        break;
-                    default:
-                        println("<symbol> " + operator + " </symbol>");
-                        break;
-                }
-            }
+            advanceTokenizer();
+
+            // Jack has no precedence, operators are applied from left to right
+            expression = new BinaryOperation(operator, expression, parseTerm());
+
+            hasMoreTerms = inputTokenizer.tokenType() == TokenType.SYMBOL && "+-*/&|<>=".indexOf(inputTokenizer.symbol()) != -1;
+        }
+
+        return expression;
+    }
+
+    // applies the operators that bind at least as tightly as minimumPrecedence to the left operand (precedence climbing)
+    private Expression parseOperations(Expression left, int minimumPrecedence) {
+        while (precedenceOfNextSymbol() >= minimumPrecedence) {
+            char operator = inputTokenizer.symbol();
+            int precedence = precedenceOf(operator);
 
             advanceTokenizer();
 
-            compileTerm();
-
-            if (!outputXML) {
-                switch (operator) {
-                    case '*':
-                        vmWriter.writeCall("Math.multiply", 2);
-                        break;
-                    case '/':
-                        vmWriter.writeCall("Math.divide", 2);
-                        break;
-                    default:
-                        vmWriter.writeArithmetic(Command.getBinaryCommandFromSymbol(operator));
-                        break;
-                }
+            Expression right = parseTerm();
+            // operators that bind more tightly than this one take the right operand first
+            while (precedenceOfNextSymbol() > precedence) {
+                right = parseOperations(right, precedence + 1);
             }
 
-            hasMoreTerms = inputTokenizer.tokenType() == TokenType.SYMBOL && "+-*/&|<>=".indexOf(inputTokenizer.symbol()) != -1;
+            left = new BinaryOperation(operator, left, right);
         }
 
+        return left;
+    }
 
-        if (outputXML) {
-            decreaseIndent();
-            println("</expression>");
+    // the precedence of the operator that comes next, -1 if no operator comes next
+    private int precedenceOfNextSymbol() {
+        return inputTokenizer.tokenType() == TokenType.SYMBOL ? precedenceOf(inputTokenizer.symbol()) : -1;
+    }
+
+    private static int precedenceOf(char operator) {
+        switch (operator) {
+            case '*':
+            case '/':
+                return 4;
+            case '+':
+            case '-':
+                return 3;
+            case '<':
+            case '>':
+            case '=':
+                return 2;
+            case '&':
+                return 1;
+            case '|':
+                return 0;
+            default:
+                return -1;
         }
     }
 
-    /**
-     * Compiles a term.
-     * This routine is faced with a slight difficulty when trying to decide between some of the alternative parsing rules.
-     * Specifically, if the current token is an identifier, the routine must distinguish between a variable, an array entry, and a subroutine call.
-     * A single lookahead token, which may be one of "[", "(", or "." suffices to distinguish between the three possibilities.
-     * Any other token is not part of this term and should not be advanced over.
-     */
-    public void compileTerm() {
+    private Expression parseTerm() {
         //term
         //  integerConstant|stringConstant|('true'|'false'|'null'|'this')|varName|varName'['expression']'|subroutineCall
         //  |'('expression')'|('-'|'~') term
 
-        if (outputXML) {
-            println("<term>");
-            increaseIndent();
-        }
+        Expression term = null;
 
         switch (inputTokenizer.tokenType()) {
 
@@ -1046,23 +941,7 @@ public class CompilationEngine {
                 if (keyword != KeyWord.TRUE && keyword != KeyWord.FALSE && keyword != KeyWord.NULL && keyword != KeyWord.THIS)
                     throw new CompilationException("Expected one of the keywords \'true\', \'false\', \'null\', or \'this\' in keyword constant");
 
-                if (outputXML) {
-                    println("<keyword> " + keyword.toString().toLowerCase() + " </keyword>");
-                } else {
-                    switch (keyword) {
-                        case TRUE:
-                            vmWriter.writePush(Segment.CONSTANT, 1);
-                            vmWriter.writeArithmetic(Command.NEG);
-                            break;
-                        case FALSE:
-                        case NULL:
-                            vmWriter.writePush(Segment.CONSTANT, 0);
-                            break;
-                        case THIS:
-                            vmWriter.writePush(Segment.POINTER, 0);
-                            break;
-                    }
-                }
+                term = new KeywordConstant(keyword);
 
                 advanceTokenizer();
 
@@ -1072,140 +951,69 @@ public class CompilationEngine {
                 if (symbol == '(') {
                     advanceTokenizer();
 
-                    if (outputXML) {
-                        println("<symbol> ( </symbol>");
-                    }
-
-                    compileExpression();
+                    term = new Parentheses(parseExpression());
 
                     if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != ')')
                         throw new CompilationException("Expected a closing parenthesis after expression in parenthetical term!");
 
-                    if (outputXML) {
-                        println("<symbol> ) </symbol>");
-                    }
-
                     advanceTokenizer();
                 } else if (symbol == '-' || symbol == '~') {
                     advanceTokenizer();
-                    if (outputXML) {
-                        println("<symbol> " + symbol + " </symbol>");
-                    }
-
-                    compileTerm();
-
-                    if (!outputXML) {
-                        vmWriter.writeArithmetic(Command.getUnaryCommandFromSymbol(symbol));
-                    }
 
+                    term = new UnaryOperation(symbol, parseTerm());
                 } else
                     throw new CompilationException("Expected one of symbols \'-\', \'~\', or \'(\' in term!");
                 break;
             case IDENTIFIER:
                 String identifier = inputTokenizer.identifier();
+                int identifierId = inputTokenizer.identifierId();
 
                 advanceTokenizer();
 
-                boolean isSubroutine = false;
-                boolean isArray = false;
-
                 if (inputTokenizer.tokenType() == TokenType.SYMBOL && (inputTokenizer.symbol() == '(' || inputTokenizer.symbol() == '.')) {
-                    compileSubroutineCall(identifier);
-                    isSubroutine = true;
+                    term = parseSubroutineCall(identifier, identifierId);
                 } else if (inputTokenizer.tokenType() == TokenType.SYMBOL && inputTokenizer.symbol() == '[') {
-                    isArray = true;
                     advanceTokenizer();
-                }
 
-                if (!isSubroutine) {
-                    if (outputXML) {
-                        printIdentifier(identifier, symbolTable.kindOf(identifier).toString().toLowerCase(),
-                                false, symbolTable.indexOf(identifier), symbolTable.typeOf(identifier));
-
-                        if (isArray) {
-                            println("<symbol> [ </symbol>");
-                        }
-                    } else {
-                        vmWriter.writePush(kindToSegment(symbolTable.kindOf(identifier)), symbolTable.indexOf(identifier));
-                    }
-
-                    if (isArray) {
-                        compileExpression();
-
-                        if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != ']')
-                            throw new CompilationException("Expected symbol \']\' after array index expression!");
-
-                        if (outputXML) {
-                            println("<symbol> ] </symbol>");
-                        } else {
-                            // the array base and the index are both the stack, we add them and then get the value at that address
-                            vmWriter.writeArithmetic(Command.ADD);
-                            vmWriter.writePop(Segment.POINTER, 1);
-                            vmWriter.writePush(Segment.THAT, 0);
-                        }
-
-                        advanceTokenizer();
-                    }
-                }
+                    term = new ArrayEntry(identifier, identifierId, parseExpression());
 
+                    if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != ']')
+                        throw new CompilationException("Expected symbol \']\' after array index expression!");
+
+                    advanceTokenizer();
+                } else {
+                    term = new Variable(identifier, identifierId);
+                }
 
                 break;
             case INT_CONSTANT:
                 if (inputTokenizer.intVal() > 32767)
                     throw new CompilationException("The integer constant \'" + inputTokenizer.intVal() + "\' is to large!");
 
-                if (outputXML) {
-                    println("<integerConstant> " + inputTokenizer.intVal() + " </integerConstant>");
-                } else {
-                    vmWriter.writePush(Segment.CONSTANT, inputTokenizer.intVal());
-                }
+                term = new IntegerConstant(inputTokenizer.intVal());
 
                 advanceTokenizer();
                 break;
             case STRING_CONSTANT:
-                if (outputXML) {
-                    println("<stringConstant> " + inputTokenizer.stringVal() + " </stringConstant>");
-                } else {
-                    //create the string, now it is on top of the stack
-                    String string = inputTokenizer.stringVal();
-                    vmWriter.writePush(Segment.CONSTANT, string.length());
-                    vmWriter.writeCall("String.new", 1);
-                    //add each char to the string, using the appendChar method, the string is at the top stack after each iteration
-                    for (int i = 0; i < string.length(); i++) {
-                        vmWriter.writePush(Segment.CONSTANT, string.charAt(i));
-                        vmWriter.writeCall("String.appendChar", 2);
-                    }
-                }
+                term = new StringConstant(inputTokenizer.stringVal());
+
                 advanceTokenizer();
                 break;
         }
 
-
-        if (outputXML) {
-            decreaseIndent();
-            println("</term>");
-        }
+        return term;
     }
 
-    /**
-     * Compiles a (possibly empty) comma-separated list of expressions.
-     * @return The number of expressions in the expression list.
-     */
-    public int compileExpressionList() {
+    private List<Expression> parseExpressionList() {
         //expressionList
         //  (expression (',' expression)* )?
 
         boolean hasNext = inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != ')';
-        int numExpressions = 0;
 
-        if (outputXML) {
-            println("<expressionList>");
-            increaseIndent();
-        }
+        List<Expression> expressions = new ArrayList<>();
 
         while (hasNext) {
-            compileExpression();
-            numExpressions++;
+            expressions.add(parseExpression());
 
             if (inputTokenizer.tokenType() != TokenType.SYMBOL || (inputTokenizer.symbol() != ')' && inputTokenizer.symbol() != ','))
                 throw new CompilationException("Expected symbol \',\' or \')\' after an expression in an expression list!");
@@ -1213,42 +1021,30 @@ public class CompilationEngine {
             hasNext = inputTokenizer.symbol() == ',';
 
             if (hasNext) {
-                if (outputXML) {
-                    println("<symbol> , </symbol>");
-                }
-
                 advanceTokenizer();
             }
         }
 
-        if (outputXML) {
-            decreaseIndent();
-            println("</expressionList>");
-        }
-
-        return numExpressions;
+        return expressions;
     }
 
-    private void compileSubroutineCall(String firstIdentifier) {
+    private SubroutineCall parseSubroutineCall(String firstIdentifier, int firstIdentifierId) {
         //subroutineCall
         //  subroutineName '(' expressionList ')' | (className|varName) '.' subroutineName '(' expressionList ')'
 
         String classOrVarName, subroutineName;
+        int classOrVarNameId;
 
         if (inputTokenizer.tokenType() != TokenType.SYMBOL || (inputTokenizer.symbol() != '(' && inputTokenizer.symbol() != '.'))
             throw new CompilationException("Expected symbol \'(\' or \'.\' after identifier in subroutine call!");
 
         boolean hasClassOrVarName = inputTokenizer.symbol() == '.';
-        boolean isMethodCall;
-        boolean isVariableThis = false;
 
         advanceTokenizer();
 
         if (hasClassOrVarName) {
             classOrVarName = firstIdentifier;
-
-            // it is a method if the symbol exists, making it a variable.
-            isMethodCall = symbolTable.kindOf(classOrVarName) != Kind.NONE;
+            classOrVarNameId = firstIdentifierId;
 
             if (inputTokenizer.tokenType() != TokenType.IDENTIFIER)
                 throw new CompilationException("Expected an identifier after symbol \'.\' in subroutine call");
@@ -1262,70 +1058,36 @@ public class CompilationEngine {
 
             advanceTokenizer();
         } else {
-            classOrVarName = className;
+            // a method of this class
+            classOrVarName = null;
+            classOrVarNameId = -1;
             subroutineName = firstIdentifier;
-            isMethodCall = true;
-            isVariableThis = true;
         }
 
-        if (outputXML) {
-            if (hasClassOrVarName) {
-                Kind kind = symbolTable.kindOf(classOrVarName);
-                printIdentifier(classOrVarName, kind!= Kind.NONE?kind.toString().toLowerCase():"class",
-                        false, symbolTable.indexOf(classOrVarName), symbolTable.typeOf(classOrVarName));
-                println("<symbol> . </symbol>");
-            }
-
-            printIdentifier(subroutineName, "subroutine", false);
-            println("<symbol> ( </symbol>");
-        } else {
-            if (isMethodCall) {
-                if (isVariableThis) {
-                    vmWriter.writePush(Segment.POINTER, 0);
-                } else {
-                    vmWriter.writePush(kindToSegment(symbolTable.kindOf(classOrVarName)), symbolTable.indexOf(classOrVarName));
-                }
-            }
-        }
-
-        int numArgs = compileExpressionList();
+        List<Expression> arguments = parseExpressionList();
 
         if (inputTokenizer.tokenType() != TokenType.SYMBOL || inputTokenizer.symbol() != ')')
             throw new CompilationException("Expected symbol \')\' after expression list in subroutine call!");
 
         advanceTokenizer();
 
-        if (outputXML) {
-            println("<symbol> ) </symbol>");
-        } else {
-            // if it is a method call, we also pushed the variable and the class is the type of the variable.
-            if (isMethodCall) {
-                numArgs++;
-
-                //if the variable is implicitly this, then we already set it.
-                if (!isVariableThis) {
-                    classOrVarName = symbolTable.typeOf(classOrVarName);
-                }
-            }
-
-            vmWriter.writeCall(classOrVarName+"."+subroutineName, numArgs);
-        }
+        return new SubroutineCall(classOrVarName, classOrVarNameId, subroutineName, arguments);
     }
 
     public void close() {
-        outputWriter.flush();
-        outputWriter.close();
-        vmWriter.close();
+        if (outputWriter != null) {
+            outputWriter.flush();
+            outputWriter.close();
+        }
+        if (vmWriter != null) {
+            vmWriter.close();
+        }
         inputTokenizer.close();
     }
 
-    public class CompilationException extends RuntimeException {
+    public static class CompilationException extends RuntimeException {
         public CompilationException(String message) {
             super(message);
         }
-
-        public void closeCompilationEngine() {
-            close();
-        }
     }
 }
@@ -0,0 +1,254 @@
+package def.compiler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A compiler that keeps running between builds, so that each build skips starting a new JVM and
+ * runs on code the JIT has already warmed up.  The server listens on a port of the loopback
+ * address and compiles one request per connection.
+ * <p>
+ * Any process on the machine can connect to the port, so the server writes a random token to
+ * {@link #tokenFile(int)}, which only its owner can read, and answers only requests that start with it.
+ * <p>
+ * A request is one line, {@code TOKEN MODE PARALLEL INCREMENTAL OPTIMIZATIONS PATH}, where {@code MODE} is the name
+ * of a {@link JackCompiler.Mode}, {@code PARALLEL} and {@code INCREMENTAL} are {@code true} or {@code false},
+ * {@code OPTIMIZATIONS} is a comma separated list of {@link CompilerOptions.Optimization#tagName()}s, or
+ * {@code -} for none, and {@code PATH} is the absolute path of the file or directory to compile.  The request
+ * {@code TOKEN SHUTDOWN} stops the server.  The server answers with everything the compiler printed, followed by a last
+ * line of {@code #done 0} if the compile succeeded or {@code #done 1} if it failed.
+ */
+public class CompileServer {
+    public static final int DEFAULT_PORT = 7077;
+
+    static final String SHUTDOWN = "SHUTDOWN";
+    static final String DONE = "#done ";
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final File tokenFile;
+    private final byte[] token;
+
+    /**
+     * Opens a server on the given port of the loopback address, and writes the token requests have to start with.
+     * @param port The port to listen on.
+     */
+    public CompileServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        executor = Executors.newCachedThreadPool();
+
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : random) {
+            hex.append(String.format("%02x", b));
+        }
+        token = hex.toString().getBytes(StandardCharsets.UTF_8);
+        tokenFile = tokenFile(port);
+        try {
+            writeToken(tokenFile.toPath(), token);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param port The port the server listens on.
+     * @return the file the server on that port keeps its token in, in the user's home directory.
+     */
+    public static File tokenFile(int port) {
+        return new File(System.getProperty("user.home"), ".jack-server-" + port + ".token");
+    }
+
+    // creates the file readable and writable by its owner only, replacing one a server before left behind
+    private static void writeToken(Path path, byte[] token) throws IOException {
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(
+                    EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system
+            File file = Files.createFile(path).toFile();
+            if (!file.setReadable(false, false) || !file.setReadable(true, true) || !file.setWritable(false, false)
+                    || !file.setWritable(true, true)) {
+                Files.delete(path);
+                throw new IOException("Could not make " + path + " readable by its owner only");
+            }
+        }
+        Files.write(path, token);
+    }
+
+    /**
+     * Answers requests until a shutdown request comes in.
+     */
+    public void serve() throws IOException {
+        try {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException e) {
+                    if (serverSocket.isClosed()) {
+                        return; //shut down
+                    }
+                    throw e;
+                }
+
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            Files.deleteIfExists(tokenFile.toPath());
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                PrintStream out = new PrintStream(socket.getOutputStream(), false, "UTF-8");
+
+                String line = in.readLine();
+                if (line == null) {
+                    return;
+                }
+
+                String[] tokenAndRequest = line.split(" ", 2);
+                if (tokenAndRequest.length < 2
+                        || !MessageDigest.isEqual(token, tokenAndRequest[0].getBytes(StandardCharsets.UTF_8))) {
+                    out.println("The request does not have the token of this server");
+                    out.println(DONE + 1);
+                    out.flush();
+                    return;
+                }
+
+                String request = tokenAndRequest[1];
+                if (request.equals(SHUTDOWN)) {
+                    out.println(DONE + 0);
+                    out.flush();
+                    serverSocket.close();
+                    return;
+                }
+
+                boolean succeeded;
+                String[] fields = request.split(" ", 5);
+                if (fields.length < 5) {
+                    out.println("invalid request " + request);
+                    succeeded = false;
+                } else {
+                    try {
+                        succeeded = JackCompiler.compile(new File(fields[4]), JackCompiler.Mode.valueOf(fields[0]),
+                                parseOptimizations(fields[3]), Boolean.parseBoolean(fields[1]),
+                                Boolean.parseBoolean(fields[2]), out);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace(out);
+                        succeeded = false;
+                    }
+                }
+
+                out.println(DONE + (succeeded ? 0 : 1));
+                out.flush();
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static Set<CompilerOptions.Optimization> parseOptimizations(String field) {
+        Set<CompilerOptions.Optimization> optimizations = EnumSet.noneOf(CompilerOptions.Optimization.class);
+        if (!field.equals("-")) {
+            for (String tagName : field.split(",")) {
+                CompilerOptions.Optimization optimization = JackCompiler.optimizationOf(tagName);
+                if (optimization == null) {
+                    throw new IllegalArgumentException("Unknown optimization " + tagName);
+                }
+                optimizations.add(optimization);
+            }
+        }
+        return optimizations;
+    }
+
+    /**
+     * Asks a running server to compile a file or directory, with the token from {@link #tokenFile(int)}, and copies
+     * what it prints to {@code out}.
+     * @param port The port the server listens on.
+     * @param inputFile The file or directory to compile.
+     * @param mode What to output.
+     * @param optimizations The optimizations to make to the VM code.
+     * @param parallel true to compile the files of a directory at the same time.
+     * @param incremental true to restore the outputs of unchanged files from the build cache.
+     * @param out Where to copy the server's messages to.
+     * @return true if every file compiled without errors.
+     */
+    public static boolean sendRequest(int port, File inputFile, JackCompiler.Mode mode,
+                                      Set<CompilerOptions.Optimization> optimizations, boolean parallel,
+                                      boolean incremental, PrintStream out) throws IOException {
+        StringBuilder optimizationsField = new StringBuilder();
+        for (CompilerOptions.Optimization optimization : optimizations) {
+            optimizationsField.append(optimizationsField.length() > 0 ? "," : "").append(optimization.tagName());
+        }
+        if (optimizationsField.length() == 0) {
+            optimizationsField.append('-');
+        }
+
+        return send(port, mode + " " + parallel + " " + incremental + " " + optimizationsField + " "
+                + inputFile.getAbsolutePath(), out) == 0;
+    }
+
+    /**
+     * Stops a running server.
+     * @param port The port the server listens on.
+     * @return The exit code of the request, 0 if the server stopped.
+     */
+    public static int sendShutdown(int port) throws IOException {
+        return send(port, SHUTDOWN, System.out);
+    }
+
+    private static int send(int port, String request, PrintStream out) throws IOException {
+        String token = new String(Files.readAllBytes(tokenFile(port).toPath()), StandardCharsets.UTF_8).trim();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+            writer.write(token + " " + request + "\n");
+            writer.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(DONE)) {
+                    return Integer.parseInt(line.substring(DONE.length()));
+                }
+                out.println(line);
+            }
+        }
+
+        throw new IOException("The compile server closed the connection before finishing");
+    }
+}
@@ -0,0 +1,136 @@
+package def.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a Jack file, or the Jack files of a directory, and recompiles each file as soon as it is saved.
+ * <p>
+ * Editors often write a file several times in a row when saving, and a checkout can touch many files at
+ * once, so a recompile starts only after no file has changed for a short quiet period.  Only the files
+ * that changed during the burst are recompiled.  Since the watcher stays in one JVM, every recompile
+ * after the first runs on warmed up compiler code.
+ */
+public class CompileWatcher {
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 100;
+
+    private final File directory;
+    private final String watchedFileName; //null to watch every Jack file in the directory
+    private final JackCompiler.Mode mode;
+    private final Set<CompilerOptions.Optimization> optimizations;
+    private final BuildCache cache;
+    private final PrintStream out;
+    private final long debounceMillis;
+
+    /**
+     * Creates a watcher for a file or directory.
+     * @param inputFile The Jack file or directory to watch.
+     * @param mode What to output.
+     * @param optimizations The optimizations to make to the VM code.
+     * @param cache The cache to restore and store outputs in, or null to always compile.
+     * @param out Where to print the results of each recompile to.
+     * @param debounceMillis How long no file must change before recompiling.
+     */
+    public CompileWatcher(File inputFile, JackCompiler.Mode mode, Set<CompilerOptions.Optimization> optimizations,
+                          BuildCache cache, PrintStream out, long debounceMillis) {
+        inputFile = inputFile.getAbsoluteFile();
+        if (inputFile.isDirectory()) {
+            directory = inputFile;
+            watchedFileName = null;
+        } else {
+            directory = inputFile.getParentFile();
+            watchedFileName = inputFile.getName();
+        }
+
+        this.mode = mode;
+        this.optimizations = optimizations;
+        this.cache = cache;
+        this.out = out;
+        this.debounceMillis = debounceMillis;
+    }
+
+    /**
+     * Recompiles changed files until the thread is interrupted.
+     */
+    public void watch() throws IOException {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            directory.toPath().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            out.println("Watching " + (watchedFileName == null ? directory : new File(directory, watchedFileName))
+                    + " for changes");
+
+            Set<String> changedFileNames = new TreeSet<>();
+            while (true) {
+                // block for the first change, then collect changes until it goes quiet
+                WatchKey key;
+                try {
+                    key = watchService.take();
+                    while (key != null) {
+                        collectChanges(key, changedFileNames);
+                        if (!key.reset()) {
+                            out.println("Can no longer watch " + directory);
+                            return;
+                        }
+                        key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                for (String fileName : changedFileNames) {
+                    recompile(new File(directory, fileName));
+                }
+                changedFileNames.clear();
+            }
+        }
+    }
+
+    private void collectChanges(WatchKey key, Set<String> changedFileNames) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost, so recompile everything that is watched
+                String[] fileNames = directory.list();
+                if (fileNames != null) {
+                    for (String fileName : fileNames) {
+                        addIfWatched(fileName, changedFileNames);
+                    }
+                }
+            } else {
+                addIfWatched(((Path) event.context()).toString(), changedFileNames);
+            }
+        }
+    }
+
+    private void addIfWatched(String fileName, Set<String> changedFileNames) {
+        if (watchedFileName == null ? fileName.endsWith(".jack") : fileName.equals(watchedFileName)) {
+            changedFileNames.add(fileName);
+        }
+    }
+
+    private void recompile(File compilerFile) {
+        if (!compilerFile.isFile()) {
+            return; //deleted or renamed away since it changed
+        }
+
+        File outputFile = JackCompiler.outputFile(compilerFile, mode);
+        long start = System.nanoTime();
+        try {
+            JackCompiler.compileFile(compilerFile, outputFile, mode, optimizations, cache);
+            out.println("Compiled " + compilerFile.getName() + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (Exception e) {
+            JackCompiler.reportError(compilerFile, outputFile, e, out);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package def.compiler;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The settings for one compilation, passed to the {@link JackTokenizer} and {@link CompilationEngine}.
+ * Options objects are immutable, so one instance can be shared by any number of compilations running at once.
+ * The {@code withXxx()} methods return a copy with one setting changed.
+ * <p>
+ * No {@link Optimization} is on by default, so that the VM code matches the reference compiler.
+ */
+public final class CompilerOptions {
+
+    /**
+     * Compile to VM code.
+     */
+    public static final CompilerOptions VM = new CompilerOptions(false, false, true, JackTokenizer.MEMORY_MAP_THRESHOLD,
+            Collections.<Optimization>emptySet());
+
+    /**
+     * Output the parse tree in xml.
+     */
+    public static final CompilerOptions XML = VM.withOutputXML(true);
+
+    /**
+     * Output the parse tree in xml, with the symbol table information for each identifier.
+     */
+    public static final CompilerOptions EXTENDED_XML = XML.withExtendedXML(true);
+
+    private final boolean outputXML;
+    private final boolean extendedXML;
+    private final boolean skipComments;
+    private final long memoryMapThreshold;
+    private final Set<Optimization> optimizations;
+
+    private CompilerOptions(boolean outputXML, boolean extendedXML, boolean skipComments, long memoryMapThreshold,
+                            Set<Optimization> optimizations) {
+        this.outputXML = outputXML;
+        this.extendedXML = extendedXML;
+        this.skipComments = skipComments;
+        this.memoryMapThreshold = memoryMapThreshold;
+        this.optimizations = optimizations;
+    }
+
+    /**
+     * @return true to output the parse tree in xml, false to output VM code.
+     */
+    public boolean outputXML() {
+        return outputXML;
+    }
+
+    /**
+     * @return true to add the symbol table information for each identifier to the xml.
+     */
+    public boolean extendedXML() {
+        return extendedXML;
+    }
+
+    /**
+     * @return true if the tokenizer skips comments, false if it returns them as tokens.
+     */
+    public boolean skipComments() {
+        return skipComments;
+    }
+
+    /**
+     * @return the size in bytes from which input files are memory mapped instead of read into memory.
+     */
+    public long memoryMapThreshold() {
+        return memoryMapThreshold;
+    }
+
+    /**
+     * @return the optimizations applied to the VM code.
+     */
+    public Set<Optimization> optimizations() {
+        return optimizations;
+    }
+
+    /**
+     * @return true if the given optimization is applied to the VM code.
+     */
+    public boolean optimizes(Optimization optimization) {
+        return optimizations.contains(optimization);
+    }
+
+    public CompilerOptions withOutputXML(boolean outputXML) {
+        return new CompilerOptions(outputXML, extendedXML, skipComments, memoryMapThreshold, optimizations);
+    }
+
+    public CompilerOptions withExtendedXML(boolean extendedXML) {
+        return new CompilerOptions(outputXML, extendedXML, skipComments, memoryMapThreshold, optimizations);
+    }
+
+    public CompilerOptions withSkipComments(boolean skipComments) {
+        return new CompilerOptions(outputXML, extendedXML, skipComments, memoryMapThreshold, optimizations);
+    }
+
+    public CompilerOptions withMemoryMapThreshold(long memoryMapThreshold) {
+        return new CompilerOptions(outputXML, extendedXML, skipComments, memoryMapThreshold, optimizations);
+    }
+
+    public CompilerOptions withOptimizations(Set<Optimization> optimizations) {
+        Set<Optimization> copy = EnumSet.noneOf(Optimization.class);
+        copy.addAll(optimizations);
+        return new CompilerOptions(outputXML, extendedXML, skipComments, memoryMapThreshold,
+                Collections.unmodifiableSet(copy));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder string = new StringBuilder();
+        string.append(outputXML ? (extendedXML ? "extended-xml" : "xml") : "vm").append(skipComments ? "" : ",comments")
+                .append(",mmap>=").append(memoryMapThreshold);
+        for (Optimization optimization : optimizations) {
+            string.append(',').append(optimization.tagName());
+        }
+        return string.toString();
+    }
+
+    /**
+     * The optimizations the compiler can make to the VM code.  Only the {@link #isSafe() safe} ones are sure not to
+     * change what a program does.
+     */
+    public enum Optimization {
+        /**
+         * Evaluate operations on constants at compile time.
+         */
+        FOLD_CONSTANTS("fold-constants", true),
+        /**
+         * Multiply and divide by cheap constants with additions instead of calls to Math.
+         */
+        REDUCE_STRENGTH("reduce-strength", true),
+        /**
+         * Rewrite short runs of VM commands with the {@link PeepholeRule}s.
+         */
+        PEEPHOLE("peephole", true),
+        /**
+         * Leave out statements and VM commands that can never run, and labels that nothing jumps to.
+         */
+        ELIMINATE_DEAD_CODE("eliminate-dead-code", true),
+        /**
+         * Build each distinct string literal of a class once, into a static variable, when it is first used.  Every
+         * use of the literal then gives the same String object, so a program that changes or disposes of a literal's
+         * string sees the change at the literal's next use.
+         */
+        POOL_STRINGS("pool-strings", false),
+        /**
+         * Evaluate the operands of +, *, &amp;, |, =, &lt;, and &gt; that need the deeper stack first, where the order
+         * cannot change the result.
+         */
+        ORDER_OPERANDS("order-operands", true),
+        /**
+         * Test loop conditions at the bottom of the loop, and lay out if statements and conditions so that they need
+         * as few jumps and {@code not}s as possible.
+         */
+        LAYOUT_BRANCHES("layout-branches", true),
+        /**
+         * Parse expressions with the precedence of operators of other languages, instead of from left to right as
+         * Jack does: * and / before + and -, before the comparisons, before &amp;, before |.  This changes the meaning
+         * of expressions like {@code 1 + 2 * 3}, and is meant for programs written for it.
+         */
+        OPERATOR_PRECEDENCE("precedence", false),
+        /**
+         * Stop evaluating the conditions of if and while statements as soon as their value is known, on &amp; and
+         * on | between booleans.  The operand that is not evaluated does not call the subroutines it would have.
+         */
+        SHORT_CIRCUIT("short-circuit", false);
+
+        private final String tagName;
+        private final boolean safe;
+
+        Optimization(String tagName, boolean safe) {
+            this.tagName = tagName;
+            this.safe = safe;
+        }
+
+        /**
+         * @return the name of the optimization on the command line, without the leading "--".
+         */
+        public String tagName() {
+            return tagName;
+        }
+
+        /**
+         * @return true if the optimization does not change what any program does.  -O only makes safe optimizations.
+         */
+        public boolean isSafe() {
+            return safe;
+        }
+    }
+}
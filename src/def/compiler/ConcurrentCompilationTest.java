@@ -0,0 +1,123 @@
+package def.compiler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compiles the Test1 and Test2 programs on many threads at once, in every mode,
+ * and checks that each output is byte for byte the same as compiling it alone.
+ */
+public class ConcurrentCompilationTest {
+    private static final int ROUNDS = 4;
+    private static final JackCompiler.Mode[] MODES = {JackCompiler.Mode.TOKENIZE, JackCompiler.Mode.PARSE,
+            JackCompiler.Mode.EXTENDED_PARSE, JackCompiler.Mode.COMPILE};
+
+    private File outputDirectory;
+
+    @Before
+    public void createOutputDirectory() throws Exception {
+        outputDirectory = Files.createTempDirectory("jack-concurrent").toFile();
+    }
+
+    @After
+    public void deleteOutputDirectory() {
+        for (File file : outputDirectory.listFiles()) {
+            file.delete();
+        }
+        outputDirectory.delete();
+    }
+
+    @Test
+    public void compileTestProgramsConcurrently() throws Exception {
+        List<File> jackFiles = new ArrayList<>();
+        for (String testDirectory : new String[]{"Test1", "Test2"}) {
+            File[] programs = new File(testDirectory).listFiles();
+            assertTrue("missing test programs in " + testDirectory, programs != null && programs.length > 0);
+            Arrays.sort(programs);
+
+            for (File program : programs) {
+                File[] files = program.listFiles(new FilenameFilter() {
+                    @Override
+                    public boolean accept(File dir, String name) {
+                        return name.endsWith(".jack");
+                    }
+                });
+                if (files != null) {
+                    Arrays.sort(files);
+                    jackFiles.addAll(Arrays.asList(files));
+                }
+            }
+        }
+
+        // the expected outputs, compiled one at a time
+        List<File> inputs = new ArrayList<>();
+        List<JackCompiler.Mode> modes = new ArrayList<>();
+        List<byte[]> expectedOutputs = new ArrayList<>();
+        int id = 0;
+        for (File jackFile : jackFiles) {
+            for (JackCompiler.Mode mode : MODES) {
+                File output = new File(outputDirectory, "expected" + id++);
+                try {
+                    JackCompiler.compileFile(jackFile, output, mode);
+                } catch (RuntimeException e) {
+                    // programs like ExpressionLessSquare don't compile to VM code, skip them
+                    continue;
+                }
+
+                inputs.add(jackFile);
+                modes.add(mode);
+                expectedOutputs.add(Files.readAllBytes(output.toPath()));
+            }
+        }
+
+        // every compilation of every round at once, all released together
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<byte[]>> actualOutputs = new ArrayList<>();
+
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int i = 0; i < inputs.size(); i++) {
+                    final File input = inputs.get(i);
+                    final JackCompiler.Mode mode = modes.get(i);
+                    final File output = new File(outputDirectory, "actual" + round + "_" + i);
+
+                    actualOutputs.add(executor.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws Exception {
+                            start.await();
+                            JackCompiler.compileFile(input, output, mode);
+                            return Files.readAllBytes(output.toPath());
+                        }
+                    }));
+                }
+            }
+
+            start.countDown();
+
+            for (int i = 0; i < actualOutputs.size(); i++) {
+                int expected = i % inputs.size();
+                assertArrayEquals("Output differs for " + inputs.get(expected) + " in mode " + modes.get(expected),
+                        expectedOutputs.get(expected), actualOutputs.get(i).get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
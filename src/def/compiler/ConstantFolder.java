@@ -0,0 +1,153 @@
+package def.compiler;
+
+import def.compiler.SyntaxTree.BinaryOperation;
+import def.compiler.SyntaxTree.Expression;
+import def.compiler.SyntaxTree.IntegerConstant;
+import def.compiler.SyntaxTree.KeywordConstant;
+import def.compiler.SyntaxTree.NodeType;
+import def.compiler.SyntaxTree.Parentheses;
+import def.compiler.SyntaxTree.UnaryOperation;
+
+/**
+ * Evaluates operations on constants at compile time, with the 16 bit two's complement arithmetic of the Hack platform.
+ * <p>
+ * Integer constants, {@code true} (-1), {@code false} and {@code null} (0) are constants, and so is any operation
+ * whose operands are all constants.  Jack applies operators strictly from left to right, so {@code 2 * 3 + x} folds
+ * to {@code 6 + x}, but {@code x + 2 * 3} is {@code (x + 2) * 3} and does not fold.  Runs of additions and
+ * subtractions of constants are the exception: {@code x + 1 - 3} folds to {@code x - 2}, since 16 bit addition
+ * is associative.
+ * <p>
+ * Divisions by zero are left alone, so that they still fail at run time, and so are divisions of -32768, which the
+ * OS cannot divide.  The folded constants may be negative; the {@link VMEmitter} pushes them with {@code neg} or
+ * {@code not}.
+ */
+public class ConstantFolder extends TreeRewriter {
+
+    @Override
+    public Expression rewriteExpression(Expression expression) {
+        // fold the operands first
+        expression = super.rewriteExpression(expression);
+
+        switch (expression.nodeType()) {
+            case PARENTHESES:
+                Expression inner = ((Parentheses) expression).expression;
+                if (isConstant(inner)) {
+                    return inner;
+                }
+                break;
+            case UNARY_OPERATION:
+                UnaryOperation unaryOperation = (UnaryOperation) expression;
+                if (isConstant(unaryOperation.operand)) {
+                    int operand = valueOf(unaryOperation.operand);
+                    return new IntegerConstant(unaryOperation.operator == '-' ? (short) -operand : (short) ~operand);
+                }
+                break;
+            case BINARY_OPERATION:
+                return foldBinaryOperation((BinaryOperation) expression);
+            default:
+                break;
+        }
+
+        return expression;
+    }
+
+    private Expression foldBinaryOperation(BinaryOperation operation) {
+        if (isConstant(operation.left) && isConstant(operation.right)) {
+            int left = valueOf(operation.left);
+            int right = valueOf(operation.right);
+
+            switch (operation.operator) {
+                case '+':
+                    return new IntegerConstant((short) (left + right));
+                case '-':
+                    return new IntegerConstant((short) (left - right));
+                case '*':
+                    return new IntegerConstant((short) (left * right));
+                case '/':
+                    if (right != 0 && left != Short.MIN_VALUE && right != Short.MIN_VALUE) {
+                        return new IntegerConstant((short) (left / right));
+                    }
+                    break;
+                case '&':
+                    return new IntegerConstant(left & right);
+                case '|':
+                    return new IntegerConstant(left | right);
+                case '<':
+                    return new IntegerConstant(left < right ? -1 : 0);
+                case '>':
+                    return new IntegerConstant(left > right ? -1 : 0);
+                case '=':
+                    return new IntegerConstant(left == right ? -1 : 0);
+            }
+            return operation;
+        }
+
+        // (x + a) - b is x + (a - b)
+        Expression left = unwrap(operation.left);
+        if (isAddition(operation) && isConstant(operation.right) && left.nodeType() == NodeType.BINARY_OPERATION
+                && isAddition((BinaryOperation) left) && isConstant(((BinaryOperation) left).right)) {
+            BinaryOperation leftOperation = (BinaryOperation) left;
+            int sum = (short) (signedValueOf(leftOperation) + signedValueOf(operation));
+
+            if (sum == 0) {
+                return leftOperation.left;
+            } else if (sum > 0 || sum == Short.MIN_VALUE) {
+                return new BinaryOperation('+', leftOperation.left, new IntegerConstant(sum));
+            } else {
+                return new BinaryOperation('-', leftOperation.left, new IntegerConstant(-sum));
+            }
+        }
+
+        return operation;
+    }
+
+    private static boolean isAddition(BinaryOperation operation) {
+        return operation.operator == '+' || operation.operator == '-';
+    }
+
+    // the constant added by x + c or x - c
+    private static int signedValueOf(BinaryOperation addition) {
+        int value = valueOf(addition.right);
+        return addition.operator == '+' ? value : -value;
+    }
+
+    /**
+     * @return the expression inside any parentheses around it.
+     */
+    static Expression unwrap(Expression expression) {
+        while (expression.nodeType() == NodeType.PARENTHESES) {
+            expression = ((Parentheses) expression).expression;
+        }
+        return expression;
+    }
+
+    /**
+     * @return true if the expression is an integer constant or one of {@code true}, {@code false}, or {@code null}.
+     */
+    static boolean isConstant(Expression expression) {
+        switch (expression.nodeType()) {
+            case INTEGER_CONSTANT:
+                return true;
+            case KEYWORD_CONSTANT:
+                return ((KeywordConstant) expression).keyWord != JackTokenizer.KeyWord.THIS;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the value of a constant expression, as a 16 bit signed number.
+     */
+    static int valueOf(Expression constant) {
+        if (constant.nodeType() == NodeType.INTEGER_CONSTANT) {
+            return ((IntegerConstant) constant).value;
+        }
+
+        switch (((KeywordConstant) constant).keyWord) {
+            case TRUE:
+                return -1;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package def.compiler;
+
+import def.compiler.SyntaxTree.Expression;
+import def.compiler.SyntaxTree.IfStatement;
+import def.compiler.SyntaxTree.Statement;
+import def.compiler.SyntaxTree.WhileStatement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Removes statements that can never run: those after a return, or after a loop that never ends, and the branches of
+ * if and while statements whose conditions are constants.
+ * <p>
+ * A condition is only true if it is -1, as in the code the reference compiler generates, so {@code if (1)} never runs
+ * its statements.  Conditions in parentheses, such as {@code while ((false))}, are constants too, without constant
+ * folding.  Jack has no break, so {@code while (true)} only ends by returning.
+ */
+public class DeadCodeEliminator extends TreeRewriter {
+
+    @Override
+    public List<Statement> rewriteStatements(List<Statement> statements) {
+        List<Statement> rewrittenStatements = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (int i = 0; i < statements.size(); i++) {
+            Statement rewritten = rewriteStatement(statements.get(i));
+
+            List<Statement> branch = constantBranchOf(rewritten);
+            if (branch != null) {
+                rewrittenStatements.addAll(branch);
+                changed = true;
+            } else {
+                rewrittenStatements.add(rewritten);
+                changed |= rewritten != statements.get(i);
+            }
+
+            if (!rewrittenStatements.isEmpty() && neverCompletes(rewrittenStatements.get(rewrittenStatements.size() - 1))) {
+                // the rest can not be reached
+                changed |= i < statements.size() - 1;
+                break;
+            }
+        }
+
+        return changed ? rewrittenStatements : statements;
+    }
+
+    // the statements that replace an if or while statement with a constant condition, null if there are none
+    private static List<Statement> constantBranchOf(Statement statement) {
+        switch (statement.nodeType()) {
+            case IF:
+                IfStatement ifStatement = (IfStatement) statement;
+                Expression ifCondition = ConstantFolder.unwrap(ifStatement.condition);
+                if (!ConstantFolder.isConstant(ifCondition)) {
+                    return null;
+                }
+                if (isTrue(ifCondition)) {
+                    return ifStatement.thenStatements;
+                }
+                return ifStatement.elseStatements != null ? ifStatement.elseStatements
+                        : Collections.<Statement>emptyList();
+            case WHILE:
+                Expression condition = ConstantFolder.unwrap(((WhileStatement) statement).condition);
+                // a loop that never ends stays
+                if (ConstantFolder.isConstant(condition) && !isTrue(condition)) {
+                    return Collections.emptyList();
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    // true if control never goes on to the statement after this one
+    private static boolean neverCompletes(Statement statement) {
+        switch (statement.nodeType()) {
+            case RETURN:
+                return true;
+            case IF:
+                IfStatement ifStatement = (IfStatement) statement;
+                return ifStatement.elseStatements != null && neverCompletes(ifStatement.thenStatements)
+                        && neverCompletes(ifStatement.elseStatements);
+            case WHILE:
+                Expression condition = ConstantFolder.unwrap(((WhileStatement) statement).condition);
+                return ConstantFolder.isConstant(condition) && isTrue(condition);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean neverCompletes(List<Statement> statements) {
+        return !statements.isEmpty() && neverCompletes(statements.get(statements.size() - 1));
+    }
+
+    private static boolean isTrue(Expression constant) {
+        return ConstantFolder.valueOf(constant) == -1;
+    }
+}
@@ -0,0 +1,246 @@
+package def.compiler;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assembles Hack assembly into the 16 bit words of the Hack ROM, in memory.
+ * <p>
+ * Instructions are given one at a time, by the {@link AsmWriter} or from the lines of a .asm file.  Each is encoded as
+ * soon as it is given, into a {@code short[]}, except for an A-instruction with a symbol, whose word is left to
+ * {@link #assemble()}, once every label is known.  As in the reference assembler, a symbol that is not a label is a
+ * variable, and variables get the addresses from 16 up in the order they first appear.
+ */
+public class HackAssembler {
+    private static final int FIRST_VARIABLE = 16;
+    private static final Map<String, Integer> PREDEFINED_SYMBOLS = new HashMap<>();
+    private static final Map<String, Integer> COMPUTATIONS = new HashMap<>();
+    private static final String[] JUMPS = {"", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+
+    static {
+        String[] pointers = {"SP", "LCL", "ARG", "THIS", "THAT"};
+        for (int i = 0; i < pointers.length; i++) {
+            PREDEFINED_SYMBOLS.put(pointers[i], i);
+        }
+        for (int i = 0; i < 16; i++) {
+            PREDEFINED_SYMBOLS.put("R" + i, i);
+        }
+        PREDEFINED_SYMBOLS.put("SCREEN", 16384);
+        PREDEFINED_SYMBOLS.put("KBD", 24576);
+
+        // the a bit and the 6 c bits of each computation with A, the same with M sets the a bit
+        String[][] computations = {{"0", "0101010"}, {"1", "0111111"}, {"-1", "0111010"}, {"D", "0001100"},
+                {"A", "0110000"}, {"!D", "0001101"}, {"!A", "0110001"}, {"-D", "0001111"}, {"-A", "0110011"},
+                {"D+1", "0011111"}, {"A+1", "0110111"}, {"D-1", "0001110"}, {"A-1", "0110010"}, {"D+A", "0000010"},
+                {"D-A", "0010011"}, {"A-D", "0000111"}, {"D&A", "0000000"}, {"D|A", "0010101"}};
+        for (String[] computation : computations) {
+            int bits = Integer.parseInt(computation[1], 2);
+            COMPUTATIONS.put(computation[0], bits);
+            if (computation[0].contains("A")) {
+                COMPUTATIONS.put(computation[0].replace('A', 'M'), bits | 1 << 6);
+            }
+        }
+        // the operands of + & | can be written either way around
+        for (String operator : new String[] {"+", "&", "|"}) {
+            COMPUTATIONS.put("A" + operator + "D", COMPUTATIONS.get("D" + operator + "A"));
+            COMPUTATIONS.put("M" + operator + "D", COMPUTATIONS.get("D" + operator + "M"));
+        }
+        COMPUTATIONS.put("1+D", COMPUTATIONS.get("D+1"));
+        COMPUTATIONS.put("1+A", COMPUTATIONS.get("A+1"));
+        COMPUTATIONS.put("1+M", COMPUTATIONS.get("M+1"));
+    }
+
+    private short[] words;
+    private int wordCount;
+    // for each word left to assemble(), its index and the index of its symbol
+    private int[] symbolicWords;
+    private int[] symbolicWordSymbols;
+    private int symbolicWordCount;
+    // each symbol, with the address of its label, or -1 if it has none
+    private final Map<String, Integer> symbolIndexes;
+    private int[] labelAddresses;
+    // each C-instruction already encoded
+    private final Map<String, Short> encodedInstructions;
+
+    public HackAssembler() {
+        words = new short[1024];
+        symbolicWords = new int[256];
+        symbolicWordSymbols = new int[256];
+        symbolIndexes = new HashMap<>();
+        labelAddresses = new int[256];
+        encodedInstructions = new HashMap<>();
+    }
+
+    /**
+     * Puts a label at the address of the next instruction.
+     * @param label The name of the label, without the parentheses.
+     */
+    public void label(String label) {
+        int symbol = symbolIndexOf(label);
+        if (labelAddresses[symbol] != -1) {
+            throw new CompilationEngine.CompilationException("The label " + label + " is defined twice");
+        }
+        labelAddresses[symbol] = wordCount;
+    }
+
+    /**
+     * Adds an A- or C-instruction, in the Hack assembly syntax without spaces or comments.
+     */
+    public void instruction(String instruction) {
+        if (instruction.charAt(0) == '@') {
+            String value = instruction.substring(1);
+            if (Character.isDigit(value.charAt(0))) {
+                int constant = Integer.parseInt(value);
+                if (constant > Short.MAX_VALUE) {
+                    throw new CompilationEngine.CompilationException("The constant " + value + " does not fit an A-instruction");
+                }
+                addWord(constant);
+            } else if (PREDEFINED_SYMBOLS.containsKey(value)) {
+                addWord(PREDEFINED_SYMBOLS.get(value));
+            } else {
+                if (symbolicWordCount == symbolicWords.length) {
+                    symbolicWords = Arrays.copyOf(symbolicWords, symbolicWordCount * 2);
+                    symbolicWordSymbols = Arrays.copyOf(symbolicWordSymbols, symbolicWordCount * 2);
+                }
+                symbolicWords[symbolicWordCount] = wordCount;
+                symbolicWordSymbols[symbolicWordCount] = symbolIndexOf(value);
+                symbolicWordCount++;
+                addWord(0);
+            }
+        } else {
+            Short word = encodedInstructions.get(instruction);
+            if (word == null) {
+                word = encode(instruction);
+                encodedInstructions.put(instruction, word);
+            }
+            addWord(word);
+        }
+    }
+
+    /**
+     * Adds a line of a .asm file: a label, an instruction, or nothing but spaces and a comment.
+     */
+    public void line(String line) {
+        int commentStart = line.indexOf("//");
+        if (commentStart != -1) {
+            line = line.substring(0, commentStart);
+        }
+        line = line.replaceAll("\\s", "");
+        if (line.isEmpty()) {
+            return;
+        }
+
+        if (line.charAt(0) == '(') {
+            label(line.substring(1, line.length() - 1));
+        } else {
+            instruction(line);
+        }
+    }
+
+    /**
+     * Fills in the words of the A-instructions with symbols.
+     * @return the words of the ROM image, one for each instruction.
+     */
+    public short[] assemble() {
+        int[] variableAddresses = new int[symbolIndexes.size()];
+        Arrays.fill(variableAddresses, -1);
+        int nextVariable = FIRST_VARIABLE;
+
+        for (int i = 0; i < symbolicWordCount; i++) {
+            int symbol = symbolicWordSymbols[i];
+            int address = labelAddresses[symbol];
+            if (address == -1) {
+                if (variableAddresses[symbol] == -1) {
+                    variableAddresses[symbol] = nextVariable++;
+                }
+                address = variableAddresses[symbol];
+            }
+            words[symbolicWords[i]] = (short) address;
+        }
+
+        return Arrays.copyOf(words, wordCount);
+    }
+
+    /**
+     * @return the number of distinct symbols, labels and variables, seen so far.
+     */
+    public int symbolCount() {
+        return symbolIndexes.size();
+    }
+
+    /**
+     * Writes a ROM image in the .hack format, one word per line as 16 binary digits.
+     * @param words The words of the image.
+     * @param hackFile The file to write.
+     */
+    public static void writeHack(short[] words, File hackFile) throws FileNotFoundException {
+        PrintWriter writer = new PrintWriter(hackFile);
+        char[] digits = new char[16];
+        for (short word : words) {
+            for (int bit = 0; bit < 16; bit++) {
+                digits[bit] = (word & 1 << 15 - bit) != 0 ? '1' : '0';
+            }
+            writer.println(digits);
+        }
+        writer.close();
+    }
+
+    private void addWord(int word) {
+        if (wordCount == Short.MAX_VALUE + 1) {
+            throw new CompilationEngine.CompilationException("The program does not fit the 32K ROM");
+        }
+        if (wordCount == words.length) {
+            words = Arrays.copyOf(words, wordCount * 2);
+        }
+        words[wordCount++] = (short) word;
+    }
+
+    private int symbolIndexOf(String symbol) {
+        Integer index = symbolIndexes.get(symbol);
+        if (index == null) {
+            index = symbolIndexes.size();
+            symbolIndexes.put(symbol, index);
+            if (index == labelAddresses.length) {
+                labelAddresses = Arrays.copyOf(labelAddresses, index * 2);
+            }
+            labelAddresses[index] = -1;
+        }
+        return index;
+    }
+
+    // the word of a C-instruction, dest=comp;jump
+    private static short encode(String instruction) {
+        String dest = "", computation = instruction, jump = "";
+        int equals = computation.indexOf('=');
+        if (equals != -1) {
+            dest = computation.substring(0, equals);
+            computation = computation.substring(equals + 1);
+        }
+        int semicolon = computation.indexOf(';');
+        if (semicolon != -1) {
+            jump = computation.substring(semicolon + 1);
+            computation = computation.substring(0, semicolon);
+        }
+
+        Integer computationBits = COMPUTATIONS.get(computation);
+        int jumpBits = Arrays.asList(JUMPS).indexOf(jump);
+        if (computationBits == null || jumpBits == -1 || !isDestination(dest)) {
+            throw new CompilationEngine.CompilationException("Invalid instruction " + instruction);
+        }
+        int destBits = (dest.contains("A") ? 4 : 0) | (dest.contains("D") ? 2 : 0) | (dest.contains("M") ? 1 : 0);
+        return (short) (0xE000 | computationBits << 6 | destBits << 3 | jumpBits);
+    }
+
+    // true if dest names each of A, M, and D at most once, and nothing else
+    private static boolean isDestination(String dest) {
+        String left = dest;
+        for (String register : new String[] {"A", "M", "D"}) {
+            left = left.replaceFirst(register, "");
+        }
+        return left.isEmpty();
+    }
+}
@@ -0,0 +1,31 @@
+package def.compiler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class HackAssemblerTest {
+    @Test
+    public void assembleLabelsAndVariables() throws Exception {
+        HackAssembler assembler = new HackAssembler();
+        for (String line : new String[] {"// counts down from R0", "(LOOP)", "  @R0", "  D=M // the count",
+                "  @END", "  D;JEQ", "  @counter", "  M=M+1", "  @R0", "  M=M-1", "  @LOOP", "  0;JMP", "(END)",
+                "  @END", "  0;JMP"}) {
+            assembler.line(line);
+        }
+
+        assertArrayEquals(new short[] {
+                0b0000000000000000,
+                (short) 0b1111110000010000,
+                0b0000000000001010,
+                (short) 0b1110001100000010,
+                0b0000000000010000,
+                (short) 0b1111110111001000,
+                0b0000000000000000,
+                (short) 0b1111110010001000,
+                0b0000000000000000,
+                (short) 0b1110101010000111,
+                0b0000000000001010,
+                (short) 0b1110101010000111}, assembler.assemble());
+    }
+}
@@ -0,0 +1,149 @@
+package def.compiler;
+
+import java.util.Arrays;
+
+/**
+ * Interns identifier names.  Each distinct name gets one canonical {@link String} and a dense
+ * integer id (0, 1, 2, ... in the order the names are first seen), so that later stages can
+ * compare and look up identifiers by id instead of hashing strings again.
+ * <p>
+ * Names can be interned straight from a character buffer, which only allocates the first
+ * time a name is seen.  A pool is not thread safe; each compilation uses its own.
+ */
+public class IdentifierPool {
+    private static final int INITIAL_CAPACITY = 64;
+
+    // open addressing table of id + 1, 0 is an empty slot
+    private int[] slots;
+    private String[] names;
+    private int[] hashes;
+    private int size;
+
+    /**
+     * Creates a new empty pool.
+     */
+    public IdentifierPool() {
+        slots = new int[INITIAL_CAPACITY * 2];
+        names = new String[INITIAL_CAPACITY];
+        hashes = new int[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    /**
+     * Interns the name held in part of a character buffer.
+     * @param chars The buffer holding the name.
+     * @param offset The index of the first character of the name.
+     * @param count The length of the name.
+     * @return The id of the name.
+     */
+    public int intern(char[] chars, int offset, int count) {
+        int hash = 0;
+        for (int i = 0; i < count; i++) {
+            hash = 31 * hash + chars[offset + i];
+        }
+
+        int slot = hash & (slots.length - 1);
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && matches(names[id], chars, offset, count)) {
+                return id;
+            }
+            slot = (slot + 1) & (slots.length - 1);
+        }
+
+        return add(new String(chars, offset, count), hash, slot);
+    }
+
+    /**
+     * Interns a name.
+     * @param name The name to intern.
+     * @return The id of the name.
+     */
+    public int intern(String name) {
+        int slot = find(name);
+        if (slots[slot] != 0) {
+            return slots[slot] - 1;
+        }
+
+        return add(name, name.hashCode(), slot);
+    }
+
+    /**
+     * Finds the id of a name, without adding it to the pool.
+     * @param name The name to look up.
+     * @return The id of the name, or -1 if it has never been interned.
+     */
+    public int idOf(String name) {
+        return slots[find(name)] - 1;
+    }
+
+    /**
+     * Returns the canonical instance of the name with the given id.
+     * @param id The id of an interned name.
+     * @return The name.
+     */
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return The number of distinct names in the pool, which is also one more than the largest id.
+     */
+    public int size() {
+        return size;
+    }
+
+    private int find(String name) {
+        int hash = name.hashCode();
+        int slot = hash & (slots.length - 1);
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && names[id].equals(name)) {
+                break;
+            }
+            slot = (slot + 1) & (slots.length - 1);
+        }
+        return slot;
+    }
+
+    private int add(String name, int hash, int slot) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+
+        int id = size++;
+        names[id] = name;
+        hashes[id] = hash;
+        slots[slot] = id + 1;
+
+        // keep the table at most half full
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & (slots.length - 1);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (slots.length - 1);
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    private static boolean matches(String name, char[] chars, int offset, int count) {
+        if (name.length() != count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (name.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
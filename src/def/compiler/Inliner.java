@@ -0,0 +1,252 @@
+package def.compiler;
+
+import def.compiler.VMCommand.Type;
+import def.compiler.VMWriter.Segment;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces the calls of a whole program to trivial subroutines with their bodies.
+ * <p>
+ * A subroutine is trivial when it has no locals, and only returns an expression of constants, its arguments, the
+ * fields of its object, and the statics of its class, with at most {@link #MAX_INLINE_COMMANDS} commands, such as a
+ * getter.  At each call, the arguments already on the stack are popped into {@code temp}, and {@code this} is
+ * reached through {@code pointer 1} and {@code that}, so the caller's own {@code this} is untouched.  A call saves
+ * and restores {@code that}, so a caller may keep it across one, and the inlined code keeps the caller's
+ * {@code pointer 1} in the {@code temp} after the arguments and puts it back: a getter of a field becomes
+ * {@code push pointer 1; pop temp 0; pop pointer 1; push that N; push temp 0; pop pointer 1}.  Like the compiler's
+ * own code, the inlined code assumes that {@code temp} is not read across a call, since the called subroutine may
+ * change it.
+ * <p>
+ * A static of another class can not be reached by name, so a subroutine that reads statics is only inlined into
+ * its own class.  The subroutines themselves are kept, as they may be called from outside of the program; the
+ * {@link TreeShaker} drops the ones no longer called.
+ */
+public class Inliner {
+    /**
+     * The longest expression that is inlined.  A VM call and return take more than 80 Hack instructions, so even
+     * an expression stashing all its arguments in temp is faster inlined, and no bigger than the call.
+     */
+    public static final int MAX_INLINE_COMMANDS = 4;
+
+    // temp 0 to temp 7
+    private static final int TEMP_SIZE = 8;
+
+    // the expression returned by a trivial subroutine
+    private static class Body {
+        final String className;
+        final boolean method;
+        final List<VMCommand> expression;
+        // the number of arguments the expression needs, counting the object of a method
+        final int argumentCount;
+        final boolean readsStatics;
+
+        Body(String className, boolean method, List<VMCommand> expression) {
+            this.className = className;
+            this.method = method;
+            this.expression = expression;
+
+            int argumentCount = method ? 1 : 0;
+            boolean readsStatics = false;
+            for (VMCommand command : expression) {
+                if (command.isPush(Segment.ARGUMENT)) {
+                    argumentCount = Math.max(argumentCount, command.number + 1);
+                }
+                readsStatics |= command.isPush(Segment.STATIC);
+            }
+            this.argumentCount = argumentCount;
+            this.readsStatics = readsStatics;
+        }
+
+        boolean readsObject() {
+            for (VMCommand command : expression) {
+                if (command.isPush(Segment.THIS) || command.isPush(Segment.POINTER)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int uses(int argument) {
+            int uses = 0;
+            for (VMCommand command : expression) {
+                if (command.isPush(Segment.ARGUMENT) && command.number == argument) {
+                    uses++;
+                }
+            }
+            return uses;
+        }
+    }
+
+    private Inliner() {
+    }
+
+    /**
+     * Inlines the calls to the trivial subroutines of a program.
+     * @param program The program to inline, changed in place.
+     * @param out Where to print how many calls were inlined.
+     */
+    public static void inlineProgram(VMProgram program, PrintStream out) {
+        Map<String, Body> bodies = new HashMap<>();
+        for (Map.Entry<String, List<VMCommand>> function : program.functions().entrySet()) {
+            Body body = trivialBody(function.getValue());
+            if (body != null) {
+                bodies.put(function.getKey(), body);
+            }
+        }
+
+        int inlinedCount = 0;
+        for (String className : program.classNames()) {
+            List<VMCommand> commands = program.commandsOf(className);
+            List<VMCommand> inlined = new ArrayList<>(commands.size());
+            for (VMCommand command : commands) {
+                List<VMCommand> replacement = null;
+                if (command.type == Type.CALL && bodies.containsKey(command.name)) {
+                    replacement = inline(bodies.get(command.name), className, command.number);
+                }
+
+                if (replacement != null) {
+                    inlined.addAll(replacement);
+                    inlinedCount++;
+                } else {
+                    inlined.add(command);
+                }
+            }
+            program.addClass(className, inlined);
+        }
+
+        out.println("Inlined " + inlinedCount + " calls to " + bodies.size() + " trivial subroutines");
+    }
+
+    /**
+     * @param function The commands of a function, starting with its function command.
+     * @return what the function returns if it is trivial, or null if it is not.
+     */
+    private static Body trivialBody(List<VMCommand> function) {
+        VMCommand declaration = function.get(0);
+        if (declaration.number != 0 || function.get(function.size() - 1).type != Type.RETURN) {
+            return null;
+        }
+
+        int start = 1;
+        boolean method = function.size() > 3 && function.get(1).equals(VMCommand.push(Segment.ARGUMENT, 0))
+                && function.get(2).equals(VMCommand.pop(Segment.POINTER, 0));
+        if (method) {
+            start = 3;
+        }
+        List<VMCommand> expression = function.subList(start, function.size() - 1);
+        if (expression.isEmpty() || expression.size() > MAX_INLINE_COMMANDS) {
+            return null;
+        }
+
+        // the expression has to leave exactly one value on the stack, without reading anything but its inputs
+        int depth = 0;
+        for (VMCommand command : expression) {
+            if (command.type == Type.PUSH) {
+                if (!(command.segment == Segment.CONSTANT || command.segment == Segment.ARGUMENT
+                        || command.segment == Segment.STATIC || method && command.segment == Segment.THIS
+                        || method && command.isPush(Segment.POINTER) && command.number == 0)) {
+                    return null;
+                }
+                depth++;
+            } else if (command.type == Type.ARITHMETIC) {
+                if (!isUnary(command)) {
+                    depth--;
+                }
+                if (depth < 1) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        if (depth != 1) {
+            return null;
+        }
+
+        String name = declaration.name;
+        return new Body(name.substring(0, name.indexOf('.')), method, new ArrayList<>(expression));
+    }
+
+    /**
+     * @param body The subroutine being called.
+     * @param callerClass The class of the call.
+     * @param argumentCount The number of arguments on the stack.
+     * @return the commands that replace the call, or null if the call can not be inlined.
+     */
+    private static List<VMCommand> inline(Body body, String callerClass, int argumentCount) {
+        // the caller's pointer 1 is kept in the temp after the arguments
+        if (argumentCount < body.argumentCount || argumentCount > (body.readsObject() ? TEMP_SIZE - 1 : TEMP_SIZE)
+                || body.readsStatics && !body.className.equals(callerClass)) {
+            return null;
+        }
+
+        List<VMCommand> replacement = new ArrayList<>();
+        boolean readsArguments = false;
+        for (int i = 0; i < argumentCount; i++) {
+            readsArguments |= body.uses(i) > 0;
+        }
+
+        if (!readsArguments && !body.readsObject()) {
+            // the arguments are only dropped
+            for (int i = 0; i < argumentCount; i++) {
+                replacement.add(VMCommand.pop(Segment.TEMP, 0));
+            }
+            replacement.addAll(body.expression);
+        } else if (body.method && argumentCount == 1 && !readsArguments) {
+            // a getter, the object is the only argument
+            replacement.add(VMCommand.push(Segment.POINTER, 1));
+            replacement.add(VMCommand.pop(Segment.TEMP, 0));
+            replacement.add(VMCommand.pop(Segment.POINTER, 1));
+            for (VMCommand command : body.expression) {
+                replacement.add(throughThat(command));
+            }
+            replacement.add(VMCommand.push(Segment.TEMP, 0));
+            replacement.add(VMCommand.pop(Segment.POINTER, 1));
+        } else if (!body.method && argumentCount == 1 && body.uses(0) == 1
+                && body.expression.get(0).isPush(Segment.ARGUMENT)) {
+            // the argument is already where the expression pushes it
+            replacement.addAll(body.expression.subList(1, body.expression.size()));
+        } else {
+            for (int i = argumentCount - 1; i >= 0; i--) {
+                replacement.add(VMCommand.pop(Segment.TEMP, i));
+            }
+            if (body.readsObject()) {
+                replacement.add(VMCommand.push(Segment.POINTER, 1));
+                replacement.add(VMCommand.pop(Segment.TEMP, argumentCount));
+                replacement.add(VMCommand.push(Segment.TEMP, 0));
+                replacement.add(VMCommand.pop(Segment.POINTER, 1));
+            }
+            for (VMCommand command : body.expression) {
+                if (command.isPush(Segment.ARGUMENT)) {
+                    replacement.add(VMCommand.push(Segment.TEMP, command.number));
+                } else {
+                    replacement.add(throughThat(command));
+                }
+            }
+            if (body.readsObject()) {
+                replacement.add(VMCommand.push(Segment.TEMP, argumentCount));
+                replacement.add(VMCommand.pop(Segment.POINTER, 1));
+            }
+        }
+        return replacement;
+    }
+
+    // the command that reads the object through pointer 1 instead of pointer 0
+    private static VMCommand throughThat(VMCommand command) {
+        if (command.isPush(Segment.THIS)) {
+            return VMCommand.push(Segment.THAT, command.number);
+        } else if (command.isPush(Segment.POINTER)) {
+            return VMCommand.push(Segment.POINTER, 1);
+        }
+        return command;
+    }
+
+    private static boolean isUnary(VMCommand command) {
+        return command.is(VMWriter.Command.NEG) || command.is(VMWriter.Command.NOT);
+    }
+}
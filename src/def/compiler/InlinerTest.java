@@ -0,0 +1,87 @@
+package def.compiler;
+
+import def.compiler.VMWriter.Command;
+import def.compiler.VMWriter.Segment;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InlinerTest {
+    @Test
+    public void inlineGetter() throws Exception {
+        VMProgram program = new VMProgram();
+        // method int getRight() { return x + size; }
+        program.addClass("Bat", commandsOf(VMCommand.function("Bat.getRight", 0), VMCommand.push(Segment.ARGUMENT, 0),
+                VMCommand.pop(Segment.POINTER, 0), VMCommand.push(Segment.THIS, 0), VMCommand.push(Segment.THIS, 2),
+                VMCommand.arithmetic(Command.ADD), VMCommand.returnCommand()));
+        // let x = bat.getRight();
+        program.addClass("Main", commandsOf(VMCommand.function("Main.main", 1), VMCommand.push(Segment.STATIC, 0),
+                VMCommand.call("Bat.getRight", 1), VMCommand.pop(Segment.LOCAL, 0)));
+
+        Inliner.inlineProgram(program, new PrintStream(new ByteArrayOutputStream()));
+
+        assertEquals(Arrays.asList(VMCommand.function("Main.main", 1), VMCommand.push(Segment.STATIC, 0),
+                VMCommand.push(Segment.POINTER, 1), VMCommand.pop(Segment.TEMP, 0), VMCommand.pop(Segment.POINTER, 1),
+                VMCommand.push(Segment.THAT, 0), VMCommand.push(Segment.THAT, 2), VMCommand.arithmetic(Command.ADD),
+                VMCommand.push(Segment.TEMP, 0), VMCommand.pop(Segment.POINTER, 1), VMCommand.pop(Segment.LOCAL, 0)),
+                program.commandsOf("Main"));
+    }
+
+    @Test
+    public void keepThatOfTheCaller() throws Exception {
+        VMProgram program = new VMProgram();
+        program.addClass("Bat", commandsOf(VMCommand.function("Bat.getRight", 0), VMCommand.push(Segment.ARGUMENT, 0),
+                VMCommand.pop(Segment.POINTER, 0), VMCommand.push(Segment.THIS, 0), VMCommand.push(Segment.THIS, 2),
+                VMCommand.arithmetic(Command.ADD), VMCommand.returnCommand()));
+        // a bat at 2000, and a call between setting that to 3000 and writing to it, which the VM allows
+        program.addClass("Sys", commandsOf(VMCommand.function("Sys.init", 0), VMCommand.push(Segment.CONSTANT, 2000),
+                VMCommand.pop(Segment.POINTER, 1), VMCommand.push(Segment.CONSTANT, 5), VMCommand.pop(Segment.THAT, 0),
+                VMCommand.push(Segment.CONSTANT, 7), VMCommand.pop(Segment.THAT, 2),
+                VMCommand.push(Segment.CONSTANT, 3000), VMCommand.pop(Segment.POINTER, 1),
+                VMCommand.push(Segment.CONSTANT, 2000), VMCommand.call("Bat.getRight", 1), VMCommand.pop(Segment.THAT, 0),
+                VMCommand.push(Segment.CONSTANT, 0), VMCommand.returnCommand()));
+
+        Inliner.inlineProgram(program, new PrintStream(new ByteArrayOutputStream()));
+        VMInterpreter interpreter = new VMInterpreter(program);
+        assertTrue(interpreter.run(1000));
+
+        assertEquals(12, interpreter.memory()[3000]);
+        assertEquals(5, interpreter.memory()[2000]);
+    }
+
+    @Test
+    public void inlineOnlyStaticsOfOwnClass() throws Exception {
+        VMProgram program = new VMProgram();
+        // function int max(int a, int b) { return b - count; }
+        // function int twice() { return Game.max(1, 2); }
+        program.addClass("Game", commandsOf(VMCommand.function("Game.max", 0), VMCommand.push(Segment.ARGUMENT, 1),
+                VMCommand.push(Segment.STATIC, 0), VMCommand.arithmetic(Command.SUB), VMCommand.returnCommand(),
+                VMCommand.function("Game.twice", 0), VMCommand.push(Segment.CONSTANT, 1),
+                VMCommand.push(Segment.CONSTANT, 2), VMCommand.call("Game.max", 2), VMCommand.returnCommand()));
+        // do Game.max(1, 2);
+        List<VMCommand> main = commandsOf(VMCommand.function("Main.main", 0), VMCommand.push(Segment.CONSTANT, 1),
+                VMCommand.push(Segment.CONSTANT, 2), VMCommand.call("Game.max", 2), VMCommand.pop(Segment.TEMP, 0));
+        program.addClass("Main", main);
+
+        Inliner.inlineProgram(program, new PrintStream(new ByteArrayOutputStream()));
+
+        assertEquals(Arrays.asList(VMCommand.function("Game.max", 0), VMCommand.push(Segment.ARGUMENT, 1),
+                VMCommand.push(Segment.STATIC, 0), VMCommand.arithmetic(Command.SUB), VMCommand.returnCommand(),
+                VMCommand.function("Game.twice", 0), VMCommand.push(Segment.CONSTANT, 1),
+                VMCommand.push(Segment.CONSTANT, 2), VMCommand.pop(Segment.TEMP, 1), VMCommand.pop(Segment.TEMP, 0),
+                VMCommand.push(Segment.TEMP, 1), VMCommand.push(Segment.STATIC, 0), VMCommand.arithmetic(Command.SUB),
+                VMCommand.returnCommand()), program.commandsOf("Game"));
+        assertEquals(main, program.commandsOf("Main"));
+    }
+
+    private static List<VMCommand> commandsOf(VMCommand... commands) {
+        return new ArrayList<>(Arrays.asList(commands));
+    }
+}
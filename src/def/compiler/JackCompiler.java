@@ -1,12 +1,27 @@
 package def.compiler;
 
+import def.compiler.CompilerOptions.Optimization;
 import def.compiler.JackTokenizer.TokenType;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by dflor on 7/19/2017.
@@ -30,9 +45,44 @@ import java.util.Scanner;
  * Other ideas include a % operator, bit shifting operators, and improvements to the VMWriter code for efficiency.
  * Also changes that allow the compiler to check if methods from other classes actually exists, and adding scope to methods/variables
  * Maybe including the OS classes if they are not provided.
- * Actually take file names from command line?!
+ *
+ * The file/directory name can be given on the command line, after any tags.  With the -j (--parallel) tag,
+ * the files of a directory are compiled on all cores at once.  With the -i (--incremental) tag, outputs are
+ * kept in a {@link BuildCache} in the source directory, and files that have not changed are not compiled again.
+ * With the --server tag, the compiler becomes a {@link CompileServer} that keeps running between builds, and
+ * the --client tag sends the compile to that server instead of compiling in this JVM.  --stop-server stops it,
+ * and --port=N picks a port other than {@link CompileServer#DEFAULT_PORT}.  With the -w (--watch) tag, the
+ * compiler keeps running after the first compile and a {@link CompileWatcher} recompiles each file when it is saved.
+ * The -O (--optimize) tag turns on every safe {@link CompilerOptions.Optimization} of the VM code, and --name turns
+ * on only the optimization with that name, such as --fold-constants or --pool-strings.
+ * After a directory is compiled, the whole program can be optimized as a {@link VMProgram}: the --inline tag has an
+ * {@link Inliner} replace the calls to trivial subroutines such as getters with their bodies, and the --tree-shake
+ * tag has a {@link TreeShaker} drop the functions the program never calls.  Each --library=DIR tag, such as the
+ * directory of the OS .vm files, adds the classes of DIR to the program and turns on tree shaking; the classes it
+ * uses are written to the compiled directory.  The classes of a whole program build are compiled in memory, and only
+ * the libraries are read from .vm files.  The --asm tag has an {@link AsmWriter} translate the whole program,
+ * which needs the OS as a library, into Hack assembly in Xxx/Xxx.asm for the directory Xxx.  The --hack tag has a
+ * {@link HackAssembler} assemble it in memory into the ROM image Xxx/Xxx.hack, without writing the assembly.
+ * The --run tag runs the program in a {@link VMInterpreter} and prints where it spent its time, pressing the keys
+ * of --keys=KEY@STEP,... and stopping after --max-steps=N commands.  With the --jit tag, a {@link VMJit}
+ * translates the program into JVM bytecode and runs that instead, for long runs.  A build that ends in assembly,
+ * machine code, or a run only writes its .vm files with the --vm tag.
  */
 public class JackCompiler {
+    /**
+     * The version of the compiler.  Change it whenever the compiler output changes, as it is part of the
+     * {@link BuildCache} keys.
+     */
+    public static final String VERSION = "2.1";
+
+    /**
+     * The most VM commands --run runs, if --max-steps does not say.  Programs that wait for keys never halt.
+     */
+    public static final long DEFAULT_MAX_STEPS = 100000000;
+
+    // the number of functions --run prints
+    private static final int PROFILE_LENGTH = 15;
+
     // ALGORITHM:
     // get input file name
     // create output file name and stream
@@ -41,19 +91,25 @@ public class JackCompiler {
     // close output file stream
     public static void main(String[] args) {
 
-        String inputFileName = null, outputFileName = null;
-        File inputFile = null;
-        File[] compilerFiles = null, outputFiles = null;
+        String inputFileName = null;
 
         Mode mode = Mode.COMPILE;
-
-        //get input file name from command line or console input
-        if (args.length > 0) {
-            System.out.println("command line directory/file = " + args[args.length - 1]);
-            //inputFileName = args[args.length - 1];
-
-            if (args[0].charAt(0) == '-') {
-                String tag = args[0];
+        boolean parallel = false;
+        boolean incremental = false;
+        boolean watch = false;
+        Set<Optimization> optimizations = EnumSet.noneOf(Optimization.class);
+        boolean server = false, client = false, stopServer = false;
+        boolean treeShake = false, inline = false, asm = false, hack = false, vm = false;
+        boolean run = false, jit = false;
+        List<long[]> keys = new ArrayList<>();
+        long maxSteps = DEFAULT_MAX_STEPS;
+        List<File> libraries = new ArrayList<>();
+        int port = CompileServer.DEFAULT_PORT;
+
+        //get input file name and tags from command line, or file name from console input
+        for (String arg : args) {
+            if (arg.charAt(0) == '-') {
+                String tag = arg;
 
                 if (tag.equalsIgnoreCase("-t") || tag.equalsIgnoreCase("--tokenize")) {
                     mode = Mode.TOKENIZE;
@@ -61,17 +117,104 @@ public class JackCompiler {
                     mode = Mode.PARSE;
                 } else if (tag.equalsIgnoreCase("-e") || tag.equalsIgnoreCase("--extended-parse")) {
                     mode = Mode.EXTENDED_PARSE;
-                }else if (tag.equalsIgnoreCase("-c") || tag.equalsIgnoreCase("--compile")) {
+                } else if (tag.equalsIgnoreCase("-c") || tag.equalsIgnoreCase("--compile")) {
                     mode = Mode.COMPILE;
+                } else if (tag.equalsIgnoreCase("-j") || tag.equalsIgnoreCase("--parallel")) {
+                    parallel = true;
+                } else if (tag.equalsIgnoreCase("-i") || tag.equalsIgnoreCase("--incremental")) {
+                    incremental = true;
+                } else if (tag.equalsIgnoreCase("-w") || tag.equalsIgnoreCase("--watch")) {
+                    watch = true;
+                } else if (tag.equals("-O") || tag.equalsIgnoreCase("--optimize")) {
+                    for (Optimization optimization : Optimization.values()) {
+                        if (optimization.isSafe()) {
+                            optimizations.add(optimization);
+                        }
+                    }
+                } else if (tag.startsWith("--") && optimizationOf(tag.substring(2)) != null) {
+                    optimizations.add(optimizationOf(tag.substring(2)));
+                } else if (tag.equalsIgnoreCase("--server")) {
+                    server = true;
+                } else if (tag.equalsIgnoreCase("--client")) {
+                    client = true;
+                } else if (tag.equalsIgnoreCase("--stop-server")) {
+                    stopServer = true;
+                } else if (tag.toLowerCase().startsWith("--port=")
+                        && numberOf(tag.substring("--port=".length()), 65535) != -1) {
+                    port = (int) numberOf(tag.substring("--port=".length()), 65535);
+                } else if (tag.equalsIgnoreCase("--tree-shake")) {
+                    treeShake = true;
+                } else if (tag.equalsIgnoreCase("--inline")) {
+                    inline = true;
+                } else if (tag.equalsIgnoreCase("--asm")) {
+                    asm = true;
+                } else if (tag.equalsIgnoreCase("--vm")) {
+                    vm = true;
+                } else if (tag.equalsIgnoreCase("--hack")) {
+                    hack = true;
+                } else if (tag.equalsIgnoreCase("--run")) {
+                    run = true;
+                } else if (tag.equalsIgnoreCase("--jit")) {
+                    jit = true;
+                    run = true;
+                } else if (tag.toLowerCase().startsWith("--keys=")
+                        && keysOf(tag.substring("--keys=".length())) != null) {
+                    keys = keysOf(tag.substring("--keys=".length()));
+                    run = true;
+                } else if (tag.toLowerCase().startsWith("--max-steps=")
+                        && numberOf(tag.substring("--max-steps=".length()), Long.MAX_VALUE) != -1) {
+                    maxSteps = numberOf(tag.substring("--max-steps=".length()), Long.MAX_VALUE);
+                    run = true;
+                } else if (tag.toLowerCase().startsWith("--library=")) {
+                    libraries.add(new File(tag.substring("--library=".length())));
+                    treeShake = true;
                 } else {
                     System.out.println("invalid tag " + tag);
-                    System.out.println("valid tags are -t, -c, -e, -p, --tokenize, --parse, --extended-parse, and --compile");
+                    System.out.println("valid tags are -t, -c, -e, -p, -j, -i, -w, -O, --tokenize, --parse, --extended-parse, --compile, " +
+                            "--parallel, --incremental, --watch, --optimize, --server, --client, --stop-server, --port=N, --inline, --tree-shake, --library=DIR, --asm, --hack, --vm, --run, " +
+                            "--jit, --keys=KEY@STEP,..., and --max-steps=N");
+                    System.out.print("the optimizations made by -O can also be turned on one at a time with");
+                    for (Optimization optimization : Optimization.values()) {
+                        if (optimization.isSafe()) {
+                            System.out.print(" --" + optimization.tagName());
+                        }
+                    }
+                    System.out.println();
+                    System.out.print("optimizations that can change what a program does are only made with");
+                    for (Optimization optimization : Optimization.values()) {
+                        if (!optimization.isSafe()) {
+                            System.out.print(" --" + optimization.tagName());
+                        }
+                    }
+                    System.out.println();
                     System.exit(0);
                 }
 
-                System.out.println("mode is " + mode);
+                System.out.println("mode is " + mode + (parallel ? ", in parallel" : "") + (incremental ? ", incremental" : "")
+                        + (watch ? ", watching" : "") + (inline ? ", inlining" : "") + (treeShake ? ", tree shaking" : "")
+                        + (asm ? ", to Hack assembly" : "") + (hack ? ", to Hack machine code" : "")
+                        + (vm ? ", with VM code" : "") + (run ? (jit ? ", running as bytecode" : ", running") : "")
+                        + (optimizations.isEmpty() ? "" : ", optimizing " + optimizations));
+            } else {
+                inputFileName = arg;
+                System.out.println("command line directory/file = " + inputFileName);
             }
         }
+
+        try {
+            if (server) {
+                System.out.println("Compile server listening on port " + port);
+                new CompileServer(port).serve();
+                return;
+            } else if (stopServer) {
+                System.exit(CompileServer.sendShutdown(port));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Could not reach the compile server on port " + port);
+            System.exit(1);
+        }
+
         if (inputFileName == null){
             Scanner keyboard = new Scanner(System.in);
 
@@ -82,12 +225,268 @@ public class JackCompiler {
             keyboard.close();
         }
 
-        // make the input a File
-        inputFile = new File(inputFileName);
+        // a whole program build compiles its classes into memory, unless the server compiles them
+        boolean wholeProgram = (inline || treeShake || asm || hack || run) && mode == Mode.COMPILE
+                && new File(inputFileName).isDirectory();
+        Map<String, List<VMCommand>> compiledClasses = wholeProgram && !client
+                ? new LinkedHashMap<String, List<VMCommand>>() : null;
+
+        boolean succeeded;
+        if (client) {
+            // the server runs somewhere else, so send it the full path
+            try {
+                succeeded = CompileServer.sendRequest(port, new File(inputFileName).getAbsoluteFile(), mode, optimizations,
+                        parallel, incremental, System.out);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Could not reach the compile server on port " + port);
+                succeeded = false;
+            }
+        } else {
+            succeeded = compile(new File(inputFileName), mode, optimizations, parallel, incremental, compiledClasses,
+                    System.out);
+        }
+
+        if (succeeded && wholeProgram) {
+            // the VM code is the output unless the build goes on to assembly, machine code, or a run
+            boolean writeVM = vm || !(asm || hack || run);
+            VMProgram program = link(new File(inputFileName), compiledClasses, libraries, inline, treeShake, asm, hack,
+                    writeVM, System.out);
+            succeeded = program != null;
+            if (succeeded && run) {
+                succeeded = run(new File(inputFileName), program, keys, maxSteps, jit, System.out);
+            }
+        }
+
+        if (watch && !client) {
+            // keep going after errors, the next save may fix them
+            File inputFile = new File(inputFileName);
+            if (!inputFile.exists()) {
+                System.exit(1);
+            }
+            try {
+                new CompileWatcher(inputFile, mode, optimizations, incremental ? openCache(inputFile, System.out) : null,
+                        System.out, CompileWatcher.DEFAULT_DEBOUNCE_MILLIS).watch();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Could not watch " + inputFile + " for changes");
+                System.exit(1);
+            }
+            return;
+        }
+
+        if (!succeeded) {
+            System.exit(1); //exit program
+        }
+
+        //alert user and close output stream
+        System.out.println("Done!");
+    }
+
+    /**
+     * Runs the whole program passes over a compiled directory.
+     *
+     * @param directory       the directory that was compiled
+     * @param compiledClasses the VM code of the classes compiled in memory, or null if it is in the .vm files
+     * @param libraries       the directories of the VM code the program uses, such as the OS
+     * @param inline          true to inline the calls to trivial subroutines
+     * @param treeShake       true to drop the functions that are never called
+     * @param asm             true to write the program as Hack assembly
+     * @param hack            true to write the program as a Hack ROM image
+     * @param writeVM         true to write the VM code of the program to the directory
+     * @param out             where to print what was done, and errors
+     * @return the linked program, or null if the passes failed
+     */
+    static VMProgram link(File directory, Map<String, List<VMCommand>> compiledClasses, List<File> libraries,
+                          boolean inline, boolean treeShake, boolean asm, boolean hack, boolean writeVM,
+                          PrintStream out) {
+        String name = directory.getAbsoluteFile().getName();
+        try {
+            VMProgram program = compiledClasses != null ? VMProgram.read(directory, compiledClasses, libraries, out)
+                    : VMProgram.read(directory, libraries, out);
+            if (inline) {
+                Inliner.inlineProgram(program, out);
+            }
+            if (treeShake) {
+                TreeShaker.shakeProgram(program, out);
+            }
+            if (writeVM) {
+                program.write(directory);
+            }
+            if (asm || hack) {
+                AsmWriter.checkProgram(program);
+            }
+
+            if (asm) {
+                File asmFile = new File(directory, name + ".asm");
+                AsmWriter writer = new AsmWriter(asmFile);
+                writer.writeProgram(program);
+                writer.close();
+                out.println("Wrote " + writer.instructionCount() + " Hack instructions to " + asmFile);
+            }
+            if (hack) {
+                long start = System.nanoTime();
+                HackAssembler assembler = new HackAssembler();
+                new AsmWriter(assembler).writeProgram(program);
+                long translated = System.nanoTime();
+                short[] words = assembler.assemble();
+                long resolved = System.nanoTime();
+
+                File hackFile = new File(directory, name + ".hack");
+                HackAssembler.writeHack(words, hackFile);
+                out.println("Wrote " + words.length + " words to " + hackFile + ", translated and encoded in "
+                        + TimeUnit.NANOSECONDS.toMicros(translated - start) + " us, " + assembler.symbolCount()
+                        + " symbols resolved in " + TimeUnit.NANOSECONDS.toMicros(resolved - translated) + " us");
+            }
+            return program;
+        } catch (CompilationEngine.CompilationException e) {
+            out.println(e.getMessage());
+            out.println("Could not link " + directory);
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace(out);
+            out.println("Could not link " + directory);
+            return null;
+        }
+    }
+
+    /**
+     * Runs a linked program in a {@link VMInterpreter}, and prints the functions it spent the most commands in,
+     * or as bytecode with a {@link VMJit}.
+     *
+     * @param directory the directory that was compiled
+     * @param program   the program {@link #link} made of it
+     * @param keys      the keys to press, each a Hack key code and the step to press it at
+     * @param maxSteps  the most VM commands to run
+     * @param jit       true to run the program as JVM bytecode
+     * @param out       where to print the profile, and errors
+     * @return true if the program could be run
+     */
+    static boolean run(File directory, VMProgram program, List<long[]> keys, long maxSteps, boolean jit,
+                       PrintStream out) {
+        try {
+            if (jit) {
+                return runJit(program, keys, maxSteps, out);
+            }
+            VMInterpreter interpreter = new VMInterpreter(program);
+            for (long[] key : keys) {
+                interpreter.pressKey((int) key[0], key[1]);
+            }
+
+            long start = System.nanoTime();
+            boolean halted = interpreter.run(maxSteps);
+            long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            out.println((halted ? "Halted" : "Stopped") + " after " + interpreter.steps() + " VM commands in " + time
+                    + " ms");
+            interpreter.printProfile(out, PROFILE_LENGTH);
+            return true;
+        } catch (CompilationEngine.CompilationException e) {
+            out.println(e.getMessage());
+            out.println("Could not run " + directory);
+            return false;
+        }
+    }
+
+    // runs a program as bytecode, which has no profile to print
+    private static boolean runJit(VMProgram program, List<long[]> keys, long maxSteps, PrintStream out) {
+        long start = System.nanoTime();
+        VMJit jit = new VMJit(program);
+        long translateTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        for (long[] key : keys) {
+            jit.pressKey((int) key[0], key[1]);
+        }
+
+        start = System.nanoTime();
+        boolean halted = jit.run(maxSteps);
+        long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        out.println("Translated " + program.functionCount() + " functions to " + jit.bytecodeSize()
+                + " bytes of class files in " + translateTime + " ms");
+        out.println((halted ? "Halted" : "Stopped") + " after " + jit.steps() + " VM commands in " + time + " ms");
+        return true;
+    }
+
+    /**
+     * Reads the number of a tag such as --port=N.
+     *
+     * @param number the number as written in the tag
+     * @param max the largest number the tag takes
+     * @return the number, or -1 if it can not be read or is not from 0 to max
+     */
+    static long numberOf(String number, long max) {
+        try {
+            long value = Long.parseLong(number);
+            return value >= 0 && value <= max ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the keys of a --keys tag.
+     *
+     * @param keys the keys as KEY@STEP separated by commas, where KEY is a Hack key code
+     * @return each key code and the step to press it at, or null if the keys can not be read
+     */
+    static List<long[]> keysOf(String keys) {
+        List<long[]> parsedKeys = new ArrayList<>();
+        for (String key : keys.split(",")) {
+            if (key.isEmpty()) {
+                continue;
+            }
+            int at = key.indexOf('@');
+            if (at == -1) {
+                return null;
+            }
+            try {
+                int code = Integer.parseInt(key.substring(0, at));
+                long step = Long.parseLong(key.substring(at + 1));
+                if (code < 0 || code > Short.MAX_VALUE || step < 0) {
+                    return null;
+                }
+                parsedKeys.add(new long[] {code, step});
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return parsedKeys;
+    }
+
+    /**
+     * Compiles a Jack file, or all the Jack files in a directory.
+     *
+     * @param inputFile     a file name of the form Xxx.jack, or a directory holding such files
+     * @param mode          what to output
+     * @param optimizations the optimizations to make to the VM code
+     * @param parallel      true to compile the files of a directory at the same time
+     * @param incremental   true to restore the outputs of unchanged files from the build cache
+     * @param out           where to print errors to
+     * @return true if every file compiled without errors
+     */
+    static boolean compile(File inputFile, Mode mode, Set<Optimization> optimizations, boolean parallel,
+                           boolean incremental, PrintStream out) {
+        return compile(inputFile, mode, optimizations, parallel, incremental, null, out);
+    }
+
+    /**
+     * Compiles a Jack file, or all the Jack files in a directory, into memory instead of .vm files.
+     *
+     * @param inputFile       a file name of the form Xxx.jack, or a directory holding such files
+     * @param mode            what to output, which must be COMPILE to compile into memory
+     * @param optimizations   the optimizations to make to the VM code
+     * @param parallel        true to compile the files of a directory at the same time
+     * @param incremental     true to restore the outputs of unchanged files from the build cache, which keeps
+     *                        its .vm files
+     * @param compiledClasses where to put the VM code of each class, or null to write .vm files
+     * @param out             where to print errors to
+     * @return true if every file compiled without errors
+     */
+    static boolean compile(File inputFile, Mode mode, Set<Optimization> optimizations, boolean parallel,
+                           boolean incremental, Map<String, List<VMCommand>> compiledClasses, PrintStream out) {
+        File[] compilerFiles, outputFiles;
 
         if (!inputFile.exists()) { //handle the case where the input file does not exist
-            System.out.println("The specified file/directory, " + inputFile + ", does not exist");
-            System.exit(0);
+            out.println("The specified file/directory, " + inputFile + ", does not exist");
+            return false;
         }
 
         //switch between if the inputFile is a directory or not
@@ -103,140 +502,323 @@ public class JackCompiler {
 
             //handle an empty/nonexistent list
             if (compilerFiles == null || compilerFiles.length == 0) {
-                System.out.println("No Jack files in directory " + inputFile);
-                System.exit(0);
-            } else {
-                outputFiles = new File[compilerFiles.length];
+                out.println("No Jack files in directory " + inputFile);
+                return false;
+            }
 
-                for (int i = 0; i < compilerFiles.length; i++) {
-                    outputFileName = compilerFiles[i].getName();
-                    outputFileName = outputFileName.substring(0, outputFileName.length() - 4);
+            outputFiles = new File[compilerFiles.length];
 
-                    outputFiles[i] = new File(inputFile, outputFileName + mode.fileSuffix());
-                }
+            for (int i = 0; i < compilerFiles.length; i++) {
+                outputFiles[i] = outputFile(compilerFiles[i], mode);
             }
         } else {
-            outputFileName = inputFileName.substring(0, inputFileName.length() - 4) + mode.fileSuffix();
             outputFiles = new File[1];
-            outputFiles[0] = new File(outputFileName); // create output file name
+            outputFiles[0] = outputFile(inputFile, mode); // create output file name
             compilerFiles = new File[1]; // create the compiler file array
             compilerFiles[0] = inputFile;
         }
 
+        // unchanged files are restored from a cache kept next to the sources
+        BuildCache cache = incremental ? openCache(inputFile, out) : null;
 
-        for (int i = 0; i < compilerFiles.length; i++) {
-            JackTokenizer tokenizer = null;
-            try {
-                tokenizer = new JackTokenizer(compilerFiles[i]); // open new tokenizer for an import file
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                System.out.println("Could not open file " + compilerFiles[i]);
-                System.out.println("Run program again, make sure you have read permissions, etc.");
-                System.exit(0);
+        List<List<VMCommand>> commands = null;
+        if (compiledClasses != null) {
+            commands = new ArrayList<>();
+            for (int i = 0; i < compilerFiles.length; i++) {
+                commands.add(new ArrayList<VMCommand>());
             }
+        }
 
-            CompilationEngine compilationEngine = null;
-            try {
-                if (mode != Mode.TOKENIZE) {
-                    compilationEngine = new CompilationEngine(tokenizer, outputFiles[i]);
+        boolean succeeded;
+        if (parallel && compilerFiles.length > 1) {
+            succeeded = compileInParallel(compilerFiles, outputFiles, commands, mode, optimizations, cache, out);
+        } else {
+            succeeded = true;
+            for (int i = 0; i < compilerFiles.length; i++) {
+                try {
+                    compileFile(compilerFiles[i], outputFiles[i], commands != null ? commands.get(i) : null, mode,
+                            optimizations, cache);
+                } catch (Exception e) {
+                    reportError(compilerFiles[i], outputFiles[i], e, out);
+                    succeeded = false;
                 }
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                System.out.println("Could not open file " + outputFiles[i]);
-                System.out.println("Run program again, make sure you have write permissions, etc.");
-                System.exit(0);
             }
-            PrintWriter writer = null;
+        }
 
-            // begin compilation
-            try {
-            switch (mode) {
-                case TOKENIZE:
-                    try {
-                        writer = new PrintWriter(outputFiles[i]);
-                    } catch (FileNotFoundException e) {
-                        e.printStackTrace();
-                        System.out.println("Could not open file " + outputFiles[i]);
-                        System.out.println("Run program again, make sure you have write permissions, etc.");
-                        System.exit(0);
-                    }
+        if (succeeded && compiledClasses != null) {
+            for (int i = 0; i < compilerFiles.length; i++) {
+                String fileName = compilerFiles[i].getName();
+                compiledClasses.put(fileName.substring(0, fileName.length() - ".jack".length()), commands.get(i));
+            }
+        }
+        return succeeded;
+    }
 
-                    writer.println("<tokens>");
-
-                    while (tokenizer.hasMoreTokens()) {
-                        tokenizer.advance();
-
-                        TokenType tokenType = tokenizer.tokenType();
-
-                        switch (tokenType) {
-                            case KEYWORD:
-                                writer.println("<keyword> " + tokenizer.keyWord().toString().toLowerCase() + " </keyword>");
-                                break;
-                            case SYMBOL:
-                                char symbol = tokenizer.symbol();
-
-                                if (symbol == '<') {
-                                    writer.println("<symbol> &lt; </symbol>");
-                                } else if (symbol == '>') {
-                                    writer.println("<symbol> &gt; </symbol>");
-                                } else if (symbol == '&') {
-                                    writer.println("<symbol> &amp; </symbol>");
-                                } else {
-                                    writer.println("<symbol> " + symbol + " </symbol>");
-                                }
-                                break;
-                            case IDENTIFIER:
-                                writer.println("<identifier> " + tokenizer.identifier() + " </identifier>");
-                                break;
-                            case INT_CONSTANT:
-                                writer.println("<integerConstant> " + tokenizer.intVal() + " </integerConstant>");
-                                break;
-                            case STRING_CONSTANT:
-                                writer.println("<stringConstant> " + tokenizer.stringVal() + " </stringConstant>");
-                                break;
-                            case COMMENT:
-                                System.out.println("comment(//):" + tokenizer.comment());
-                                break;
-                            case BLOCK_COMMENT:
-                                System.out.println("comment(/*):" + tokenizer.comment());
-                                break;
-                        }
+    /**
+     * Finds the optimization with the given command line name.
+     *
+     * @param tagName the name of the optimization, without the leading "--"
+     * @return the optimization, or null if there is none with that name
+     */
+    static Optimization optimizationOf(String tagName) {
+        for (Optimization optimization : Optimization.values()) {
+            if (optimization.tagName().equalsIgnoreCase(tagName)) {
+                return optimization;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens the build cache kept next to the sources.
+     *
+     * @param inputFile the Jack file or directory being compiled
+     * @param out       where to print errors to
+     * @return the cache, or null if it could not be created
+     */
+    static BuildCache openCache(File inputFile, PrintStream out) {
+        File sourceDirectory = inputFile.isDirectory() ? inputFile : inputFile.getAbsoluteFile().getParentFile();
+        try {
+            return new BuildCache(new File(sourceDirectory, BuildCache.DEFAULT_DIRECTORY_NAME));
+        } catch (IOException e) {
+            e.printStackTrace(out);
+            out.println("Could not create the build cache, compiling everything.");
+            return null;
+        }
+    }
+
+    /**
+     * Works out the output file for a Jack file: Xxx.jack is compiled to Xxx.vm or Xxx.xml, next to it.
+     *
+     * @param compilerFile the Jack file
+     * @param mode         what to output
+     * @return the output file
+     */
+    static File outputFile(File compilerFile, Mode mode) {
+        String compilerFileName = compilerFile.getPath();
+        return new File(compilerFileName.substring(0, compilerFileName.length() - 4) + mode.fileSuffix());
+    }
+
+    /**
+     * Compiles the files on a pool of threads, one file per task, and reports the errors of each file
+     * in the order of the files.  The output files are the same as when compiling one file at a time.
+     *
+     * @param commands the lists to compile the files into, or null to write the output files
+     * @return true if every file compiled without errors
+     */
+    static boolean compileInParallel(File[] compilerFiles, File[] outputFiles, final List<List<VMCommand>> commands,
+                                     final Mode mode, final Set<Optimization> optimizations, final BuildCache cache,
+                                     PrintStream out) {
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), compilerFiles.length);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<Future<?>> results = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < compilerFiles.length; i++) {
+                final File compilerFile = compilerFiles[i], outputFile = outputFiles[i];
+                final List<VMCommand> fileCommands = commands != null ? commands.get(i) : null;
+                results.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        compileFile(compilerFile, outputFile, fileCommands, mode, optimizations, cache);
+                        return null;
                     }
+                }));
+            }
 
-                    writer.println("</tokens>");
-                    writer.close();
-                    break;
-                case EXTENDED_PARSE:
-                    CompilationEngine.extendedXML = true;
-                case PARSE:
-                    CompilationEngine.outputXML = true;
-                    compilationEngine.compileClass();
-                    compilationEngine.close();
-                    break;
-                case COMPILE:
-                    CompilationEngine.outputXML = false;
+            boolean succeeded = true;
+            for (int i = 0; i < compilerFiles.length; i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    reportError(compilerFiles[i], outputFiles[i], e.getCause(), out);
+                    succeeded = false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return succeeded;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Tokenizes, parses, or compiles a single Jack file, depending on the mode.
+     *
+     * @param compilerFile the Jack file to compile
+     * @param outputFile   the file to write the xml or VM output to
+     * @param mode         what to output
+     */
+    static void compileFile(File compilerFile, File outputFile, Mode mode) throws IOException {
+        compileFile(compilerFile, outputFile, mode, null);
+    }
+
+    /**
+     * Tokenizes, parses, or compiles a single Jack file, depending on the mode,
+     * unless the output for the same source and mode is in the build cache.
+     *
+     * @param compilerFile the Jack file to compile
+     * @param outputFile   the file to write the xml or VM output to
+     * @param mode         what to output
+     * @param cache        the cache to restore and store the output in, or null to always compile
+     */
+    static void compileFile(File compilerFile, File outputFile, Mode mode, BuildCache cache) throws IOException {
+        compileFile(compilerFile, outputFile, mode, Collections.<Optimization>emptySet(), cache);
+    }
+
+    /**
+     * Tokenizes, parses, or compiles a single Jack file, depending on the mode,
+     * unless the output for the same source, mode, and optimizations is in the build cache.
+     *
+     * @param compilerFile  the Jack file to compile
+     * @param outputFile    the file to write the xml or VM output to
+     * @param mode          what to output
+     * @param optimizations the optimizations to make to the VM code
+     * @param cache         the cache to restore and store the output in, or null to always compile
+     */
+    static void compileFile(File compilerFile, File outputFile, Mode mode, Set<Optimization> optimizations,
+                            BuildCache cache) throws IOException {
+        compileFile(compilerFile, outputFile, null, mode, optimizations, cache);
+    }
+
+    /**
+     * Tokenizes, parses, or compiles a single Jack file, depending on the mode, or compiles it into memory,
+     * unless the output for the same source, mode, and optimizations is in the build cache.
+     *
+     * @param compilerFile  the Jack file to compile
+     * @param outputFile    the file to write the xml or VM output to, and to keep the VM output in for the cache
+     * @param commands      the list to compile the file into, or null to write the output file
+     * @param mode          what to output
+     * @param optimizations the optimizations to make to the VM code
+     * @param cache         the cache to restore and store the output in, or null to always compile
+     */
+    static void compileFile(File compilerFile, File outputFile, List<VMCommand> commands, Mode mode,
+                            Set<Optimization> optimizations, BuildCache cache) throws IOException {
+        CompilerOptions options = mode.options().withOptimizations(optimizations);
+
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = cache.key(compilerFile, mode + " " + options);
+            if (cache.restore(cacheKey, outputFile)) {
+                if (commands != null) {
+                    commands.addAll(VMParser.parse(outputFile));
+                }
+                return;
+            }
+        }
+
+        // open new tokenizer for an import file, large files are memory mapped
+        JackTokenizer tokenizer = new JackTokenizer(compilerFile, options);
+
+        // begin compilation
+        switch (mode) {
+            case TOKENIZE:
+                writeTokens(tokenizer, outputFile);
+                break;
+            case PARSE:
+            case EXTENDED_PARSE:
+            case COMPILE:
+                CompilationEngine compilationEngine = commands != null
+                        ? new CompilationEngine(tokenizer, commands, options)
+                        : new CompilationEngine(tokenizer, outputFile, options);
+                try {
                     compilationEngine.compileClass();
+                } finally {
                     compilationEngine.close();
-                    break;
+                }
+                break;
+        }
+
+        if (cache != null) {
+            if (commands != null) {
+                // the cache only keeps files
+                VMWriter writer = new VMWriter(outputFile);
+                for (VMCommand command : commands) {
+                    writer.writeCommand(command);
+                }
+                writer.close();
             }
+            cache.store(cacheKey, outputFile);
+        }
+    }
 
+    private static void writeTokens(JackTokenizer tokenizer, File outputFile) throws FileNotFoundException {
+        PrintWriter writer = new PrintWriter(outputFile);
 
-            } catch (JackTokenizer.TokenizerError e) {
-                System.out.println(e.getMessage()); //print the error message
-                System.out.println("Error at line " + e.getErrorLine() + ": " + e.getErrorLine()); //add debugging data
-                System.out.println("Line Tokenized to: " + e.getUntokenizedLinePortion());
-                System.out.println("Assumed Token type: " + e.getAssumedTokenType());
-                System.exit(1); //exit program
-            } catch (CompilationEngine.CompilationException e) {
-                System.out.println(e.getMessage());
-                e.printStackTrace();
-                e.closeCompilationEngine();
-                System.exit(1);
+        try {
+            writer.println("<tokens>");
+
+            while (tokenizer.hasMoreTokens()) {
+                tokenizer.advance();
+
+                TokenType tokenType = tokenizer.tokenType();
+
+                switch (tokenType) {
+                    case KEYWORD:
+                        writer.println("<keyword> " + tokenizer.keyWord().toString().toLowerCase() + " </keyword>");
+                        break;
+                    case SYMBOL:
+                        char symbol = tokenizer.symbol();
+
+                        if (symbol == '<') {
+                            writer.println("<symbol> &lt; </symbol>");
+                        } else if (symbol == '>') {
+                            writer.println("<symbol> &gt; </symbol>");
+                        } else if (symbol == '&') {
+                            writer.println("<symbol> &amp; </symbol>");
+                        } else {
+                            writer.println("<symbol> " + symbol + " </symbol>");
+                        }
+                        break;
+                    case IDENTIFIER:
+                        writer.println("<identifier> " + tokenizer.identifier() + " </identifier>");
+                        break;
+                    case INT_CONSTANT:
+                        writer.println("<integerConstant> " + tokenizer.intVal() + " </integerConstant>");
+                        break;
+                    case STRING_CONSTANT:
+                        writer.println("<stringConstant> " + tokenizer.stringVal() + " </stringConstant>");
+                        break;
+                    case COMMENT:
+                        System.out.println("comment(//):" + tokenizer.comment());
+                        break;
+                    case BLOCK_COMMENT:
+                        System.out.println("comment(/*):" + tokenizer.comment());
+                        break;
+                }
             }
+
+            writer.println("</tokens>");
+        } finally {
+            writer.close();
+            tokenizer.close();
         }
+    }
 
-        //alert user and close output stream
-        System.out.println("Done!");
+    /**
+     * Prints what went wrong while compiling a file.
+     */
+    static void reportError(File compilerFile, File outputFile, Throwable error, PrintStream out) {
+        out.println("Error compiling " + compilerFile + ":");
+
+        if (error instanceof JackTokenizer.TokenizerError) {
+            JackTokenizer.TokenizerError e = (JackTokenizer.TokenizerError) error;
+            out.println(e.getMessage()); //print the error message
+            out.println("Error at line " + e.getErrorLineNumber() + ": " + e.getErrorLine()); //add debugging data
+            out.println("Line Tokenized to: " + e.getUntokenizedLinePortion());
+            out.println("Assumed Token type: " + e.getAssumedTokenType());
+        } else if (error instanceof CompilationEngine.CompilationException) {
+            out.println(error.getMessage());
+            error.printStackTrace(out);
+        } else if (error instanceof FileNotFoundException) {
+            error.printStackTrace(out);
+            out.println("Could not open file " + compilerFile + " or " + outputFile);
+            out.println("Run program again, make sure you have read and write permissions, etc.");
+        } else {
+            error.printStackTrace(out);
+        }
     }
 
     enum Mode {
@@ -245,6 +827,17 @@ public class JackCompiler {
         EXTENDED_PARSE,
         COMPILE;
 
+        public CompilerOptions options() {
+            switch (this) {
+                case PARSE:
+                    return CompilerOptions.XML;
+                case EXTENDED_PARSE:
+                    return CompilerOptions.EXTENDED_XML;
+                default:
+                    return CompilerOptions.VM;
+            }
+        }
+
         public String fileSuffix() {
             switch (this) {
 
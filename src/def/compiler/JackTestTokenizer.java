@@ -49,6 +49,11 @@ class JackTestTokenizer extends JackTokenizer {
         return tokens[i].identifier;
     }
 
+    @Override
+    public int identifierId() {
+        return tokens[i].tokenType == TokenType.IDENTIFIER ? identifierPool().intern(tokens[i].identifier) : -1;
+    }
+
     @Override
     public int intVal() {
         return tokens[i].intConstant;
@@ -1,28 +1,50 @@
 package def.compiler;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.Scanner;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Created by dflor on 7/19/2017.
  * <p>
  * {@link JackTokenizer}: Removes all comments and white space from the input stream and
  * breaks it into Jack-language tokens, as specified by the Jack grammar.
+ * <p>
+ * The whole input is read into a single character buffer up front, and the tokenizer walks it
+ * with a cursor.  Each token is described by its start and end offsets into the buffer, so no
+ * part of the input is copied except the text of the token values themselves.
+ * Large files can instead be memory mapped, see {@link #JackTokenizer(File, boolean)}.
  */
 public class JackTokenizer {
 
-    public static boolean NO_COMMENTS = true;
+    private boolean noComments = true;
 
-    private Scanner inputScanner;
-    private String line;
-    private String rawLine;
+    private char[] input;
+    private ByteBuffer mappedInput;
+    private int inputLength;
+    private int position;
     private int lineNumber;
+    private int lineStart;
+    private int tokenStart;
+    private int valueStart;
+    private int valueEnd;
+
+    private IdentifierPool identifierPool = new IdentifierPool();
+    private char[] identifierChars = new char[16];
 
     private TokenType tokenType;
     private KeyWord keyWord;
     private char symbol;
     private String identifier;
+    private int identifierId;
     private int intVal;
     private String stringVal;
     private String comment;
@@ -38,24 +60,118 @@ public class JackTokenizer {
             "else", "class", "field", "false", "while", "method", "static",
             "return", "boolean", "function", "constructor"};
     public static final String INVALID_STRING_CHARACTERS = "\"\n";
+    public static final long MEMORY_MAP_THRESHOLD = 1 << 20;
+
+    // the charset Jack files are read in, by both the char path and the memory mapped path
+    private static final Charset CHARSET = Charset.defaultCharset();
+    // true if every byte below 0x80 in the charset is the ASCII character by itself, so a mapped file can be
+    // tokenized byte by byte, as all the characters that end tokens, strings, and comments are ASCII
+    private static final boolean BYTES_ARE_ASCII = isAsciiByByte(CHARSET);
+
+    // Character classes, as bit flags in a table indexed by the character.
+    // Only ASCII characters are in the table, see charClass() for the rest.
+    private static final int WHITESPACE = 1;
+    private static final int SYMBOL = 2;
+    private static final int DIGIT = 4;
+    private static final int IDENTIFIER_START = 8;
+    private static final int IDENTIFIER_PART = 16;
+    private static final int TOKEN_BOUNDARY = 32;
+    private static final int STRING_END = 64;
+    private static final byte[] CHAR_CLASSES = new byte[128];
+
+    // A perfect hash of the keywords, on their length and first and last characters.
+    // The multiplier was chosen so that no two keywords share a slot, which is checked when the class loads.
+    private static final int KEYWORD_TABLE_SIZE = 64;
+    private static final KeyWord[] KEYWORD_TABLE = new KeyWord[KEYWORD_TABLE_SIZE];
+    private static final char[][] KEYWORD_TABLE_SPELLINGS = new char[KEYWORD_TABLE_SIZE][];
+    private static final int SHORTEST_KEYWORD;
+    private static final int LONGEST_KEYWORD;
+
+    static {
+        for (char c = 0; c < CHAR_CLASSES.length; c++) {
+            CHAR_CLASSES[c] = (byte) classify(c);
+        }
+
+        int shortest = Integer.MAX_VALUE, longest = 0;
+
+        for (String kw : KEYWORDS) {
+            int slot = keyWordSlot(kw.charAt(0), kw.charAt(kw.length() - 1), kw.length());
+            if (KEYWORD_TABLE[slot] != null)
+                throw new IllegalStateException("Keywords \'" + kw + "\' and \'" + new String(KEYWORD_TABLE_SPELLINGS[slot])
+                        + "\' have the same hash!");
+
+            KEYWORD_TABLE[slot] = KeyWord.getKeyWordFromString(kw);
+            KEYWORD_TABLE_SPELLINGS[slot] = kw.toCharArray();
+            shortest = Math.min(shortest, kw.length());
+            longest = Math.max(longest, kw.length());
+        }
+
+        SHORTEST_KEYWORD = shortest;
+        LONGEST_KEYWORD = longest;
+    }
 
     /**
      * Opens the input file and gets ready to tokenize it.
+     * The entire file is read into memory by this constructor.
      *
      * @param jackInputFile the Jack file to tokenize
      */
-    public JackTokenizer(File jackInputFile) throws FileNotFoundException {
-        inputScanner = new Scanner(jackInputFile);
-        lineNumber = 0;
-        line = null;
+    public JackTokenizer(File jackInputFile) throws IOException {
+        this(jackInputFile, CompilerOptions.VM);
+    }
 
-        tokenType = null;
-        keyWord = null;
-        symbol = ' ';
-        identifier = null;
-        intVal = -1;
-        stringVal = null;
-        comment = null;
+    /**
+     * Opens the input file and gets ready to tokenize it, as set by the given options.
+     * The file is memory mapped if it is at least {@link CompilerOptions#memoryMapThreshold()} bytes long,
+     * and comments are returned as tokens unless {@link CompilerOptions#skipComments()} is set.
+     *
+     * @param jackInputFile the Jack file to tokenize
+     * @param options       the options of the compilation
+     */
+    public JackTokenizer(File jackInputFile, CompilerOptions options) throws IOException {
+        this(jackInputFile, jackInputFile.length() >= options.memoryMapThreshold());
+        noComments = options.skipComments();
+    }
+
+    /**
+     * Opens the input file and gets ready to tokenize it, optionally memory mapping it.
+     * A memory mapped file is tokenized straight from the mapped bytes, which are taken to be ASCII
+     * (any other byte can only appear in comments and string constants).  Identifier, string constant, and
+     * comment text is only copied out of the file when it is asked for, and is decoded in the default charset,
+     * like a file that is not mapped.  When the default charset is not ASCII byte by byte, such as UTF-16,
+     * the file is read into memory instead.
+     * Mapping a file has a fixed cost, so it only pays off for large files,
+     * see {@link #MEMORY_MAP_THRESHOLD}.  Comments are skipped.
+     *
+     * @param jackInputFile the Jack file to tokenize
+     * @param memoryMap     true to memory map the file, false to read it into memory
+     */
+    public JackTokenizer(File jackInputFile, boolean memoryMap) throws IOException {
+        if (memoryMap && BYTES_ARE_ASCII) {
+            try (RandomAccessFile file = new RandomAccessFile(jackInputFile, "r"); FileChannel channel = file.getChannel()) {
+                if (channel.size() > Integer.MAX_VALUE)
+                    throw new IOException("The file " + jackInputFile + " is too large to tokenize!");
+
+                // the mapping stays valid after the channel is closed
+                reset(null, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), (int) channel.size());
+            }
+        } else {
+            try (Reader reader = new InputStreamReader(new FileInputStream(jackInputFile), CHARSET)) {
+                // a character never takes less than a byte, so the file length is almost always enough room
+                char[] buffer = new char[(int) Math.max(jackInputFile.length(), 16)];
+                int length = 0;
+                int read;
+
+                while ((read = reader.read(buffer, length, buffer.length - length)) != -1) {
+                    length += read;
+                    if (length == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    }
+                }
+
+                reset(buffer, null, length);
+            }
+        }
     }
 
     protected JackTokenizer() {
@@ -67,14 +183,26 @@ public class JackTokenizer {
     }
 
     protected JackTokenizer(String testInput, boolean appendExtraToken) {
-        inputScanner = new Scanner(testInput + (appendExtraToken?" ;":""));
-        lineNumber = 0;
-        line = null;
+        char[] buffer = (testInput + (appendExtraToken?" ;":"")).toCharArray();
+        reset(buffer, null, buffer.length);
+    }
+
+    private void reset(char[] buffer, ByteBuffer mappedBuffer, int length) {
+        input = buffer;
+        mappedInput = mappedBuffer;
+        inputLength = length;
+        position = 0;
+        lineNumber = 1;
+        lineStart = 0;
+        tokenStart = 0;
+        valueStart = 0;
+        valueEnd = 0;
 
         tokenType = null;
         keyWord = null;
         symbol = ' ';
         identifier = null;
+        identifierId = -1;
         intVal = -1;
         stringVal = null;
         comment = null;
@@ -86,7 +214,8 @@ public class JackTokenizer {
      * @return true if there are more tokens, false if there are no more tokens
      */
     public boolean hasMoreTokens() {
-        return inputScanner.hasNext() || (line != null && line.length() > 0);
+        skipIgnoredInput();
+        return position < inputLength;
     }
 
     /**
@@ -99,41 +228,42 @@ public class JackTokenizer {
         keyWord = null;
         symbol = ' ';
         identifier = null;
+        identifierId = -1;
         intVal = -1;
         stringVal = null;
         comment = null;
 
-        // if the line is null or empty, get the next line
-        while (line == null || line.trim().length() == 0) {
-            getNextLine();
+        // skip the white space (and the comments, if they are not wanted) before the token
+        skipIgnoredInput();
+        tokenStart = position;
+
+        if (position >= inputLength) {
+            throw new TokenizerError("Encountered end of file while tokenizing");
         }
 
-        line = line.trim();
-        char firstChar = line.charAt(0);
+        char firstChar = charAt(position);
+        char secondChar = position + 1 < inputLength ? charAt(position + 1) : ' ';
+        int tokenEnd = position + 1;
 
         // determine token type
-        if (line.startsWith("//")) { // check for a line comment
+        if (firstChar == '/' && secondChar == '/') { // check for a line comment
             tokenType = TokenType.COMMENT;
-        } else if (line.startsWith("/*")) { // check for a block comment
+        } else if (firstChar == '/' && secondChar == '*') { // check for a block comment
             tokenType = TokenType.BLOCK_COMMENT;
-        } else if (SYMBOLS.indexOf(firstChar) != -1) { // if the character is in SYMBOL, the token is a symbol, we already ruled out comments
+        } else if (isClass(firstChar, SYMBOL)) { // if the character is in SYMBOL, the token is a symbol, we already ruled out comments
             tokenType = TokenType.SYMBOL;
         } else if (firstChar == '\"') {// the character is a ", so this is a string constant
             tokenType = TokenType.STRING_CONSTANT;
-        } else if (DIGITS.indexOf(firstChar) != -1) { // starts with a digit, this is an integer
+        } else if (isClass(firstChar, DIGIT)) { // starts with a digit, this is an integer
             tokenType = TokenType.INT_CONSTANT;
-        } else if (VALID_IDENTIFIER_START_CHARS.indexOf(firstChar) != -1) { // this is an identifier or keyword
-            tokenType = TokenType.IDENTIFIER; // assume it is an identifier, but could be a keyword
-            for (String kw : KEYWORDS) { // loop over all keywords...
-                if (line.startsWith(kw)) { // ...and check if the token is that keyword
-
-                    // if the character after the possible keyword is a valid identifier, then we must keep looking
-                    if (line.length() == kw.length() || VALID_IDENTIFIER_CHARS.indexOf(line.charAt(kw.length())) == -1) {
-                        tokenType = TokenType.KEYWORD;
-                        break;
-                    }
-                }
+        } else if (isClass(firstChar, IDENTIFIER_START)) { // this is an identifier or keyword
+            // find the end of the word, then check if the whole word is a keyword
+            while (tokenEnd < inputLength && isClass(charAt(tokenEnd), IDENTIFIER_PART)) {
+                tokenEnd++;
             }
+
+            keyWord = findKeyWord(tokenStart, tokenEnd);
+            tokenType = keyWord != null ? TokenType.KEYWORD : TokenType.IDENTIFIER;
         } else {
             throw new TokenizerError("Token not recognized!");
         }
@@ -141,123 +271,256 @@ public class JackTokenizer {
         // parse token
         switch (tokenType) {
             case KEYWORD:
-                for (String kw : KEYWORDS) { // loop over all keywords...
-                    if (line.startsWith(kw)) { // ...and check if the token is that keyword
-                        keyWord = KeyWord.getKeyWordFromString(kw);
-                        line = line.substring(kw.length());
-                    }
-                }
+                position = tokenEnd;
                 break;
             case SYMBOL:
-                symbol = line.charAt(0);
-                line = line.substring(1);
+                symbol = firstChar;
+                position = tokenEnd;
                 break;
             case IDENTIFIER:
-                StringBuilder idBuilder = new StringBuilder();
-                int i;
-
-                // we already know the first character is valid
-                idBuilder.append(line.charAt(0));
-
-                for (i = 1; i < line.length(); i++) {
-                    // we can break either when we encounter a symbol or whitespace,
-                    // or when we encounter an invalid identifier character
-
-                    char currentChar = line.charAt(i);
-
-                    // check for an end condition
-                    if (Character.isWhitespace(currentChar) || SYMBOLS.indexOf(currentChar) != -1) {
-                        break;
-                    }
-
-                    if (VALID_IDENTIFIER_CHARS.indexOf(currentChar) == -1) {
-                        throw new TokenizerError("Invalid character \'" + currentChar + "\' encountered in identifier.");
-                    }
-                    idBuilder.append(currentChar);
+                // we can stop either when we encounter a symbol or whitespace,
+                // anything else after the identifier characters is an error
+                if (tokenEnd < inputLength && !isClass(charAt(tokenEnd), TOKEN_BOUNDARY)) {
+                    throw new TokenizerError("Invalid character \'" + charAt(tokenEnd) + "\' encountered in identifier.");
                 }
 
-                identifier = idBuilder.toString();
-                line = line.substring(i);
-
+                // the identifier is only interned when it is asked for
+                valueStart = tokenStart;
+                valueEnd = tokenEnd;
+                position = tokenEnd;
                 break;
             case INT_CONSTANT:
                 // TODO: expand to allow binary/octal/hexadecimal numbers?
 
-                StringBuilder intBuilder = new StringBuilder();
-
                 // we already know the first character is valid
-                intBuilder.append(line.charAt(0));
+                int value = firstChar - '0';
 
-                for (i = 1; i < line.length(); i++) {
+                for (; tokenEnd < inputLength; tokenEnd++) {
                     // we can break either when we encounter a symbol or whitespace,
                     // or when we encounter a non digit character
 
-                    char currentChar = line.charAt(i);
+                    char currentChar = charAt(tokenEnd);
 
-                    if (Character.isWhitespace(currentChar) || SYMBOLS.indexOf(currentChar) != -1) {
+                    if (isClass(currentChar, TOKEN_BOUNDARY)) {
                         break;
                     }
-                    if (DIGITS.indexOf(currentChar) == -1) {
+                    if (!isClass(currentChar, DIGIT)) {
                         throw new TokenizerError("Non Digit character \'" + currentChar + "\' encountered in integer constant.");
                     }
 
-                    intBuilder.append(currentChar);
+                    // stop growing once out of range, so huge constants can't overflow
+                    if (value <= LARGEST_INT) {
+                        value = value * 10 + (currentChar - '0');
+                    }
                 }
 
-                intVal = Integer.parseInt(intBuilder.toString());
-
-                if (intVal < SMALLEST_INT || intVal > LARGEST_INT) {
-                    throw new TokenizerError("Invalid integer constant \'" + intVal + "\'.  Valid range is " + SMALLEST_INT + " to " + LARGEST_INT + ".");
+                if (value < SMALLEST_INT || value > LARGEST_INT) {
+                    throw new TokenizerError("Invalid integer constant \'" + text(tokenStart, tokenEnd - tokenStart)
+                            + "\'.  Valid range is " + SMALLEST_INT + " to " + LARGEST_INT + ".");
                 }
 
-                line = line.substring(i);
+                intVal = value;
+                position = tokenEnd;
                 break;
             case STRING_CONSTANT:
-                int secondQuotation = line.indexOf('\"', 1);
-                if (secondQuotation == -1) {
-                    throw new TokenizerError("Invalid string constant, no closing \"");
+                while (tokenEnd < inputLength && !isClass(charAt(tokenEnd), STRING_END)) {
+                    tokenEnd++;
                 }
 
-                stringVal = line.substring(1, secondQuotation);
+                if (tokenEnd == inputLength || charAt(tokenEnd) != '\"') {
+                    throw new TokenizerError("Invalid string constant, no closing \"");
+                }
 
-                line = line.substring(secondQuotation+1);
+                valueStart = tokenStart + 1;
+                valueEnd = tokenEnd;
+                position = tokenEnd + 1;
                 break;
             case COMMENT:
-                comment = line.substring(2);
-                line = null;
-                if (NO_COMMENTS) {
-                    advance();
-                }
+                tokenEnd = findLineEnd(tokenStart);
+                valueStart = tokenStart + 2;
+                valueEnd = tokenEnd;
+                position = tokenEnd;
                 break;
             case BLOCK_COMMENT:
-                comment = "";
-                line = line.substring(2);
-                if (line.length()>0 && line.charAt(0) =='*') {
-                    line = line.substring(1);
+                tokenEnd = findBlockCommentEnd(tokenStart);
+                if (tokenEnd == -1) {
+                    throw new TokenizerError("Encountered end of file while tokenizing");
                 }
-                while (!line.contains("*/")) {
-                    comment += line;
-                    comment += "\n";
-                    getNextLine();
+
+                int commentStart = tokenStart + 2;
+                if (commentStart < tokenEnd - 2 && charAt(commentStart) == '*') {
+                    commentStart++;
                 }
 
-                comment += line.substring(0, line.indexOf("*/"));
-                line = line.substring(line.indexOf("*/")+2);
+                valueStart = commentStart;
+                valueEnd = tokenEnd - 2;
+                skipTo(tokenEnd);
+                break;
+        }
+    }
 
-                if (NO_COMMENTS) {
-                    advance();
+    /**
+     * Moves the cursor past white space, and past comments too if the options say to skip them.
+     * An unterminated block comment is left in place, so that {@link #advance()} reports it.
+     */
+    private void skipIgnoredInput() {
+        while (position < inputLength) {
+            char currentChar = charAt(position);
+
+            if (isClass(currentChar, WHITESPACE)) {
+                skipTo(position + 1);
+            } else if (noComments && currentChar == '/' && position + 1 < inputLength && charAt(position + 1) == '/') {
+                position = findLineEnd(position);
+            } else if (noComments && currentChar == '/' && position + 1 < inputLength && charAt(position + 1) == '*') {
+                int commentEnd = findBlockCommentEnd(position);
+                if (commentEnd == -1) {
+                    return;
                 }
-                break;
+                skipTo(commentEnd);
+            } else {
+                return;
+            }
         }
     }
 
-    private void getNextLine() throws TokenizerError {
-        if (!inputScanner.hasNextLine()) {
-            throw new TokenizerError("Encountered end of file while tokenizing");
+    /**
+     * Moves the cursor forward to the given offset, keeping track of the lines passed over.
+     */
+    private void skipTo(int newPosition) {
+        for (; position < newPosition; position++) {
+            char currentChar = charAt(position);
+            if (currentChar == '\n' || (currentChar == '\r' && (position + 1 == inputLength || charAt(position + 1) != '\n'))) {
+                lineNumber++;
+                lineStart = position + 1;
+            }
         }
-        rawLine = inputScanner.nextLine();
-        line = rawLine.trim();
-        lineNumber++;
+    }
+
+    private int findLineEnd(int from) {
+        int end = from;
+        while (end < inputLength && charAt(end) != '\n' && charAt(end) != '\r') {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * @return the offset just past the closing of the block comment starting at the given offset,
+     * or -1 if the comment is never closed.
+     */
+    private int findBlockCommentEnd(int commentStart) {
+        for (int i = commentStart + 2; i + 1 < inputLength; i++) {
+            if (charAt(i) == '*' && charAt(i + 1) == '/') {
+                return i + 2;
+            }
+        }
+        return -1;
+    }
+
+    private char charAt(int index) {
+        return input != null ? input[index] : (char) (mappedInput.get(index) & 0xFF);
+    }
+
+    private String text(int offset, int count) {
+        if (input != null) {
+            return new String(input, offset, count);
+        }
+
+        byte[] bytes = new byte[count];
+        ByteBuffer text = mappedInput.duplicate();
+        text.position(offset);
+        text.get(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    private static boolean isAsciiByByte(Charset charset) {
+        // in UTF-8 every byte of a character of more than one byte is 0x80 or above
+        if (!charset.equals(StandardCharsets.UTF_8)
+                && !(charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1)) {
+            return false;
+        }
+
+        byte[] ascii = new byte[0x80];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (byte) i;
+        }
+        String decoded = new String(ascii, charset);
+        if (decoded.length() != ascii.length) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length; i++) {
+            if (decoded.charAt(i) != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isClass(char c, int charClass) {
+        return (charClass(c) & charClass) != 0;
+    }
+
+    private static int charClass(char c) {
+        if (c < CHAR_CLASSES.length) {
+            return CHAR_CLASSES[c];
+        }
+
+        // no token is made of characters outside of ASCII, but some of them are white space
+        return Character.isWhitespace(c) ? TOKEN_BOUNDARY : 0;
+    }
+
+    /**
+     * Works out the classes of a character from the character set constants, to fill in the class table.
+     */
+    private static int classify(char c) {
+        int charClass = 0;
+
+        if (c <= ' ')
+            charClass |= WHITESPACE;
+        if (SYMBOLS.indexOf(c) != -1)
+            charClass |= SYMBOL;
+        if (DIGITS.indexOf(c) != -1)
+            charClass |= DIGIT;
+        if (VALID_IDENTIFIER_START_CHARS.indexOf(c) != -1)
+            charClass |= IDENTIFIER_START;
+        if (VALID_IDENTIFIER_CHARS.indexOf(c) != -1)
+            charClass |= IDENTIFIER_PART;
+        if (Character.isWhitespace(c) || SYMBOLS.indexOf(c) != -1)
+            charClass |= TOKEN_BOUNDARY;
+        if (INVALID_STRING_CHARACTERS.indexOf(c) != -1 || c == '\r')
+            charClass |= STRING_END;
+
+        return charClass;
+    }
+
+    /**
+     * Looks up the word between the given offsets in the keyword hash table.
+     *
+     * @return the keyword, or null if the word is not a keyword
+     */
+    private KeyWord findKeyWord(int start, int end) {
+        int length = end - start;
+        if (length < SHORTEST_KEYWORD || length > LONGEST_KEYWORD) {
+            return null;
+        }
+
+        int slot = keyWordSlot(charAt(start), charAt(end - 1), length);
+        char[] spelling = KEYWORD_TABLE_SPELLINGS[slot];
+        if (spelling == null || spelling.length != length) {
+            return null;
+        }
+
+        // the first and last characters went into the hash, but a different word could still land here
+        for (int i = 0; i < length; i++) {
+            if (charAt(start + i) != spelling[i]) {
+                return null;
+            }
+        }
+        return KEYWORD_TABLE[slot];
+    }
+
+    private static int keyWordSlot(char firstChar, char lastChar, int length) {
+        return (firstChar + 19 * lastChar + length) & (KEYWORD_TABLE_SIZE - 1);
     }
 
     /**
@@ -296,9 +559,48 @@ public class JackTokenizer {
      * @return a String that represents the current identifier.
      */
     public String identifier() {
+        if (identifier == null && tokenType == TokenType.IDENTIFIER) {
+            identifier = identifierPool.name(identifierId());
+        }
         return identifier;
     }
 
+    /**
+     * Returns the id of the identifier which is the current token, in this tokenizer's {@link #identifierPool()}.
+     * Should be called only when {@link #tokenType()} is {@link TokenType#IDENTIFIER}
+     *
+     * @return the interned id of the current identifier, or -1 if the current token is not an identifier.
+     */
+    public int identifierId() {
+        if (identifierId == -1 && tokenType == TokenType.IDENTIFIER) {
+            int length = valueEnd - valueStart;
+
+            if (input != null) {
+                identifierId = identifierPool.intern(input, valueStart, length);
+            } else {
+                // copy the mapped bytes into a reused buffer, so that names already seen don't allocate
+                if (identifierChars.length < length) {
+                    identifierChars = new char[Math.max(length, identifierChars.length * 2)];
+                }
+                for (int i = 0; i < length; i++) {
+                    identifierChars[i] = charAt(valueStart + i);
+                }
+                identifierId = identifierPool.intern(identifierChars, 0, length);
+            }
+        }
+        return identifierId;
+    }
+
+    /**
+     * Returns the pool that identifiers are interned in.
+     * Every identifier returned by {@link #identifier()} is the canonical instance from this pool.
+     *
+     * @return the identifier pool of this tokenizer.
+     */
+    public IdentifierPool identifierPool() {
+        return identifierPool;
+    }
+
     /**
      * Returns the integer value of the current token.
      * Should be called only when {@link #tokenType()} is {@link TokenType#INT_CONSTANT}.
@@ -316,10 +618,16 @@ public class JackTokenizer {
      * @return a string representing the string constant.
      */
     public String stringVal() {
+        if (stringVal == null && tokenType == TokenType.STRING_CONSTANT) {
+            stringVal = text(valueStart, valueEnd - valueStart);
+        }
         return stringVal;
     }
 
     public String comment() {
+        if (comment == null && (tokenType == TokenType.COMMENT || tokenType == TokenType.BLOCK_COMMENT)) {
+            comment = text(valueStart, valueEnd - valueStart);
+        }
         return comment;
     }
 
@@ -411,7 +719,10 @@ public class JackTokenizer {
     }
 
     public void close() {
-        inputScanner.close();
+        input = null;
+        mappedInput = null;
+        inputLength = 0;
+        position = 0;
     }
 
     public class TokenizerError extends RuntimeException {
@@ -433,9 +744,12 @@ public class JackTokenizer {
 
         public TokenizerError(String error) {
             super(error);
-            errorLine = rawLine;
+            boolean hasInput = input != null || mappedInput != null;
+            int lineEnd = hasInput ? findLineEnd(lineStart) : 0;
+            errorLine = hasInput ? text(lineStart, lineEnd - lineStart) : null;
             errorLineNumber = lineNumber;
-            untokenizedLinePortion = line;
+            untokenizedLinePortion = hasInput && tokenStart >= lineStart && tokenStart <= lineEnd ?
+                    text(tokenStart, lineEnd - tokenStart) : null;
             assumedTokenType = tokenType;
 
         }
@@ -0,0 +1,41 @@
+package def.compiler;
+
+import def.compiler.JackTokenizer.TokenType;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+public class JackTokenizerTest {
+    @Test
+    public void decodeMappedFilesLikeReadFiles() throws Exception {
+        File jackFile = File.createTempFile("Main", ".jack");
+        try {
+            // an e with an acute accent is two bytes in UTF-8
+            Files.write(jackFile.toPath(), ("class Main { function void main() { do Output.printString(\"caf\u00e9\"); "
+                    + "return; } }").getBytes(StandardCharsets.UTF_8));
+
+            assertEquals(stringConstantOf(new JackTokenizer(jackFile, false)),
+                    stringConstantOf(new JackTokenizer(jackFile, true)));
+        } finally {
+            jackFile.delete();
+        }
+    }
+
+    private static String stringConstantOf(JackTokenizer tokenizer) {
+        try {
+            while (tokenizer.hasMoreTokens()) {
+                tokenizer.advance();
+                if (tokenizer.tokenType() == TokenType.STRING_CONSTANT) {
+                    return tokenizer.stringVal();
+                }
+            }
+            return null;
+        } finally {
+            tokenizer.close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package def.compiler;
+
+import def.compiler.SyntaxTree.ArrayEntry;
+import def.compiler.SyntaxTree.BinaryOperation;
+import def.compiler.SyntaxTree.Expression;
+import def.compiler.SyntaxTree.Parentheses;
+import def.compiler.SyntaxTree.SubroutineCall;
+import def.compiler.SyntaxTree.UnaryOperation;
+
+/**
+ * Swaps the operands of operations whose operands can be evaluated in either order, so that the operand that needs
+ * the deeper stack is evaluated first, while the stack holds nothing else (Sethi-Ullman numbering).
+ * <p>
+ * {@code +}, {@code *}, {@code &}, {@code |}, and {@code =} give the same result both ways around, and {@code <} and
+ * {@code >} become each other.  Operands that call a subroutine or build a string are never moved, since the order
+ * of their side effects could show.
+ */
+public class OperandOrderer extends TreeRewriter {
+
+    @Override
+    public Expression rewriteExpression(Expression expression) {
+        // order the operands first
+        expression = super.rewriteExpression(expression);
+
+        if (expression.nodeType() == SyntaxTree.NodeType.BINARY_OPERATION) {
+            BinaryOperation operation = (BinaryOperation) expression;
+            char swappedOperator = swappedOperator(operation.operator);
+            if (swappedOperator != 0 && stackDepth(operation.right) > stackDepth(operation.left)
+                    && !hasSideEffects(operation.left) && !hasSideEffects(operation.right)) {
+                return new BinaryOperation(swappedOperator, operation.right, operation.left);
+            }
+        }
+
+        return expression;
+    }
+
+    // the operator that gives the same result with the operands swapped, 0 if there is none
+    private static char swappedOperator(char operator) {
+        switch (operator) {
+            case '+':
+            case '*':
+            case '&':
+            case '|':
+            case '=':
+                return operator;
+            case '<':
+                return '>';
+            case '>':
+                return '<';
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return how many stack slots evaluating the expression takes, in the order it is evaluated.
+     */
+    static int stackDepth(Expression expression) {
+        switch (expression.nodeType()) {
+            case ARRAY_ENTRY:
+                // the base address is pushed before the index
+                return 1 + stackDepth(((ArrayEntry) expression).index);
+            case SUBROUTINE_CALL:
+                int depth = 1;
+                int argumentCount = 0;
+                for (Expression argument : ((SubroutineCall) expression).arguments) {
+                    depth = Math.max(depth, argumentCount + stackDepth(argument));
+                    argumentCount++;
+                }
+                return depth;
+            case UNARY_OPERATION:
+                return stackDepth(((UnaryOperation) expression).operand);
+            case BINARY_OPERATION:
+                BinaryOperation operation = (BinaryOperation) expression;
+                return Math.max(stackDepth(operation.left), 1 + stackDepth(operation.right));
+            case PARENTHESES:
+                return stackDepth(((Parentheses) expression).expression);
+            case STRING_CONSTANT:
+                // the string and the character appended to it
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    private static boolean hasSideEffects(Expression expression) {
+        switch (expression.nodeType()) {
+            case SUBROUTINE_CALL:
+            case STRING_CONSTANT:
+                return true;
+            case ARRAY_ENTRY:
+                return hasSideEffects(((ArrayEntry) expression).index);
+            case UNARY_OPERATION:
+                return hasSideEffects(((UnaryOperation) expression).operand);
+            case BINARY_OPERATION:
+                BinaryOperation operation = (BinaryOperation) expression;
+                return hasSideEffects(operation.left) || hasSideEffects(operation.right);
+            case PARENTHESES:
+                return hasSideEffects(((Parentheses) expression).expression);
+            default:
+                return false;
+        }
+    }
+}
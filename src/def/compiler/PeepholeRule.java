@@ -0,0 +1,267 @@
+package def.compiler;
+
+import def.compiler.CompilerOptions.Optimization;
+import def.compiler.VMCommand.Type;
+import def.compiler.VMWriter.Command;
+import def.compiler.VMWriter.Segment;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A rewrite of a short run of VM commands into a shorter run that does the same thing.  Each rule is turned on by an
+ * {@link Optimization}.
+ * <p>
+ * The rules look at the commands of one function at a time, and only at straight runs of commands, so a label in the
+ * middle of a pattern stops it from matching.  They assume that the values left in {@code temp} by the compiler's own
+ * code are not read after the command that uses them.
+ */
+public enum PeepholeRule {
+    /**
+     * {@code push x; pop x} does nothing.
+     */
+    PUSH_POP(Optimization.PEEPHOLE) {
+        @Override
+        boolean rewrite(List<VMCommand> commands, int index) {
+            VMCommand push = get(commands, index);
+            VMCommand pop = get(commands, index + 1);
+            if (push != null && pop != null && push.type == Type.PUSH && pop.type == Type.POP
+                    && push.segment == pop.segment && push.number == pop.number) {
+                remove(commands, index, 2);
+                return true;
+            }
+            return false;
+        }
+    },
+
+    /**
+     * {@code not; not} and {@code neg; neg} do nothing.
+     */
+    DOUBLE_NEGATION(Optimization.PEEPHOLE) {
+        @Override
+        boolean rewrite(List<VMCommand> commands, int index) {
+            VMCommand first = get(commands, index);
+            VMCommand second = get(commands, index + 1);
+            if (first != null && second != null && (first.is(Command.NOT) || first.is(Command.NEG))
+                    && second.equals(first)) {
+                remove(commands, index, 2);
+                return true;
+            }
+            return false;
+        }
+    },
+
+    /**
+     * Adding, subtracting, or or-ing 0 does nothing.
+     */
+    ZERO_OPERAND(Optimization.PEEPHOLE) {
+        @Override
+        boolean rewrite(List<VMCommand> commands, int index) {
+            VMCommand zero = get(commands, index);
+            VMCommand operation = get(commands, index + 1);
+            if (zero != null && operation != null && zero.isPushConstant(0)
+                    && (operation.is(Command.ADD) || operation.is(Command.SUB) || operation.is(Command.OR))) {
+                remove(commands, index, 2);
+                return true;
+            }
+            return false;
+        }
+    },
+
+    /**
+     * A jump on {@code true} or {@code false}, such as the one {@code while (true)} compiles to, is always or never
+     * taken.
+     */
+    CONSTANT_JUMP(Optimization.PEEPHOLE) {
+        @Override
+        boolean rewrite(List<VMCommand> commands, int index) {
+            // true is pushed as push constant 1; neg
+            int length;
+            boolean condition;
+            if (isPushConstant(commands, index, 0)) {
+                length = 1;
+                condition = false;
+            } else if (isPushConstant(commands, index, 1) && is(commands, index + 1, Command.NEG)) {
+                length = 2;
+                condition = true;
+            } else {
+                return false;
+            }
+
+            if (is(commands, index + length, Command.NOT)) {
+                length++;
+                condition = !condition;
+            }
+
+            VMCommand jump = get(commands, index + length);
+            if (jump == null || jump.type != Type.IF_GOTO) {
+                return false;
+            }
+
+            remove(commands, index, length + 1);
+            if (condition) {
+                commands.add(index, VMCommand.goTo(jump.name));
+            }
+            return true;
+        }
+    },
+
+    /**
+     * {@code push constant 0; eq; not; if-goto l} jumps when the value is not 0, as {@code if-goto l} alone does.
+     */
+    JUMP_IF_NOT_ZERO(Optimization.PEEPHOLE) {
+        @Override
+        boolean rewrite(List<VMCommand> commands, int index) {
+            VMCommand jump = get(commands, index + 3);
+            if (isPushConstant(commands, index, 0) && is(commands, index + 1, Command.EQ)
+                    && is(commands, index + 2, Command.NOT) && jump != null && jump.type == Type.IF_GOTO) {
+                remove(commands, index, 3);
+                return true;
+            }
+            return false;
+        }
+    },
+
+    /**
+     * {@code goto l; label l} only needs the label.
+     */
+    JUMP_TO_NEXT(Optimization.PEEPHOLE) {
+        @Override
+        boolean rewrite(List<VMCommand> commands, int index) {
+            VMCommand jump = get(commands, index);
+            VMCommand label = get(commands, index + 1);
+            if (jump != null && label != null && jump.type == Type.GOTO && label.type == Type.LABEL
+                    && jump.name.equals(label.name)) {
+                commands.remove(index);
+                return true;
+            }
+            return false;
+        }
+    },
+
+    /**
+     * An array store saves the value in {@code temp 1} while it computes the address.  When the value is a single
+     * push that does not read the address, it can be pushed after the address instead:
+     * {@code push v; pop temp 1; push a; add; pop pointer 1; push temp 1; pop that 0} becomes
+     * {@code push a; add; pop pointer 1; push v; pop that 0}.
+     */
+    ARRAY_STORE(Optimization.PEEPHOLE) {
+        @Override
+        boolean rewrite(List<VMCommand> commands, int index) {
+            VMCommand value = get(commands, index);
+            VMCommand array = get(commands, index + 2);
+            if (value == null || value.type != Type.PUSH || value.segment == Segment.THAT
+                    || value.isPush(Segment.POINTER) && value.number == 1
+                    || !isCommand(commands, index + 1, VMCommand.pop(Segment.TEMP, 1))
+                    || array == null || array.type != Type.PUSH || array.isPush(Segment.TEMP) && array.number == 1
+                    || !is(commands, index + 3, Command.ADD)
+                    || !isCommand(commands, index + 4, VMCommand.pop(Segment.POINTER, 1))
+                    || !isCommand(commands, index + 5, VMCommand.push(Segment.TEMP, 1))
+                    || !isCommand(commands, index + 6, VMCommand.pop(Segment.THAT, 0))) {
+                return false;
+            }
+
+            commands.set(index + 5, value);
+            remove(commands, index, 2);
+            return true;
+        }
+    },
+
+    /**
+     * The commands after a goto or return cannot run, up to the next label.
+     */
+    UNREACHABLE_CODE(Optimization.ELIMINATE_DEAD_CODE) {
+        @Override
+        boolean rewrite(List<VMCommand> commands, int index) {
+            VMCommand jump = get(commands, index);
+            VMCommand next = get(commands, index + 1);
+            if (jump != null && next != null && (jump.type == Type.GOTO || jump.type == Type.RETURN)
+                    && next.type != Type.LABEL) {
+                commands.remove(index + 1);
+                return true;
+            }
+            return false;
+        }
+    },
+
+    /**
+     * A label that nothing in the function jumps to is not needed.
+     */
+    UNUSED_LABEL(Optimization.ELIMINATE_DEAD_CODE) {
+        @Override
+        boolean rewrite(List<VMCommand> commands, int index) {
+            VMCommand label = get(commands, index);
+            if (label == null || label.type != Type.LABEL) {
+                return false;
+            }
+
+            for (VMCommand command : commands) {
+                if ((command.type == Type.GOTO || command.type == Type.IF_GOTO) && command.name.equals(label.name)) {
+                    return false;
+                }
+            }
+            commands.remove(index);
+            return true;
+        }
+    };
+
+    private final Optimization optimization;
+
+    PeepholeRule(Optimization optimization) {
+        this.optimization = optimization;
+    }
+
+    /**
+     * @return the optimization that turns the rule on.
+     */
+    public Optimization optimization() {
+        return optimization;
+    }
+
+    /**
+     * Tries to apply the rule to the commands starting at the given index.
+     * @return true if the rule matched and changed the commands.
+     */
+    abstract boolean rewrite(List<VMCommand> commands, int index);
+
+    /**
+     * Applies the rules to the commands of a function until none of them matches anywhere.
+     * @param commands The commands of one function, which are rewritten in place.
+     * @param rules The rules to apply.
+     */
+    public static void rewriteAll(List<VMCommand> commands, Collection<PeepholeRule> rules) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int index = 0; index < commands.size(); index++) {
+                for (PeepholeRule rule : rules) {
+                    while (rule.rewrite(commands, index)) {
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private static VMCommand get(List<VMCommand> commands, int index) {
+        return index < commands.size() ? commands.get(index) : null;
+    }
+
+    private static boolean isCommand(List<VMCommand> commands, int index, VMCommand command) {
+        return command.equals(get(commands, index));
+    }
+
+    private static boolean is(List<VMCommand> commands, int index, Command command) {
+        VMCommand vmCommand = get(commands, index);
+        return vmCommand != null && vmCommand.is(command);
+    }
+
+    private static boolean isPushConstant(List<VMCommand> commands, int index, int value) {
+        VMCommand vmCommand = get(commands, index);
+        return vmCommand != null && vmCommand.isPushConstant(value);
+    }
+
+    private static void remove(List<VMCommand> commands, int index, int count) {
+        commands.subList(index, index + count).clear();
+    }
+}
@@ -0,0 +1,71 @@
+package def.compiler;
+
+import def.compiler.CompilerOptions.Optimization;
+import def.compiler.VMWriter.Command;
+import def.compiler.VMWriter.Segment;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class PeepholeRuleTest {
+    @Test
+    public void rewriteArrayStore() throws Exception {
+        // let a[i] = x;
+        List<VMCommand> commands = new ArrayList<>(Arrays.asList(VMCommand.push(Segment.LOCAL, 1),
+                VMCommand.push(Segment.ARGUMENT, 0), VMCommand.pop(Segment.TEMP, 1), VMCommand.push(Segment.LOCAL, 0),
+                VMCommand.arithmetic(Command.ADD), VMCommand.pop(Segment.POINTER, 1), VMCommand.push(Segment.TEMP, 1),
+                VMCommand.pop(Segment.THAT, 0)));
+
+        PeepholeRule.rewriteAll(commands, rulesOf(Optimization.PEEPHOLE));
+
+        assertEquals(Arrays.asList(VMCommand.push(Segment.LOCAL, 1), VMCommand.push(Segment.LOCAL, 0),
+                VMCommand.arithmetic(Command.ADD), VMCommand.pop(Segment.POINTER, 1), VMCommand.push(Segment.ARGUMENT, 0),
+                VMCommand.pop(Segment.THAT, 0)), commands);
+    }
+
+    @Test
+    public void rewriteUntilNoRuleMatches() throws Exception {
+        // while (true) { let x = ~(~x); }
+        List<VMCommand> commands = new ArrayList<>(Arrays.asList(VMCommand.label("whileStart0"),
+                VMCommand.push(Segment.CONSTANT, 1), VMCommand.arithmetic(Command.NEG), VMCommand.arithmetic(Command.NOT),
+                VMCommand.ifGoTo("whileEnd0"), VMCommand.push(Segment.LOCAL, 0), VMCommand.arithmetic(Command.NOT),
+                VMCommand.arithmetic(Command.NOT), VMCommand.pop(Segment.LOCAL, 0), VMCommand.goTo("whileStart0"),
+                VMCommand.label("whileEnd0")));
+
+        PeepholeRule.rewriteAll(commands, rulesOf(Optimization.PEEPHOLE));
+
+        assertEquals(Arrays.asList(VMCommand.label("whileStart0"), VMCommand.goTo("whileStart0"),
+                VMCommand.label("whileEnd0")), commands);
+    }
+
+    @Test
+    public void eliminateDeadCode() throws Exception {
+        // if (x) { return 1; } else { return 2; }
+        List<VMCommand> commands = new ArrayList<>(Arrays.asList(VMCommand.push(Segment.ARGUMENT, 0),
+                VMCommand.arithmetic(Command.NOT), VMCommand.ifGoTo("ifEnd0"), VMCommand.push(Segment.CONSTANT, 1),
+                VMCommand.returnCommand(), VMCommand.goTo("elseEnd0"), VMCommand.label("ifEnd0"),
+                VMCommand.push(Segment.CONSTANT, 2), VMCommand.returnCommand(), VMCommand.label("elseEnd0")));
+
+        PeepholeRule.rewriteAll(commands, rulesOf(Optimization.ELIMINATE_DEAD_CODE));
+
+        assertEquals(Arrays.asList(VMCommand.push(Segment.ARGUMENT, 0), VMCommand.arithmetic(Command.NOT),
+                VMCommand.ifGoTo("ifEnd0"), VMCommand.push(Segment.CONSTANT, 1), VMCommand.returnCommand(),
+                VMCommand.label("ifEnd0"), VMCommand.push(Segment.CONSTANT, 2), VMCommand.returnCommand()), commands);
+    }
+
+    private static Set<PeepholeRule> rulesOf(Optimization optimization) {
+        Set<PeepholeRule> rules = EnumSet.noneOf(PeepholeRule.class);
+        for (PeepholeRule rule : PeepholeRule.values()) {
+            if (rule.optimization() == optimization) {
+                rules.add(rule);
+            }
+        }
+        return rules;
+    }
+}
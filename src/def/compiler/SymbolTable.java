@@ -1,6 +1,6 @@
 package def.compiler;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
  * Created by dflor on 8/8/2017.
@@ -24,10 +24,17 @@ import java.util.HashMap;
  * {@link SymbolTable} Provides a symbol table abstraction.  The Symbol table associates the
  * identifier names found in the program with identifier properties needed for compilation:
  * type, kind, and running index.  The symbol table for Jack programs has two nested scopes (class/subroutine).
+ *
+ * Names are kept in an {@link IdentifierPool}, and each scope is an array indexed by the identifier id,
+ * so looking a symbol up by id is a single array access.  When the pool is shared with the
+ * {@link JackTokenizer}, identifiers straight from the tokenizer can be looked up without hashing.
  */
 public class SymbolTable {
-    private HashMap<String, indexTypeAndKind> classScope;
-    private HashMap<String, indexTypeAndKind> subroutineScope;
+    private IdentifierPool identifiers;
+    private indexTypeAndKind[] classScope;
+    private indexTypeAndKind[] subroutineScope;
+    private int[] subroutineIds;
+    private int subroutineSymbolCount;
 
     private int staticIndex;
     private int fieldIndex;
@@ -38,8 +45,19 @@ public class SymbolTable {
      * Creates a new empty symbol table.
      */
     public SymbolTable() {
-        classScope = new HashMap<>();
-        subroutineScope = new HashMap<>();
+        this(new IdentifierPool());
+    }
+
+    /**
+     * Creates a new empty symbol table, with its names kept in the given pool.
+     * @param identifiers The pool to intern symbol names in, usually the one of the {@link JackTokenizer}.
+     */
+    public SymbolTable(IdentifierPool identifiers) {
+        this.identifiers = identifiers;
+        classScope = new indexTypeAndKind[Math.max(identifiers.size(), 16)];
+        subroutineScope = new indexTypeAndKind[classScope.length];
+        subroutineIds = new int[16];
+        subroutineSymbolCount = 0;
 
         staticIndex = 0;
         fieldIndex = 0;
@@ -51,7 +69,10 @@ public class SymbolTable {
      * Starts a new subroutine scope (i.e., resets the subroutine's symbol table).
      */
     public void startSubroutine() {
-        subroutineScope.clear();
+        for (int i = 0; i < subroutineSymbolCount; i++) {
+            subroutineScope[subroutineIds[i]] = null;
+        }
+        subroutineSymbolCount = 0;
 
         varIndex = 0;
         argIndex = 0;
@@ -65,33 +86,52 @@ public class SymbolTable {
      * @param kind The kind of the symbol, STATIC, ARG, VAR, or FIELD.
      */
     public void define(String name, String type, Kind kind) {
-        if (kind.scopeIsClass() && classScope.containsKey(name))
+        int id = identifiers.intern(name);
+        ensureCapacity(id);
+
+        if (kind.scopeIsClass() && classScope[id] != null)
             throw new SymbolExistsException(name, type, kind);
-        else if (kind.scopeIsSubroutine() && subroutineScope.containsKey(name))
+        else if (kind.scopeIsSubroutine() && subroutineScope[id] != null)
             throw new SymbolExistsException(name, type, kind);
         else if (kind == Kind.NONE)
             throw new IllegalArgumentException("The kind " + Kind.NONE + " is not a valid kind");
 
         switch (kind) {
             case STATIC:
-                classScope.put(name, new indexTypeAndKind(staticIndex, type, kind));
+                classScope[id] = new indexTypeAndKind(staticIndex, type, kind);
                 staticIndex++;
                 break;
             case FIELD:
-                classScope.put(name, new indexTypeAndKind(fieldIndex, type, kind));
+                classScope[id] = new indexTypeAndKind(fieldIndex, type, kind);
                 fieldIndex++;
                 break;
             case ARG:
-                subroutineScope.put(name, new indexTypeAndKind(argIndex, type, kind));
+                defineInSubroutine(id, new indexTypeAndKind(argIndex, type, kind));
                 argIndex++;
                 break;
             case VAR:
-                subroutineScope.put(name, new indexTypeAndKind(varIndex, type, kind));
+                defineInSubroutine(id, new indexTypeAndKind(varIndex, type, kind));
                 varIndex++;
                 break;
         }
     }
 
+    private void defineInSubroutine(int id, indexTypeAndKind data) {
+        if (subroutineSymbolCount == subroutineIds.length) {
+            subroutineIds = Arrays.copyOf(subroutineIds, subroutineIds.length * 2);
+        }
+        subroutineIds[subroutineSymbolCount++] = id;
+        subroutineScope[id] = data;
+    }
+
+    private void ensureCapacity(int id) {
+        if (id >= classScope.length) {
+            int capacity = Math.max(id + 1, classScope.length * 2);
+            classScope = Arrays.copyOf(classScope, capacity);
+            subroutineScope = Arrays.copyOf(subroutineScope, capacity);
+        }
+    }
+
     /**
      * Returns the number of variables of the given kind already defined in the current scope.
      * @param kind The kind of symbol to get a count of
@@ -128,7 +168,17 @@ public class SymbolTable {
      * @return The kind of the symbol with name name.
      */
     public Kind kindOf(String name) {
-        indexTypeAndKind kind = getSymbolData(name);
+        return kindOf(identifiers.idOf(name));
+    }
+
+    /**
+     * Returns the kind of the identifier with the given id in the current scope.
+     * If the identifier is unknown in the current scope, returns NONE.
+     * @param id The id of the symbol name, in the identifier pool of this table.
+     * @return The kind of the symbol.
+     */
+    public Kind kindOf(int id) {
+        indexTypeAndKind kind = getSymbolData(id);
         return kind!=null?kind.kind: Kind.NONE;
     }
 
@@ -138,7 +188,16 @@ public class SymbolTable {
      * @return The type of the symbol, either a primitive or a class
      */
     public String typeOf(String name) {
-        indexTypeAndKind type = getSymbolData(name);
+        return typeOf(identifiers.idOf(name));
+    }
+
+    /**
+     * Returns the type of the identifier with the given id in the current scope.
+     * @param id The id of the symbol name, in the identifier pool of this table.
+     * @return The type of the symbol, either a primitive or a class
+     */
+    public String typeOf(int id) {
+        indexTypeAndKind type = getSymbolData(id);
         return type!=null?type.type:null;
     }
 
@@ -148,17 +207,30 @@ public class SymbolTable {
      * @return The index assigned to the symbol with name name.
      */
     public int indexOf(String name) {
-        indexTypeAndKind index = getSymbolData(name);
+        return indexOf(identifiers.idOf(name));
+    }
+
+    /**
+     * Returns the index assigned to the identifier with the given id.
+     * @param id The id of the symbol name, in the identifier pool of this table.
+     * @return The index assigned to the symbol.
+     */
+    public int indexOf(int id) {
+        indexTypeAndKind index = getSymbolData(id);
         return index!=null?index.index:-1;
     }
 
-    private indexTypeAndKind getSymbolData(String name) {
+    private indexTypeAndKind getSymbolData(int id) {
+        if (id < 0 || id >= classScope.length) {
+            return null;
+        }
+
         indexTypeAndKind data;
 
-        data = subroutineScope.get(name);
+        data = subroutineScope[id];
 
         if (data == null) {
-            data = classScope.get(name);
+            data = classScope[id];
         }
 
         return data;
@@ -0,0 +1,311 @@
+package def.compiler;
+
+import def.compiler.JackTokenizer.KeyWord;
+import def.compiler.SymbolTable.Kind;
+
+import java.util.List;
+
+/**
+ * The nodes of the abstract syntax tree the {@link CompilationEngine} builds for a Jack class.
+ * <p>
+ * The tree has one node per declaration, statement, and term of the Jack grammar.  Expressions
+ * are binary trees: {@code a + b - c} is {@code (a + b) - c}, as Jack evaluates strictly from left
+ * to right.  Parentheses are kept as nodes of their own, so that the {@link XMLEmitter} can print
+ * the parse tree exactly as it was written.  Nodes are immutable, so a tree can be walked by any
+ * number of emitters, and a pass that changes the program builds new nodes instead.
+ * <p>
+ * Statement and expression nodes have a {@link NodeType}, to switch on when walking the tree.
+ */
+public final class SyntaxTree {
+
+    private SyntaxTree() {
+    }
+
+    public enum NodeType {
+        LET,
+        IF,
+        WHILE,
+        DO,
+        RETURN,
+        INTEGER_CONSTANT,
+        STRING_CONSTANT,
+        KEYWORD_CONSTANT,
+        VARIABLE,
+        ARRAY_ENTRY,
+        SUBROUTINE_CALL,
+        UNARY_OPERATION,
+        BINARY_OPERATION,
+        PARENTHESES
+    }
+
+    /**
+     * A class: {@code 'class' className '{' classVarDec* subroutineDec* '}'}
+     */
+    public static class ClassDeclaration {
+        public final String name;
+        public final List<VariableDeclaration> variables;
+        public final List<SubroutineDeclaration> subroutines;
+
+        public ClassDeclaration(String name, List<VariableDeclaration> variables, List<SubroutineDeclaration> subroutines) {
+            this.name = name;
+            this.variables = variables;
+            this.subroutines = subroutines;
+        }
+    }
+
+    /**
+     * A declaration of one or more variables of the same kind and type.  This is a classVarDec,
+     * a varDec, or a single parameter of a parameter list.
+     */
+    public static class VariableDeclaration {
+        public final Kind kind;
+        public final String type;
+        public final boolean typeIsPrimitive; //int, char, boolean, or void instead of a class name
+        public final List<String> names;
+
+        public VariableDeclaration(Kind kind, String type, boolean typeIsPrimitive, List<String> names) {
+            this.kind = kind;
+            this.type = type;
+            this.typeIsPrimitive = typeIsPrimitive;
+            this.names = names;
+        }
+    }
+
+    /**
+     * A constructor, function, or method.
+     */
+    public static class SubroutineDeclaration {
+        public final KeyWord subroutineType;
+        public final String returnType;
+        public final boolean returnTypeIsPrimitive;
+        public final String name;
+        public final List<VariableDeclaration> parameters;
+        public final List<VariableDeclaration> localVariables;
+        public final List<Statement> statements;
+
+        public SubroutineDeclaration(KeyWord subroutineType, String returnType, boolean returnTypeIsPrimitive, String name,
+                                     List<VariableDeclaration> parameters, List<VariableDeclaration> localVariables,
+                                     List<Statement> statements) {
+            this.subroutineType = subroutineType;
+            this.returnType = returnType;
+            this.returnTypeIsPrimitive = returnTypeIsPrimitive;
+            this.name = name;
+            this.parameters = parameters;
+            this.localVariables = localVariables;
+            this.statements = statements;
+        }
+    }
+
+    public static abstract class Node {
+        private final NodeType nodeType;
+
+        Node(NodeType nodeType) {
+            this.nodeType = nodeType;
+        }
+
+        public NodeType nodeType() {
+            return nodeType;
+        }
+    }
+
+    public static abstract class Statement extends Node {
+        Statement(NodeType nodeType) {
+            super(nodeType);
+        }
+    }
+
+    /**
+     * {@code 'let' varName ('[' expression ']')? '=' expression ';'}
+     */
+    public static class LetStatement extends Statement {
+        public final String variableName;
+        public final int variableId;
+        public final Expression index; //null unless assigning to an array entry
+        public final Expression value;
+
+        public LetStatement(String variableName, int variableId, Expression index, Expression value) {
+            super(NodeType.LET);
+            this.variableName = variableName;
+            this.variableId = variableId;
+            this.index = index;
+            this.value = value;
+        }
+    }
+
+    /**
+     * {@code 'if' '(' expression ')' '{' statements '}' ('else' '{' statements '}')?}
+     */
+    public static class IfStatement extends Statement {
+        public final Expression condition;
+        public final List<Statement> thenStatements;
+        public final List<Statement> elseStatements; //null if there is no else clause
+
+        public IfStatement(Expression condition, List<Statement> thenStatements, List<Statement> elseStatements) {
+            super(NodeType.IF);
+            this.condition = condition;
+            this.thenStatements = thenStatements;
+            this.elseStatements = elseStatements;
+        }
+    }
+
+    /**
+     * {@code 'while' '(' expression ')' '{' statements '}'}
+     */
+    public static class WhileStatement extends Statement {
+        public final Expression condition;
+        public final List<Statement> statements;
+
+        public WhileStatement(Expression condition, List<Statement> statements) {
+            super(NodeType.WHILE);
+            this.condition = condition;
+            this.statements = statements;
+        }
+    }
+
+    /**
+     * {@code 'do' subroutineCall ';'}
+     */
+    public static class DoStatement extends Statement {
+        public final SubroutineCall call;
+
+        public DoStatement(SubroutineCall call) {
+            super(NodeType.DO);
+            this.call = call;
+        }
+    }
+
+    /**
+     * {@code 'return' expression? ';'}
+     */
+    public static class ReturnStatement extends Statement {
+        public final Expression value; //null for a void return
+
+        public ReturnStatement(Expression value) {
+            super(NodeType.RETURN);
+            this.value = value;
+        }
+    }
+
+    public static abstract class Expression extends Node {
+        Expression(NodeType nodeType) {
+            super(nodeType);
+        }
+    }
+
+    public static class IntegerConstant extends Expression {
+        public final int value;
+
+        public IntegerConstant(int value) {
+            super(NodeType.INTEGER_CONSTANT);
+            this.value = value;
+        }
+    }
+
+    public static class StringConstant extends Expression {
+        public final String value;
+
+        public StringConstant(String value) {
+            super(NodeType.STRING_CONSTANT);
+            this.value = value;
+        }
+    }
+
+    /**
+     * One of {@code true}, {@code false}, {@code null}, or {@code this}.
+     */
+    public static class KeywordConstant extends Expression {
+        public final KeyWord keyWord;
+
+        public KeywordConstant(KeyWord keyWord) {
+            super(NodeType.KEYWORD_CONSTANT);
+            this.keyWord = keyWord;
+        }
+    }
+
+    public static class Variable extends Expression {
+        public final String name;
+        public final int id;
+
+        public Variable(String name, int id) {
+            super(NodeType.VARIABLE);
+            this.name = name;
+            this.id = id;
+        }
+    }
+
+    /**
+     * {@code varName '[' expression ']'}
+     */
+    public static class ArrayEntry extends Expression {
+        public final String arrayName;
+        public final int arrayId;
+        public final Expression index;
+
+        public ArrayEntry(String arrayName, int arrayId, Expression index) {
+            super(NodeType.ARRAY_ENTRY);
+            this.arrayName = arrayName;
+            this.arrayId = arrayId;
+            this.index = index;
+        }
+    }
+
+    /**
+     * {@code subroutineName '(' expressionList ')' | (className|varName) '.' subroutineName '(' expressionList ')'}
+     */
+    public static class SubroutineCall extends Expression {
+        public final String classOrVarName; //null when calling a method of this
+        public final int classOrVarNameId;
+        public final String subroutineName;
+        public final List<Expression> arguments;
+
+        public SubroutineCall(String classOrVarName, int classOrVarNameId, String subroutineName, List<Expression> arguments) {
+            super(NodeType.SUBROUTINE_CALL);
+            this.classOrVarName = classOrVarName;
+            this.classOrVarNameId = classOrVarNameId;
+            this.subroutineName = subroutineName;
+            this.arguments = arguments;
+        }
+    }
+
+    /**
+     * {@code ('-'|'~') term}
+     */
+    public static class UnaryOperation extends Expression {
+        public final char operator;
+        public final Expression operand;
+
+        public UnaryOperation(char operator, Expression operand) {
+            super(NodeType.UNARY_OPERATION);
+            this.operator = operator;
+            this.operand = operand;
+        }
+    }
+
+    /**
+     * {@code left op right}, where op is one of {@code + - * / & | < > =}
+     */
+    public static class BinaryOperation extends Expression {
+        public final char operator;
+        public final Expression left;
+        public final Expression right;
+
+        public BinaryOperation(char operator, Expression left, Expression right) {
+            super(NodeType.BINARY_OPERATION);
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /**
+     * {@code '(' expression ')'}
+     */
+    public static class Parentheses extends Expression {
+        public final Expression expression;
+
+        public Parentheses(Expression expression) {
+            super(NodeType.PARENTHESES);
+            this.expression = expression;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package def.compiler;
+
+import def.compiler.SyntaxTree.ArrayEntry;
+import def.compiler.SyntaxTree.BinaryOperation;
+import def.compiler.SyntaxTree.ClassDeclaration;
+import def.compiler.SyntaxTree.DoStatement;
+import def.compiler.SyntaxTree.Expression;
+import def.compiler.SyntaxTree.IfStatement;
+import def.compiler.SyntaxTree.LetStatement;
+import def.compiler.SyntaxTree.Parentheses;
+import def.compiler.SyntaxTree.ReturnStatement;
+import def.compiler.SyntaxTree.Statement;
+import def.compiler.SyntaxTree.SubroutineCall;
+import def.compiler.SyntaxTree.SubroutineDeclaration;
+import def.compiler.SyntaxTree.UnaryOperation;
+import def.compiler.SyntaxTree.WhileStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pass over a {@link SyntaxTree} that builds a changed copy of it.
+ * <p>
+ * Each {@code rewriteXxx()} method returns the rewritten node.  By default a node is rewritten by rewriting its
+ * children, and it is only copied when one of its children changed, so an unchanged tree comes back as the same
+ * objects.  A pass overrides the methods of the nodes it changes, usually calling the super method first, so that
+ * it sees the rewritten children.
+ */
+public abstract class TreeRewriter {
+
+    public ClassDeclaration rewriteClass(ClassDeclaration classDeclaration) {
+        List<SubroutineDeclaration> subroutines = new ArrayList<>(classDeclaration.subroutines.size());
+        boolean changed = false;
+        for (SubroutineDeclaration subroutine : classDeclaration.subroutines) {
+            SubroutineDeclaration rewritten = rewriteSubroutine(subroutine);
+            subroutines.add(rewritten);
+            changed |= rewritten != subroutine;
+        }
+
+        if (!changed) {
+            return classDeclaration;
+        }
+        return new ClassDeclaration(classDeclaration.name, classDeclaration.variables, subroutines);
+    }
+
+    public SubroutineDeclaration rewriteSubroutine(SubroutineDeclaration subroutine) {
+        List<Statement> statements = rewriteStatements(subroutine.statements);
+
+        if (statements == subroutine.statements) {
+            return subroutine;
+        }
+        return new SubroutineDeclaration(subroutine.subroutineType, subroutine.returnType, subroutine.returnTypeIsPrimitive,
+                subroutine.name, subroutine.parameters, subroutine.localVariables, statements);
+    }
+
+    /**
+     * Rewrites each statement of a list.
+     * @return The same list if no statement changed, else a new list.
+     */
+    public List<Statement> rewriteStatements(List<Statement> statements) {
+        List<Statement> rewrittenStatements = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Statement statement : statements) {
+            Statement rewritten = rewriteStatement(statement);
+            rewrittenStatements.add(rewritten);
+            changed |= rewritten != statement;
+        }
+
+        return changed ? rewrittenStatements : statements;
+    }
+
+    public Statement rewriteStatement(Statement statement) {
+        switch (statement.nodeType()) {
+            case LET:
+                LetStatement let = (LetStatement) statement;
+                Expression index = let.index != null ? rewriteExpression(let.index) : null;
+                Expression value = rewriteExpression(let.value);
+                if (index != let.index || value != let.value) {
+                    return new LetStatement(let.variableName, let.variableId, index, value);
+                }
+                break;
+            case IF:
+                IfStatement ifStatement = (IfStatement) statement;
+                Expression condition = rewriteExpression(ifStatement.condition);
+                List<Statement> thenStatements = rewriteStatements(ifStatement.thenStatements);
+                List<Statement> elseStatements = ifStatement.elseStatements != null ?
+                        rewriteStatements(ifStatement.elseStatements) : null;
+                if (condition != ifStatement.condition || thenStatements != ifStatement.thenStatements
+                        || elseStatements != ifStatement.elseStatements) {
+                    return new IfStatement(condition, thenStatements, elseStatements);
+                }
+                break;
+            case WHILE:
+                WhileStatement loop = (WhileStatement) statement;
+                Expression loopCondition = rewriteExpression(loop.condition);
+                List<Statement> body = rewriteStatements(loop.statements);
+                if (loopCondition != loop.condition || body != loop.statements) {
+                    return new WhileStatement(loopCondition, body);
+                }
+                break;
+            case DO:
+                DoStatement doStatement = (DoStatement) statement;
+                Expression call = rewriteExpression(doStatement.call);
+                // a do statement must stay a call, so only its arguments can change
+                if (call != doStatement.call && call.nodeType() == SyntaxTree.NodeType.SUBROUTINE_CALL) {
+                    return new DoStatement((SubroutineCall) call);
+                }
+                break;
+            case RETURN:
+                ReturnStatement returnStatement = (ReturnStatement) statement;
+                if (returnStatement.value != null) {
+                    Expression returnValue = rewriteExpression(returnStatement.value);
+                    if (returnValue != returnStatement.value) {
+                        return new ReturnStatement(returnValue);
+                    }
+                }
+                break;
+        }
+
+        return statement;
+    }
+
+    public Expression rewriteExpression(Expression expression) {
+        switch (expression.nodeType()) {
+            case ARRAY_ENTRY:
+                ArrayEntry entry = (ArrayEntry) expression;
+                Expression index = rewriteExpression(entry.index);
+                if (index != entry.index) {
+                    return new ArrayEntry(entry.arrayName, entry.arrayId, index);
+                }
+                break;
+            case SUBROUTINE_CALL:
+                SubroutineCall call = (SubroutineCall) expression;
+                List<Expression> arguments = rewriteExpressions(call.arguments);
+                if (arguments != call.arguments) {
+                    return new SubroutineCall(call.classOrVarName, call.classOrVarNameId, call.subroutineName, arguments);
+                }
+                break;
+            case UNARY_OPERATION:
+                UnaryOperation unaryOperation = (UnaryOperation) expression;
+                Expression operand = rewriteExpression(unaryOperation.operand);
+                if (operand != unaryOperation.operand) {
+                    return new UnaryOperation(unaryOperation.operator, operand);
+                }
+                break;
+            case BINARY_OPERATION:
+                BinaryOperation binaryOperation = (BinaryOperation) expression;
+                Expression left = rewriteExpression(binaryOperation.left);
+                Expression right = rewriteExpression(binaryOperation.right);
+                if (left != binaryOperation.left || right != binaryOperation.right) {
+                    return new BinaryOperation(binaryOperation.operator, left, right);
+                }
+                break;
+            case PARENTHESES:
+                Parentheses parentheses = (Parentheses) expression;
+                Expression inner = rewriteExpression(parentheses.expression);
+                if (inner != parentheses.expression) {
+                    return new Parentheses(inner);
+                }
+                break;
+            default:
+                // constants and variables have no children
+                break;
+        }
+
+        return expression;
+    }
+
+    /**
+     * Rewrites each expression of a list.
+     * @return The same list if no expression changed, else a new list.
+     */
+    public List<Expression> rewriteExpressions(List<Expression> expressions) {
+        List<Expression> rewrittenExpressions = new ArrayList<>(expressions.size());
+        boolean changed = false;
+        for (Expression expression : expressions) {
+            Expression rewritten = rewriteExpression(expression);
+            rewrittenExpressions.add(rewritten);
+            changed |= rewritten != expression;
+        }
+
+        return changed ? rewrittenExpressions : expressions;
+    }
+}
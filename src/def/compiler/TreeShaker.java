@@ -0,0 +1,116 @@
+package def.compiler;
+
+import def.compiler.VMCommand.Type;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Drops the functions of a whole program that can never be called.
+ * <p>
+ * The VM language only calls functions by name, so the call graph is the {@code call} commands of each function.
+ * Every function reachable in it from {@link #ENTRY_POINTS} is kept, along with the classes' statics, which keep
+ * their indexes.  Calls to functions the program does not define, such as those of an OS the VM emulator provides,
+ * are left as they are.
+ */
+public class TreeShaker {
+    /**
+     * The functions a program starts from: Sys.init, which the bootstrap code calls, and Main.main, which Sys.init
+     * calls.
+     */
+    public static final List<String> ENTRY_POINTS = Arrays.asList("Sys.init", "Main.main");
+
+    private TreeShaker() {
+    }
+
+    /**
+     * @return true if one of the classes of the program defines one of the {@link #ENTRY_POINTS}.
+     */
+    public static boolean hasEntryPoint(VMProgram program) {
+        Map<String, List<VMCommand>> functions = program.functions();
+        for (String entryPoint : ENTRY_POINTS) {
+            if (functions.containsKey(entryPoint)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the names of the functions that can be called from the entry points, including the entry points and
+     *         the functions that are called but not defined by the program.
+     */
+    public static Set<String> reachableFunctions(VMProgram program) {
+        Map<String, List<VMCommand>> functions = program.functions();
+        Set<String> reachable = new HashSet<>();
+        Deque<String> toVisit = new ArrayDeque<>();
+        for (String entryPoint : ENTRY_POINTS) {
+            if (functions.containsKey(entryPoint)) {
+                toVisit.push(entryPoint);
+            }
+        }
+
+        while (!toVisit.isEmpty()) {
+            String name = toVisit.pop();
+            if (!reachable.add(name) || !functions.containsKey(name)) {
+                continue;
+            }
+
+            for (VMCommand command : functions.get(name)) {
+                if (command.type == Type.CALL && !reachable.contains(command.name)) {
+                    toVisit.push(command.name);
+                }
+            }
+        }
+
+        return reachable;
+    }
+
+    /**
+     * @param commands The VM code of a class.
+     * @param reachable The functions to keep, from {@link #reachableFunctions(VMProgram)}.
+     * @return the commands of the class's functions that are in {@code reachable}.
+     */
+    public static List<VMCommand> shake(List<VMCommand> commands, Set<String> reachable) {
+        List<VMCommand> kept = new ArrayList<>();
+        boolean keep = true;
+        for (VMCommand command : commands) {
+            if (command.type == Type.FUNCTION) {
+                keep = reachable.contains(command.name);
+            }
+            if (keep) {
+                kept.add(command);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Drops the functions of a program that can not be called from its entry points.  A program without an entry
+     * point, such as a library, is left as it is.
+     * @param program The program to shake.
+     * @param out Where to print what was kept.
+     */
+    public static void shakeProgram(VMProgram program, PrintStream out) {
+        if (!hasEntryPoint(program)) {
+            out.println("Nothing was tree shaken, since no class defines " + ENTRY_POINTS);
+            return;
+        }
+
+        int functionCount = program.functionCount(), commandCount = program.commandCount();
+        Set<String> reachable = reachableFunctions(program);
+        for (String className : program.classNames()) {
+            program.addClass(className, shake(program.commandsOf(className), reachable));
+        }
+
+        out.println("Tree shaking kept " + program.functionCount() + " of " + functionCount + " functions, "
+                + program.commandCount() + " of " + commandCount + " VM commands");
+    }
+}
@@ -0,0 +1,141 @@
+package def.compiler;
+
+import def.compiler.VMWriter.Command;
+import def.compiler.VMWriter.Segment;
+
+/**
+ * One VM command, held in memory so that it can be rewritten before it is written out.
+ * <p>
+ * Only the fields of the command's {@link Type} are set: {@link #segment} and {@link #number} (the index) for push
+ * and pop, {@link #command} for arithmetic, {@link #name} for labels and jumps, and {@link #name} and {@link #number}
+ * (the argument or local count) for calls and functions.  {@link #toString()} is the command in the VM command syntax,
+ * as {@link VMWriter} writes it.
+ */
+public final class VMCommand {
+
+    public enum Type {
+        PUSH,
+        POP,
+        ARITHMETIC,
+        LABEL,
+        GOTO,
+        IF_GOTO,
+        CALL,
+        FUNCTION,
+        RETURN
+    }
+
+    public final Type type;
+    public final Segment segment;
+    public final Command command;
+    public final String name;
+    public final int number;
+
+    private VMCommand(Type type, Segment segment, Command command, String name, int number) {
+        this.type = type;
+        this.segment = segment;
+        this.command = command;
+        this.name = name;
+        this.number = number;
+    }
+
+    public static VMCommand push(Segment segment, int index) {
+        return new VMCommand(Type.PUSH, segment, null, null, index);
+    }
+
+    public static VMCommand pop(Segment segment, int index) {
+        return new VMCommand(Type.POP, segment, null, null, index);
+    }
+
+    public static VMCommand arithmetic(Command command) {
+        return new VMCommand(Type.ARITHMETIC, null, command, null, 0);
+    }
+
+    public static VMCommand label(String label) {
+        return new VMCommand(Type.LABEL, null, null, label, 0);
+    }
+
+    public static VMCommand goTo(String label) {
+        return new VMCommand(Type.GOTO, null, null, label, 0);
+    }
+
+    public static VMCommand ifGoTo(String label) {
+        return new VMCommand(Type.IF_GOTO, null, null, label, 0);
+    }
+
+    public static VMCommand call(String name, int nArgs) {
+        return new VMCommand(Type.CALL, null, null, name, nArgs);
+    }
+
+    public static VMCommand function(String name, int nLocals) {
+        return new VMCommand(Type.FUNCTION, null, null, name, nLocals);
+    }
+
+    public static VMCommand returnCommand() {
+        return new VMCommand(Type.RETURN, null, null, null, 0);
+    }
+
+    /**
+     * @return true if this is a push of the given segment.
+     */
+    public boolean isPush(Segment segment) {
+        return type == Type.PUSH && this.segment == segment;
+    }
+
+    /**
+     * @return true if this is {@code push constant value}.
+     */
+    public boolean isPushConstant(int value) {
+        return isPush(Segment.CONSTANT) && number == value;
+    }
+
+    /**
+     * @return true if this is the given arithmetic command.
+     */
+    public boolean is(Command command) {
+        return type == Type.ARITHMETIC && this.command == command;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof VMCommand)) {
+            return false;
+        }
+        VMCommand other = (VMCommand) o;
+        return type == other.type && segment == other.segment && command == other.command
+                && (name == null ? other.name == null : name.equals(other.name)) && number == other.number;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = type.hashCode();
+        hash = 31 * hash + (segment == null ? 0 : segment.hashCode());
+        hash = 31 * hash + (command == null ? 0 : command.hashCode());
+        hash = 31 * hash + (name == null ? 0 : name.hashCode());
+        return 31 * hash + number;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case PUSH:
+                return "    push " + segment.toString().toLowerCase() + " " + number;
+            case POP:
+                return "    pop " + segment.toString().toLowerCase() + " " + number;
+            case ARITHMETIC:
+                return "    " + command.toString().toLowerCase();
+            case LABEL:
+                return "label " + name;
+            case GOTO:
+                return "    goto " + name;
+            case IF_GOTO:
+                return "    if-goto " + name;
+            case CALL:
+                return "    call " + name + " " + number;
+            case FUNCTION:
+                return "function " + name + " " + number;
+            default:
+                return "    return";
+        }
+    }
+}
@@ -0,0 +1,635 @@
+package def.compiler;
+
+import def.compiler.CompilationEngine.CompilationException;
+import def.compiler.CompilerOptions.Optimization;
+import def.compiler.JackTokenizer.KeyWord;
+import def.compiler.SymbolTable.Kind;
+import def.compiler.SyntaxTree.ArrayEntry;
+import def.compiler.SyntaxTree.BinaryOperation;
+import def.compiler.SyntaxTree.ClassDeclaration;
+import def.compiler.SyntaxTree.DoStatement;
+import def.compiler.SyntaxTree.Expression;
+import def.compiler.SyntaxTree.IfStatement;
+import def.compiler.SyntaxTree.IntegerConstant;
+import def.compiler.SyntaxTree.KeywordConstant;
+import def.compiler.SyntaxTree.LetStatement;
+import def.compiler.SyntaxTree.NodeType;
+import def.compiler.SyntaxTree.Parentheses;
+import def.compiler.SyntaxTree.ReturnStatement;
+import def.compiler.SyntaxTree.Statement;
+import def.compiler.SyntaxTree.StringConstant;
+import def.compiler.SyntaxTree.SubroutineCall;
+import def.compiler.SyntaxTree.SubroutineDeclaration;
+import def.compiler.SyntaxTree.UnaryOperation;
+import def.compiler.SyntaxTree.Variable;
+import def.compiler.SyntaxTree.VariableDeclaration;
+import def.compiler.SyntaxTree.WhileStatement;
+import def.compiler.VMWriter.Command;
+import def.compiler.VMWriter.Segment;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates VM code for a {@link SyntaxTree} into a {@link VMWriter}.
+ * <p>
+ * The emitter keeps its own {@link SymbolTable}, filled in as it walks the declarations, to map each
+ * variable to its segment and index.  The code of an expression leaves its value on the top of the stack.
+ */
+public class VMEmitter {
+
+    // multiplying by a constant with more one bits than this costs more code than it saves time
+    private static final int MAX_INLINE_MULTIPLIER_BITS = 3;
+
+    private final VMWriter vmWriter;
+    private final SymbolTable symbolTable;
+    private final boolean reduceStrength;
+    private final boolean poolStrings;
+    private final boolean layoutBranches;
+    private final boolean shortCircuit;
+    // the literals of the class built into static variables, with their indexes after the declared statics
+    private final Map<String, Integer> pooledStrings;
+
+    private String className;
+    private int labelCount;
+
+    /**
+     * Creates a new VM emitter.
+     * @param vmWriter Where to write the VM code.
+     * @param identifiers The pool the identifier ids of the tree are from.
+     * @param options The options for the compilation, which decide the optimizations made to the code.
+     */
+    public VMEmitter(VMWriter vmWriter, IdentifierPool identifiers, CompilerOptions options) {
+        this.vmWriter = vmWriter;
+        symbolTable = new SymbolTable(identifiers);
+        reduceStrength = options.optimizes(Optimization.REDUCE_STRENGTH);
+        poolStrings = options.optimizes(Optimization.POOL_STRINGS);
+        layoutBranches = options.optimizes(Optimization.LAYOUT_BRANCHES);
+        shortCircuit = options.optimizes(Optimization.SHORT_CIRCUIT);
+        pooledStrings = new HashMap<>();
+        labelCount = 0;
+    }
+
+    private Segment kindToSegment(Kind kind) {
+        Segment segment = null;
+        switch (kind) {
+            case STATIC:
+                segment = Segment.STATIC;
+                break;
+            case FIELD:
+                segment = Segment.THIS;
+                break;
+            case ARG:
+                segment = Segment.ARGUMENT;
+                break;
+            case VAR:
+                segment = Segment.LOCAL;
+                break;
+            default:
+                throw new CompilationException("The given variable does not exist!");
+        }
+        return segment;
+    }
+
+    private void writePushVariable(int id) {
+        vmWriter.writePush(kindToSegment(symbolTable.kindOf(id)), symbolTable.indexOf(id));
+    }
+
+    // only the constants 0 to 32767 can be pushed, a folded constant may be negative
+    private void writePushConstant(int value) {
+        if (value >= 0) {
+            vmWriter.writePush(Segment.CONSTANT, value);
+        } else if (value == Short.MIN_VALUE) {
+            vmWriter.writePush(Segment.CONSTANT, Short.MAX_VALUE);
+            vmWriter.writeArithmetic(Command.NOT);
+        } else {
+            vmWriter.writePush(Segment.CONSTANT, -value);
+            vmWriter.writeArithmetic(Command.NEG);
+        }
+    }
+
+    /**
+     * Adds declarations to the symbol table.  Declarations generate no code.
+     */
+    public void declareVariables(List<VariableDeclaration> declarations) {
+        for (VariableDeclaration declaration : declarations) {
+            for (String name : declaration.names) {
+                symbolTable.define(name, declaration.type, declaration.kind);
+            }
+        }
+    }
+
+    /**
+     * Generates the code of a complete class.
+     */
+    public void emitClass(ClassDeclaration classDeclaration) {
+        className = classDeclaration.name;
+        pooledStrings.clear();
+
+        declareVariables(classDeclaration.variables);
+
+        for (SubroutineDeclaration subroutine : classDeclaration.subroutines) {
+            emitSubroutine(subroutine);
+        }
+    }
+
+    /**
+     * Generates the code of a complete method, function, or constructor.
+     */
+    public void emitSubroutine(SubroutineDeclaration subroutine) {
+        symbolTable.startSubroutine();
+
+        if (subroutine.subroutineType == KeyWord.METHOD) {
+            symbolTable.define("this", className, Kind.ARG);
+        }
+
+        declareVariables(subroutine.parameters);
+        declareVariables(subroutine.localVariables);
+
+        vmWriter.writeFunction(className + "." + subroutine.name, symbolTable.varCount(Kind.VAR));
+
+        // set the this pointer for methods
+        if (subroutine.subroutineType == KeyWord.METHOD) {
+            vmWriter.writePush(Segment.ARGUMENT, 0);
+            vmWriter.writePop(Segment.POINTER, 0);
+        }
+
+        // allocate a space in the heap, and point the this pointer at it.
+        if (subroutine.subroutineType == KeyWord.CONSTRUCTOR) {
+            vmWriter.writePush(Segment.CONSTANT, symbolTable.varCount(Kind.FIELD));
+            vmWriter.writeCall("Memory.alloc", 1);
+            vmWriter.writePop(Segment.POINTER, 0);
+        }
+
+        emitStatements(subroutine.statements);
+    }
+
+    /**
+     * Generates the code of a sequence of statements.
+     */
+    public void emitStatements(List<Statement> statements) {
+        for (Statement statement : statements) {
+            emitStatement(statement);
+        }
+    }
+
+    /**
+     * Generates the code of a single statement.
+     */
+    public void emitStatement(Statement statement) {
+        switch (statement.nodeType()) {
+            case LET:
+                emitLet((LetStatement) statement);
+                break;
+            case IF:
+                emitIf((IfStatement) statement);
+                break;
+            case WHILE:
+                emitWhile((WhileStatement) statement);
+                break;
+            case DO:
+                emitExpression(((DoStatement) statement).call);
+                // discard the return value
+                vmWriter.writePop(Segment.TEMP, 0);
+                break;
+            case RETURN:
+                Expression value = ((ReturnStatement) statement).value;
+                if (value != null) {
+                    emitExpression(value);
+                } else {
+                    vmWriter.writePush(Segment.CONSTANT, 0);
+                }
+                vmWriter.writeReturn();
+                break;
+        }
+    }
+
+    private void emitLet(LetStatement let) {
+        if (let.index != null) {
+            emitExpression(let.index);
+        }
+
+        emitExpression(let.value);
+
+        // at the top of the stack is the value of the expression to the right of the '=' sign.
+        // underneath that is the array index, if using arrays.
+        if (let.index != null) {
+            vmWriter.writePop(Segment.TEMP, 1);
+            writePushVariable(let.variableId);
+            vmWriter.writeArithmetic(Command.ADD);
+            vmWriter.writePop(Segment.POINTER, 1);
+            vmWriter.writePush(Segment.TEMP, 1);
+            vmWriter.writePop(Segment.THAT, 0);
+        } else {
+            vmWriter.writePop(kindToSegment(symbolTable.kindOf(let.variableId)), symbolTable.indexOf(let.variableId));
+        }
+    }
+
+    private void emitWhile(WhileStatement loop) {
+        int labelCount = this.labelCount;
+        this.labelCount++;
+
+        if (layoutBranches && isBoolean(loop.condition)) {
+            // test at the bottom, so that each round only takes the one jump back to the top
+            vmWriter.writeGoto("whileTest"+labelCount);
+            vmWriter.writeLabel("whileStart"+labelCount);
+            emitStatements(loop.statements);
+            vmWriter.writeLabel("whileTest"+labelCount);
+            emitJump(loop.condition, true, "whileStart"+labelCount);
+            return;
+        }
+
+        // insert the loop label
+        vmWriter.writeLabel("whileStart"+labelCount);
+
+        if (shortCircuit) {
+            emitJump(loop.condition, false, "whileEnd"+labelCount);
+        } else {
+            emitExpression(loop.condition);
+
+            // the top of the stack is the boolean condition for the loop
+            vmWriter.writeArithmetic(Command.NOT);
+            vmWriter.writeIf("whileEnd"+labelCount);
+        }
+
+        emitStatements(loop.statements);
+
+        //end of loop, return to beginning
+        vmWriter.writeGoto("whileStart"+labelCount);
+        vmWriter.writeLabel("whileEnd"+labelCount);
+    }
+
+    private void emitIf(IfStatement ifStatement) {
+        int labelCount = this.labelCount;
+        this.labelCount++;
+
+        if (layoutBranches) {
+            emitBranches(ifStatement, labelCount);
+            return;
+        }
+
+        if (shortCircuit) {
+            emitJump(ifStatement.condition, false, "ifEnd"+labelCount);
+        } else {
+            emitExpression(ifStatement.condition);
+
+            // top of the stack is the boolean condition for the if statement
+            vmWriter.writeArithmetic(Command.NOT);
+            vmWriter.writeIf("ifEnd"+labelCount);
+        }
+
+        emitStatements(ifStatement.thenStatements);
+
+        if (ifStatement.elseStatements != null) {
+            vmWriter.writeGoto("elseEnd"+labelCount);
+            vmWriter.writeLabel("ifEnd"+labelCount);
+
+            emitStatements(ifStatement.elseStatements);
+
+            vmWriter.writeLabel("elseEnd"+labelCount);
+        } else {
+            vmWriter.writeLabel("ifEnd"+labelCount);
+        }
+    }
+
+    private void emitBranches(IfStatement ifStatement, int labelCount) {
+        // jumping on a true condition saves a not, if the condition is a boolean
+        boolean jumpIfTrue = isBoolean(ifStatement.condition)
+                && notCount(ifStatement.condition, true) < notCount(ifStatement.condition, false);
+
+        if (jumpIfTrue) {
+            // jump to the then statements, and fall through to the else statements
+            emitJump(ifStatement.condition, true, "ifTrue"+labelCount);
+            if (ifStatement.elseStatements != null) {
+                emitStatements(ifStatement.elseStatements);
+            }
+            vmWriter.writeGoto("ifEnd"+labelCount);
+            vmWriter.writeLabel("ifTrue"+labelCount);
+            emitStatements(ifStatement.thenStatements);
+            vmWriter.writeLabel("ifEnd"+labelCount);
+        } else if (ifStatement.elseStatements != null) {
+            emitJump(ifStatement.condition, false, "ifFalse"+labelCount);
+            emitStatements(ifStatement.thenStatements);
+            vmWriter.writeGoto("ifEnd"+labelCount);
+            vmWriter.writeLabel("ifFalse"+labelCount);
+            emitStatements(ifStatement.elseStatements);
+            vmWriter.writeLabel("ifEnd"+labelCount);
+        } else {
+            emitJump(ifStatement.condition, false, "ifEnd"+labelCount);
+            emitStatements(ifStatement.thenStatements);
+            vmWriter.writeLabel("ifEnd"+labelCount);
+        }
+    }
+
+    /**
+     * Jumps to the label if the condition is true (jumpIf) or false (!jumpIf).  As in the code the reference
+     * compiler generates, which tests conditions with not and if-goto, a condition is only true if it is -1.  if-goto
+     * jumps on any value but 0, so jumping on a true condition is only right if the condition is a boolean.
+     */
+    private void emitJump(Expression condition, boolean jumpIf, String label) {
+        condition = unwrap(condition);
+
+        if (condition.nodeType() == NodeType.UNARY_OPERATION && ((UnaryOperation) condition).operator == '~') {
+            Expression operand = ((UnaryOperation) condition).operand;
+            if (jumpIf) {
+                emitJump(operand, false, label);
+            } else if (isBoolean(operand)) {
+                emitJump(operand, true, label);
+            } else {
+                // ~x is not -1 exactly when x is not 0
+                emitExpression(operand);
+                vmWriter.writeIf(label);
+            }
+            return;
+        }
+
+        if (shortCircuit && condition.nodeType() == NodeType.BINARY_OPERATION) {
+            BinaryOperation operation = (BinaryOperation) condition;
+            // a & b is -1 exactly when a and b are both -1, a | b is only that simple for booleans
+            if (operation.operator == '&' || operation.operator == '|' && isBoolean(operation)) {
+                boolean and = operation.operator == '&';
+                if (jumpIf != and) {
+                    // either operand decides
+                    emitJump(operation.left, jumpIf, label);
+                    emitJump(operation.right, jumpIf, label);
+                } else {
+                    // the left operand can decide against jumping, then the right operand decides
+                    int labelCount = this.labelCount;
+                    this.labelCount++;
+                    emitJump(operation.left, !jumpIf, "conditionEnd"+labelCount);
+                    emitJump(operation.right, jumpIf, label);
+                    vmWriter.writeLabel("conditionEnd"+labelCount);
+                }
+                return;
+            }
+        }
+
+        emitExpression(condition);
+        if (!jumpIf) {
+            vmWriter.writeArithmetic(Command.NOT);
+        }
+        vmWriter.writeIf(label);
+    }
+
+    // how many nots emitJump writes
+    private int notCount(Expression condition, boolean jumpIf) {
+        condition = unwrap(condition);
+
+        if (condition.nodeType() == NodeType.UNARY_OPERATION && ((UnaryOperation) condition).operator == '~') {
+            Expression operand = ((UnaryOperation) condition).operand;
+            if (jumpIf) {
+                return notCount(operand, false);
+            } else if (isBoolean(operand)) {
+                return notCount(operand, true);
+            } else {
+                return 0;
+            }
+        }
+
+        if (shortCircuit && condition.nodeType() == NodeType.BINARY_OPERATION) {
+            BinaryOperation operation = (BinaryOperation) condition;
+            if (operation.operator == '&' || operation.operator == '|' && isBoolean(operation)) {
+                boolean and = operation.operator == '&';
+                return notCount(operation.left, jumpIf == and ? !jumpIf : jumpIf) + notCount(operation.right, jumpIf);
+            }
+        }
+
+        return jumpIf ? 0 : 1;
+    }
+
+    private static boolean isBoolean(Expression expression) {
+        expression = unwrap(expression);
+        switch (expression.nodeType()) {
+            case KEYWORD_CONSTANT:
+                KeyWord keyWord = ((KeywordConstant) expression).keyWord;
+                return keyWord == KeyWord.TRUE || keyWord == KeyWord.FALSE;
+            case UNARY_OPERATION:
+                return ((UnaryOperation) expression).operator == '~' && isBoolean(((UnaryOperation) expression).operand);
+            case BINARY_OPERATION:
+                BinaryOperation operation = (BinaryOperation) expression;
+                switch (operation.operator) {
+                    case '<':
+                    case '>':
+                    case '=':
+                        return true;
+                    case '&':
+                    case '|':
+                        return isBoolean(operation.left) && isBoolean(operation.right);
+                    default:
+                        return false;
+                }
+            default:
+                return false;
+        }
+    }
+
+    private static Expression unwrap(Expression expression) {
+        while (expression.nodeType() == NodeType.PARENTHESES) {
+            expression = ((Parentheses) expression).expression;
+        }
+        return expression;
+    }
+
+    /**
+     * Generates the code of an expression, or of a term.
+     */
+    public void emitExpression(Expression expression) {
+        switch (expression.nodeType()) {
+            case INTEGER_CONSTANT:
+                writePushConstant(((IntegerConstant) expression).value);
+                break;
+            case STRING_CONSTANT:
+                if (poolStrings) {
+                    emitPooledString(((StringConstant) expression).value);
+                } else {
+                    writeNewString(((StringConstant) expression).value);
+                }
+                break;
+            case KEYWORD_CONSTANT:
+                switch (((KeywordConstant) expression).keyWord) {
+                    case TRUE:
+                        vmWriter.writePush(Segment.CONSTANT, 1);
+                        vmWriter.writeArithmetic(Command.NEG);
+                        break;
+                    case FALSE:
+                    case NULL:
+                        vmWriter.writePush(Segment.CONSTANT, 0);
+                        break;
+                    case THIS:
+                        vmWriter.writePush(Segment.POINTER, 0);
+                        break;
+                }
+                break;
+            case VARIABLE:
+                writePushVariable(((Variable) expression).id);
+                break;
+            case ARRAY_ENTRY:
+                ArrayEntry entry = (ArrayEntry) expression;
+                writePushVariable(entry.arrayId);
+                emitExpression(entry.index);
+                // the array base and the index are both the stack, we add them and then get the value at that address
+                vmWriter.writeArithmetic(Command.ADD);
+                vmWriter.writePop(Segment.POINTER, 1);
+                vmWriter.writePush(Segment.THAT, 0);
+                break;
+            case SUBROUTINE_CALL:
+                emitSubroutineCall((SubroutineCall) expression);
+                break;
+            case UNARY_OPERATION:
+                emitExpression(((UnaryOperation) expression).operand);
+                vmWriter.writeArithmetic(Command.getUnaryCommandFromSymbol(((UnaryOperation) expression).operator));
+                break;
+            case BINARY_OPERATION:
+                BinaryOperation operation = (BinaryOperation) expression;
+                if (reduceStrength && emitReducedOperation(operation)) {
+                    break;
+                }
+                emitExpression(operation.left);
+                emitExpression(operation.right);
+                switch (operation.operator) {
+                    case '*':
+                        vmWriter.writeCall("Math.multiply", 2);
+                        break;
+                    case '/':
+                        vmWriter.writeCall("Math.divide", 2);
+                        break;
+                    default:
+                        vmWriter.writeArithmetic(Command.getBinaryCommandFromSymbol(operation.operator));
+                        break;
+                }
+                break;
+            case PARENTHESES:
+                emitExpression(((Parentheses) expression).expression);
+                break;
+        }
+    }
+
+    // generates x * c, c * x, and x / c for some constants c without calling Math, returns false for the others
+    private boolean emitReducedOperation(BinaryOperation operation) {
+        if (operation.operator == '*') {
+            // the constant has no side effects, so it does not matter that it is no longer evaluated first
+            if (isInlineMultiplier(operation.right)) {
+                emitExpression(operation.left);
+                writeMultiply(ConstantFolder.valueOf(operation.right));
+                return true;
+            } else if (isInlineMultiplier(operation.left)) {
+                emitExpression(operation.right);
+                writeMultiply(ConstantFolder.valueOf(operation.left));
+                return true;
+            }
+        } else if (operation.operator == '/' && ConstantFolder.isConstant(operation.right)) {
+            // there is no shift in the VM language, so only dividing by 1 and -1 is cheap
+            int divisor = ConstantFolder.valueOf(operation.right);
+            if (divisor == 1 || divisor == -1) {
+                emitExpression(operation.left);
+                if (divisor == -1) {
+                    vmWriter.writeArithmetic(Command.NEG);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInlineMultiplier(Expression expression) {
+        return ConstantFolder.isConstant(expression)
+                && Integer.bitCount(Math.abs(ConstantFolder.valueOf(expression))) <= MAX_INLINE_MULTIPLIER_BITS;
+    }
+
+    // multiplies the top of the stack by a constant with doubling and adding, the 16 bit result is the same
+    private void writeMultiply(int multiplier) {
+        if (multiplier == 0) {
+            // the operand was still evaluated for its side effects
+            vmWriter.writePop(Segment.TEMP, 0);
+            vmWriter.writePush(Segment.CONSTANT, 0);
+            return;
+        }
+
+        int magnitude = Math.abs(multiplier);
+        int highestBit = Integer.highestOneBit(magnitude);
+        if (magnitude != highestBit) {
+            // keep the operand in temp 0, to add it for each of the lower one bits
+            vmWriter.writePop(Segment.TEMP, 0);
+            vmWriter.writePush(Segment.TEMP, 0);
+        }
+
+        for (int bit = highestBit >> 1; bit > 0; bit >>= 1) {
+            vmWriter.writePop(Segment.TEMP, 1);
+            vmWriter.writePush(Segment.TEMP, 1);
+            vmWriter.writePush(Segment.TEMP, 1);
+            vmWriter.writeArithmetic(Command.ADD);
+            if ((magnitude & bit) != 0) {
+                vmWriter.writePush(Segment.TEMP, 0);
+                vmWriter.writeArithmetic(Command.ADD);
+            }
+        }
+
+        if (multiplier < 0) {
+            vmWriter.writeArithmetic(Command.NEG);
+        }
+    }
+
+    private void writeNewString(String string) {
+        //create the string, now it is on top of the stack
+        vmWriter.writePush(Segment.CONSTANT, string.length());
+        vmWriter.writeCall("String.new", 1);
+        //add each char to the string, using the appendChar method, the string is at the top stack after each iteration
+        for (int i = 0; i < string.length(); i++) {
+            vmWriter.writePush(Segment.CONSTANT, string.charAt(i));
+            vmWriter.writeCall("String.appendChar", 2);
+        }
+    }
+
+    // the string is built into its static variable the first time, and pushed from there every time
+    private void emitPooledString(String string) {
+        Integer slot = pooledStrings.get(string);
+        if (slot == null) {
+            slot = pooledStrings.size();
+            pooledStrings.put(string, slot);
+        }
+        int index = symbolTable.varCount(Kind.STATIC) + slot;
+
+        int labelCount = this.labelCount;
+        this.labelCount++;
+
+        vmWriter.writePush(Segment.STATIC, index);
+        vmWriter.writeIf("stringBuilt"+labelCount);
+        writeNewString(string);
+        vmWriter.writePop(Segment.STATIC, index);
+        vmWriter.writeLabel("stringBuilt"+labelCount);
+        vmWriter.writePush(Segment.STATIC, index);
+    }
+
+    /**
+     * Generates the code of a (possibly empty) list of expressions, leaving their values on the stack in order.
+     */
+    public void emitExpressionList(List<Expression> expressions) {
+        for (Expression expression : expressions) {
+            emitExpression(expression);
+        }
+    }
+
+    private void emitSubroutineCall(SubroutineCall call) {
+        String classOrVarName;
+        int numArgs = call.arguments.size();
+
+        if (call.classOrVarName == null) {
+            // a method of this class, on this
+            vmWriter.writePush(Segment.POINTER, 0);
+            classOrVarName = className;
+            numArgs++;
+        } else if (symbolTable.kindOf(call.classOrVarNameId) != Kind.NONE) {
+            // it is a method if the symbol exists, making it a variable, and the class is the type of the variable.
+            writePushVariable(call.classOrVarNameId);
+            classOrVarName = symbolTable.typeOf(call.classOrVarNameId);
+            numArgs++;
+        } else {
+            classOrVarName = call.classOrVarName;
+        }
+
+        emitExpressionList(call.arguments);
+
+        vmWriter.writeCall(classOrVarName+"."+call.subroutineName, numArgs);
+    }
+}
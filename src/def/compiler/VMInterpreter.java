@@ -0,0 +1,387 @@
+package def.compiler;
+
+import def.compiler.VMCommand.Type;
+import def.compiler.VMWriter.Segment;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the VM code of a whole program, without a screen, to test it and count the commands it runs.
+ * <p>
+ * The program is decoded once into arrays of opcodes and operands: labels and function names become command
+ * indexes, and statics become addresses from 16 up, class by class.  The memory is the Hack RAM, a
+ * {@code short[32768]} with the stack from 256, the screen from 16384, and the keyboard at 24576, so the OS .vm
+ * files run as they would on the Hack computer.  The keyboard follows a script of keys given by
+ * {@link #pressKey(int, long)}.  The program halts when it calls Sys.halt, or when Sys.init returns.
+ * <p>
+ * Every command run is counted, so {@link #printProfile(PrintStream, int)} can show where the time goes.  A call
+ * that would grow the stack into the screen stops the program with a
+ * {@link CompilationEngine.CompilationException}.
+ */
+public class VMInterpreter {
+    /**
+     * The address of the keyboard register in the Hack RAM.
+     */
+    public static final int KEYBOARD = 24576;
+
+    private static final int SP = 0, LCL = 1, ARG = 2, THIS = 3, THAT = 4;
+    private static final int TEMP = 5, FIRST_STATIC = 16, LAST_STATIC = 255, STACK = 256, SCREEN = 16384;
+
+    private static final int PUSH_CONSTANT = 0, PUSH_ADDRESS = 1, PUSH_SEGMENT = 2, POP_ADDRESS = 3, POP_SEGMENT = 4,
+            ADD = 5, SUB = 6, NEG = 7, EQ = 8, GT = 9, LT = 10, AND = 11, OR = 12, NOT = 13, GOTO = 14, IF_GOTO = 15,
+            CALL = 16, FUNCTION = 17, RETURN = 18, HALT = 19;
+
+    private final short[] memory;
+    // each command as an opcode and up to two operands, the first command calls Sys.init
+    private final int[] opcodes;
+    private final int[] operands;
+    private final int[] secondOperands;
+    // the name of each function, and the function of each command
+    private final List<String> functionNames;
+    private final int[] functionOf;
+    private final long[] executed;
+    private int pc;
+    private long steps;
+
+    // the keyboard script, in the order of the steps the keys are pressed at
+    private final List<long[]> keys;
+    private int nextKey;
+
+    /**
+     * Decodes a program to run.
+     * @param program A whole program, which has to define Sys.init and every function it calls.
+     */
+    public VMInterpreter(VMProgram program) {
+        AsmWriter.checkProgram(program);
+        memory = new short[32768];
+        functionNames = new ArrayList<>();
+        keys = new ArrayList<>();
+
+        // the first pass finds where each function and label is
+        Map<String, Integer> addresses = new HashMap<>();
+        int size = 2;
+        for (String className : program.classNames()) {
+            String function = className;
+            for (VMCommand command : program.commandsOf(className)) {
+                if (command.type == Type.FUNCTION) {
+                    function = command.name;
+                    addresses.put(function, size);
+                } else if (command.type == Type.LABEL) {
+                    addresses.put(function + "$" + command.name, size);
+                    continue;
+                }
+                size++;
+            }
+        }
+        if (size > Short.MAX_VALUE) {
+            throw new CompilationEngine.CompilationException("The program has more than " + Short.MAX_VALUE
+                    + " commands, so return addresses do not fit the stack");
+        }
+
+        opcodes = new int[size];
+        operands = new int[size];
+        secondOperands = new int[size];
+        functionOf = new int[size];
+        executed = new long[size];
+
+        functionNames.add("(bootstrap)");
+        opcodes[0] = CALL;
+        operands[0] = addresses.get("Sys.init");
+        opcodes[1] = HALT;
+
+        int pc = 2;
+        int nextStatic = FIRST_STATIC;
+        for (String className : program.classNames()) {
+            String function = className;
+            int staticBase = nextStatic;
+            for (VMCommand command : program.commandsOf(className)) {
+                if (command.type == Type.LABEL) {
+                    continue;
+                }
+                if (command.type == Type.FUNCTION) {
+                    function = command.name;
+                    functionNames.add(function);
+                }
+                if (command.segment == Segment.STATIC) {
+                    nextStatic = Math.max(nextStatic, staticBase + command.number + 1);
+                    if (nextStatic > LAST_STATIC + 1) {
+                        throw new CompilationEngine.CompilationException("The program has more than "
+                                + (LAST_STATIC + 1 - FIRST_STATIC) + " statics");
+                    }
+                }
+                functionOf[pc] = functionNames.size() - 1;
+                decode(command, function, staticBase, addresses, pc);
+                pc++;
+            }
+        }
+
+        memory[SP] = STACK;
+    }
+
+    // sets the opcode and operands of the command at pc
+    private void decode(VMCommand command, String function, int staticBase, Map<String, Integer> addresses, int pc) {
+        switch (command.type) {
+            case PUSH:
+            case POP:
+                boolean push = command.type == Type.PUSH;
+                switch (command.segment) {
+                    case CONSTANT:
+                        if (!push) {
+                            throw new CompilationEngine.CompilationException("Can not pop to constant");
+                        }
+                        opcodes[pc] = PUSH_CONSTANT;
+                        operands[pc] = command.number;
+                        break;
+                    case LOCAL:
+                    case ARGUMENT:
+                    case THIS:
+                    case THAT:
+                        opcodes[pc] = push ? PUSH_SEGMENT : POP_SEGMENT;
+                        operands[pc] = command.segment == Segment.LOCAL ? LCL : command.segment == Segment.ARGUMENT
+                                ? ARG : command.segment == Segment.THIS ? THIS : THAT;
+                        secondOperands[pc] = command.number;
+                        break;
+                    default:
+                        opcodes[pc] = push ? PUSH_ADDRESS : POP_ADDRESS;
+                        operands[pc] = command.segment == Segment.STATIC ? staticBase + command.number
+                                : command.segment == Segment.POINTER ? THIS + command.number : TEMP + command.number;
+                        break;
+                }
+                break;
+            case ARITHMETIC:
+                // the opcodes from ADD are in the order of the commands
+                opcodes[pc] = ADD + command.command.ordinal();
+                break;
+            case GOTO:
+            case IF_GOTO:
+                Integer label = addresses.get(function + "$" + command.name);
+                if (label == null) {
+                    throw new CompilationEngine.CompilationException("No label " + command.name + " in " + function);
+                }
+                opcodes[pc] = command.type == Type.GOTO ? GOTO : IF_GOTO;
+                operands[pc] = label;
+                break;
+            case CALL:
+                opcodes[pc] = CALL;
+                operands[pc] = addresses.get(command.name);
+                secondOperands[pc] = command.number;
+                break;
+            case FUNCTION:
+                opcodes[pc] = command.name.equals("Sys.halt") ? HALT : FUNCTION;
+                operands[pc] = command.number;
+                break;
+            case RETURN:
+                opcodes[pc] = RETURN;
+                break;
+        }
+    }
+
+    /**
+     * Sets the keyboard register at a step of the run, and keeps it until the next key of the script.
+     * @param key The Hack code of the key, such as 130 for the left arrow, or 0 for none.
+     * @param step The number of commands run before the key is pressed.
+     */
+    public void pressKey(int key, long step) {
+        int index = nextKey;
+        while (index < keys.size() && keys.get(index)[0] <= step) {
+            index++;
+        }
+        keys.add(index, new long[] {step, key});
+    }
+
+    /**
+     * Runs the program until it halts, or has run a number of commands.
+     * @param maxSteps The most commands to run.
+     * @return true if the program halted.
+     */
+    public boolean run(long maxSteps) {
+        short[] memory = this.memory;
+        int[] opcodes = this.opcodes, operands = this.operands, secondOperands = this.secondOperands;
+        long[] executed = this.executed;
+        int pc = this.pc;
+        int sp = memory[SP];
+        long steps = this.steps;
+        long stop = Math.min(maxSteps, nextKeyStep());
+
+        while (true) {
+            if (steps >= stop) {
+                if (steps >= maxSteps) {
+                    this.pc = pc;
+                    this.steps = steps;
+                    memory[SP] = (short) sp;
+                    return false;
+                }
+                memory[KEYBOARD] = (short) keys.get(nextKey++)[1];
+                stop = Math.min(maxSteps, nextKeyStep());
+                continue;
+            }
+            steps++;
+            executed[pc]++;
+
+            int operand = operands[pc];
+            switch (opcodes[pc++]) {
+                case PUSH_CONSTANT:
+                    memory[sp++] = (short) operand;
+                    break;
+                case PUSH_ADDRESS:
+                    memory[sp++] = memory[operand];
+                    break;
+                case PUSH_SEGMENT:
+                    memory[sp++] = memory[memory[operand] + secondOperands[pc - 1] & 0x7FFF];
+                    break;
+                case POP_ADDRESS:
+                    memory[operand] = memory[--sp];
+                    break;
+                case POP_SEGMENT:
+                    memory[memory[operand] + secondOperands[pc - 1] & 0x7FFF] = memory[--sp];
+                    break;
+                case ADD:
+                    sp--;
+                    memory[sp - 1] += memory[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    memory[sp - 1] -= memory[sp];
+                    break;
+                case NEG:
+                    memory[sp - 1] = (short) -memory[sp - 1];
+                    break;
+                case EQ:
+                    sp--;
+                    memory[sp - 1] = (short) (memory[sp - 1] == memory[sp] ? -1 : 0);
+                    break;
+                case GT:
+                    sp--;
+                    memory[sp - 1] = (short) (memory[sp - 1] > memory[sp] ? -1 : 0);
+                    break;
+                case LT:
+                    sp--;
+                    memory[sp - 1] = (short) (memory[sp - 1] < memory[sp] ? -1 : 0);
+                    break;
+                case AND:
+                    sp--;
+                    memory[sp - 1] &= memory[sp];
+                    break;
+                case OR:
+                    sp--;
+                    memory[sp - 1] |= memory[sp];
+                    break;
+                case NOT:
+                    memory[sp - 1] = (short) ~memory[sp - 1];
+                    break;
+                case GOTO:
+                    pc = operand;
+                    break;
+                case IF_GOTO:
+                    if (memory[--sp] != 0) {
+                        pc = operand;
+                    }
+                    break;
+                case CALL:
+                    if (sp + 5 > SCREEN) {
+                        throw stackOverflow(pc - 1, steps);
+                    }
+                    int arguments = secondOperands[pc - 1];
+                    memory[sp++] = (short) pc;
+                    memory[sp++] = memory[LCL];
+                    memory[sp++] = memory[ARG];
+                    memory[sp++] = memory[THIS];
+                    memory[sp++] = memory[THAT];
+                    memory[ARG] = (short) (sp - 5 - arguments);
+                    memory[LCL] = (short) sp;
+                    pc = operand;
+                    break;
+                case FUNCTION:
+                    if (sp + operand > SCREEN) {
+                        throw stackOverflow(pc - 1, steps);
+                    }
+                    for (int i = 0; i < operand; i++) {
+                        memory[sp++] = 0;
+                    }
+                    break;
+                case RETURN:
+                    int frame = memory[LCL];
+                    int returnAddress = memory[frame - 5];
+                    memory[memory[ARG]] = memory[sp - 1];
+                    sp = memory[ARG] + 1;
+                    memory[THAT] = memory[frame - 1];
+                    memory[THIS] = memory[frame - 2];
+                    memory[ARG] = memory[frame - 3];
+                    memory[LCL] = memory[frame - 4];
+                    pc = returnAddress;
+                    break;
+                case HALT:
+                    this.pc = pc - 1;
+                    this.steps = steps;
+                    memory[SP] = (short) sp;
+                    return true;
+            }
+        }
+    }
+
+    private CompilationEngine.CompilationException stackOverflow(int pc, long steps) {
+        return new CompilationEngine.CompilationException("The stack overflowed into the screen in "
+                + functionNames.get(functionOf[pc]) + " after " + steps + " VM commands");
+    }
+
+    private long nextKeyStep() {
+        return nextKey < keys.size() ? keys.get(nextKey)[0] : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the number of commands run so far.
+     */
+    public long steps() {
+        return steps;
+    }
+
+    /**
+     * @return the RAM of the program, which can be read to check what it did.
+     */
+    public short[] memory() {
+        return memory;
+    }
+
+    /**
+     * @return the number of commands run in each function so far, by the function's name.
+     */
+    public Map<String, Long> stepsByFunction() {
+        long[] counts = new long[functionNames.size()];
+        for (int pc = 0; pc < executed.length; pc++) {
+            counts[functionOf[pc]] += executed[pc];
+        }
+        Map<String, Long> stepsByFunction = new HashMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                stepsByFunction.put(functionNames.get(i), counts[i]);
+            }
+        }
+        return stepsByFunction;
+    }
+
+    /**
+     * Prints the functions the most commands were run in.
+     * @param out Where to print.
+     * @param count The most functions to print.
+     */
+    public void printProfile(PrintStream out, int count) {
+        List<Map.Entry<String, Long>> functions = new ArrayList<>(stepsByFunction().entrySet());
+        Collections.sort(functions, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                return Long.compare(o2.getValue(), o1.getValue());
+            }
+        });
+
+        out.println(steps + " VM commands run");
+        for (Map.Entry<String, Long> function : functions.subList(0, Math.min(count, functions.size()))) {
+            out.printf("%12d %5.1f%%  %s%n", function.getValue(), 100.0 * function.getValue() / steps, function.getKey());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package def.compiler;
+
+import def.compiler.VMWriter.Command;
+import def.compiler.VMWriter.Segment;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VMInterpreterTest {
+    // Sys.init stores Main.triangle(5) in its static 0 and halts, which VMJitTest runs as well
+    static VMProgram triangleProgram() {
+        VMProgram program = new VMProgram();
+        program.addClass("Sys", Arrays.asList(VMCommand.function("Sys.init", 0), VMCommand.push(Segment.CONSTANT, 5),
+                VMCommand.call("Main.triangle", 1), VMCommand.pop(Segment.STATIC, 0), VMCommand.call("Sys.halt", 0),
+                VMCommand.function("Sys.halt", 0), VMCommand.returnCommand()));
+        // function int triangle(int n) { var int sum; while (n > 0) { let sum = sum + n; let n = n - 1; } return sum; }
+        program.addClass("Main", Arrays.asList(VMCommand.function("Main.triangle", 1), VMCommand.label("loop"),
+                VMCommand.push(Segment.ARGUMENT, 0), VMCommand.push(Segment.CONSTANT, 0),
+                VMCommand.arithmetic(Command.GT), VMCommand.arithmetic(Command.NOT), VMCommand.ifGoTo("end"),
+                VMCommand.push(Segment.LOCAL, 0), VMCommand.push(Segment.ARGUMENT, 0), VMCommand.arithmetic(Command.ADD),
+                VMCommand.pop(Segment.LOCAL, 0), VMCommand.push(Segment.ARGUMENT, 0), VMCommand.push(Segment.CONSTANT, 1),
+                VMCommand.arithmetic(Command.SUB), VMCommand.pop(Segment.ARGUMENT, 0), VMCommand.goTo("loop"),
+                VMCommand.label("end"), VMCommand.push(Segment.LOCAL, 0), VMCommand.returnCommand()));
+        return program;
+    }
+
+    @Test
+    public void runUntilHalt() throws Exception {
+        VMInterpreter interpreter = new VMInterpreter(triangleProgram());
+        assertFalse(interpreter.run(10));
+        assertTrue(interpreter.run(1000));
+
+        // Sys's static 0 is the first static
+        assertEquals(15, interpreter.memory()[16]);
+        // the function command, 14 commands for each of the 5 times around the loop, the last check, and the return
+        assertEquals(Long.valueOf(1 + 5 * 14 + 5 + 2), interpreter.stepsByFunction().get("Main.triangle"));
+    }
+
+    @Test
+    public void readScriptedKeys() throws Exception {
+        VMProgram program = new VMProgram();
+        // wait for a key, then store it
+        program.addClass("Sys", Arrays.asList(VMCommand.function("Sys.init", 0), VMCommand.label("wait"),
+                VMCommand.push(Segment.CONSTANT, 24576), VMCommand.pop(Segment.POINTER, 1),
+                VMCommand.push(Segment.THAT, 0), VMCommand.arithmetic(Command.NOT), VMCommand.push(Segment.CONSTANT, 0),
+                VMCommand.arithmetic(Command.NOT), VMCommand.arithmetic(Command.EQ), VMCommand.ifGoTo("wait"),
+                VMCommand.push(Segment.THAT, 0), VMCommand.pop(Segment.STATIC, 0), VMCommand.push(Segment.CONSTANT, 0),
+                VMCommand.returnCommand()));
+
+        VMInterpreter interpreter = new VMInterpreter(program);
+        interpreter.pressKey(130, 100);
+        assertTrue(interpreter.run(1000));
+
+        assertEquals(130, interpreter.memory()[16]);
+        assertTrue(interpreter.steps() > 100);
+    }
+
+    @Test(expected = CompilationEngine.CompilationException.class)
+    public void stopAtStackOverflow() throws Exception {
+        VMProgram program = new VMProgram();
+        program.addClass("Sys", Arrays.asList(VMCommand.function("Sys.init", 0), VMCommand.call("Sys.init", 0),
+                VMCommand.returnCommand()));
+
+        new VMInterpreter(program).run(1000000);
+    }
+}
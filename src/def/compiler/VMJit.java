@@ -0,0 +1,935 @@
+package def.compiler;
+
+import def.compiler.VMCommand.Type;
+import def.compiler.VMWriter.Command;
+import def.compiler.VMWriter.Segment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the VM code of a whole program as JVM bytecode, so that HotSpot compiles the hot loops of Jack programs to
+ * machine code.
+ * <p>
+ * Each class of the program becomes a JVM class, loaded by a class loader of its own, and each function a static
+ * method {@code int f(int argument0, ..., short[] ram)}.  The VM stack is the JVM operand stack, arguments and locals
+ * are JVM locals, and so are {@code pointer 0} and {@code pointer 1}, which a call saves and a return restores.  The
+ * rest of the memory is the Hack RAM in a {@code short[32768]}, laid out as in the {@link VMInterpreter}: temp from
+ * 5, statics from 16 class by class, the heap, the screen from 16384, and the keyboard at 24576.  Values on the
+ * operand stack are ints kept in the range of a short.  The classes are version 49 class files, which the JVM
+ * verifies without stack map frames.
+ * <p>
+ * The code counts the VM commands it runs, a straight run of commands at a time, in {@link #fuel}, so the steps are
+ * the same as the interpreter's.  A read of the keyboard through this or that asks {@link #readKeyboard(int)} for the
+ * key of the script at the step of the read, so a key is seen at the same command as in the interpreter.  The VM
+ * stack has to be the same height each time a label is reached, which it is in the code of the compiler and the OS.
+ * Only one program can run at a time.
+ * <p>
+ * The Jack calls are JVM calls, so a program can recurse as deep as the JVM stack lets it, which is usually deeper
+ * than the Hack stack the interpreter has.  When the JVM stack overflows, or the bytecode can not be loaded, the run
+ * stops with a {@link CompilationEngine.CompilationException}.
+ */
+public class VMJit {
+    /**
+     * The commands left to run before {@link #tick()} is called.  It is public for the generated code.
+     */
+    public static int fuel;
+
+    private static final String PACKAGE = "jack/";
+    private static final String SELF = "def/compiler/VMJit";
+    private static final int TEMP = 5, FIRST_STATIC = 16, LAST_STATIC = 255;
+
+    // the program being run
+    private static VMJit running;
+
+    private final Map<String, byte[]> classFiles;
+    private final Map<String, Integer> argumentCounts;
+    private final short[] memory;
+    private final List<long[]> keys;
+    private int nextKey;
+    private long maxSteps;
+    // the steps run before fuel was last set, and what it was set to
+    private long stepsBefore;
+    private int fuelGiven;
+    private long steps;
+
+    /**
+     * Thrown by the generated code to stop the program, when it halts or has run the most steps.
+     */
+    public static class Stop extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final boolean halted;
+
+        Stop(boolean halted) {
+            super(null, null, false, false);
+            this.halted = halted;
+        }
+    }
+
+    /**
+     * Translates a program into JVM classes.
+     * @param program A whole program, which has to define Sys.init and every function it calls.
+     */
+    public VMJit(VMProgram program) {
+        AsmWriter.checkProgram(program);
+        memory = new short[32768];
+        keys = new ArrayList<>();
+        classFiles = new LinkedHashMap<>();
+
+        // a function has as many arguments as it is called with, or uses
+        argumentCounts = new HashMap<>();
+        Map<String, List<VMCommand>> functions = program.functions();
+        for (Map.Entry<String, List<VMCommand>> function : functions.entrySet()) {
+            int count = 0;
+            for (VMCommand command : function.getValue()) {
+                if (command.segment == Segment.ARGUMENT) {
+                    count = Math.max(count, command.number + 1);
+                }
+            }
+            argumentCounts.put(function.getKey(), count);
+        }
+        for (List<VMCommand> commands : functions.values()) {
+            for (VMCommand command : commands) {
+                if (command.type == Type.CALL && command.number > argumentCounts.get(command.name)) {
+                    argumentCounts.put(command.name, command.number);
+                }
+            }
+        }
+
+        int nextStatic = FIRST_STATIC;
+        for (String className : program.classNames()) {
+            int staticBase = nextStatic;
+            ClassWriter classWriter = new ClassWriter(PACKAGE + className);
+            String function = null;
+            List<VMCommand> body = new ArrayList<>();
+            for (VMCommand command : program.commandsOf(className)) {
+                if (command.segment == Segment.STATIC) {
+                    nextStatic = Math.max(nextStatic, staticBase + command.number + 1);
+                    if (nextStatic > LAST_STATIC + 1) {
+                        throw new CompilationEngine.CompilationException("The program has more than "
+                                + (LAST_STATIC + 1 - FIRST_STATIC) + " statics");
+                    }
+                }
+                if (command.type == Type.FUNCTION) {
+                    if (function != null) {
+                        writeMethod(classWriter, function, body, staticBase);
+                    }
+                    function = command.name;
+                    body = new ArrayList<>();
+                }
+                body.add(command);
+            }
+            if (function != null) {
+                writeMethod(classWriter, function, body, staticBase);
+            }
+            classFiles.put(PACKAGE.replace('/', '.') + className, classWriter.toByteArray());
+        }
+    }
+
+    /**
+     * Sets the keyboard register at a step of the run, and keeps it until the next key of the script.
+     * @param key The Hack code of the key, such as 130 for the left arrow, or 0 for none.
+     * @param step The number of commands run before the key is pressed.
+     */
+    public void pressKey(int key, long step) {
+        int index = nextKey;
+        while (index < keys.size() && keys.get(index)[0] <= step) {
+            index++;
+        }
+        keys.add(index, new long[] {step, key});
+    }
+
+    /**
+     * Runs the program from the start, until it halts or has run a number of commands.
+     * @param maxSteps The most commands to run, less the rest of the run of commands that would pass it.
+     * @return true if the program halted.
+     */
+    public boolean run(long maxSteps) {
+        synchronized (VMJit.class) {
+            this.maxSteps = maxSteps;
+            running = this;
+            stepsBefore = 0;
+            fuelGiven = 0;
+            fuel = 0;
+            try {
+                Class<?> sys = new JackClassLoader(classFiles).loadClass(PACKAGE.replace('/', '.') + "Sys");
+                Method init = sys.getMethod("init", short[].class);
+                // the bootstrap's call of Sys.init
+                spend(1);
+                init.invoke(null, (Object) memory);
+                // and the halt when it returns
+                spend(1);
+                steps = stepsRun();
+                return true;
+            } catch (InvocationTargetException e) {
+                steps = stepsRun();
+                if (e.getCause() instanceof Stop) {
+                    boolean halted = ((Stop) e.getCause()).halted;
+                    if (!halted) {
+                        // the run of commands that passed maxSteps was counted, but not run
+                        steps = Math.min(steps, maxSteps);
+                    }
+                    return halted;
+                }
+                if (e.getCause() instanceof StackOverflowError) {
+                    throw new CompilationEngine.CompilationException("The JVM stack overflowed after " + steps
+                            + " VM commands");
+                }
+                if (e.getCause() instanceof LinkageError) {
+                    throw notLoaded((LinkageError) e.getCause());
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (LinkageError e) {
+                throw notLoaded(e);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            } finally {
+                // the keys pressed before the last command, as the interpreter leaves them
+                keyAt(steps - 1);
+                running = null;
+            }
+        }
+    }
+
+    /**
+     * @return the number of commands run.
+     */
+    public long steps() {
+        return steps;
+    }
+
+    /**
+     * @return the RAM of the program, which can be read to check what it did.
+     */
+    public short[] memory() {
+        return memory;
+    }
+
+    /**
+     * @return the size of the class files the program was translated to.
+     */
+    public int bytecodeSize() {
+        int size = 0;
+        for (byte[] classFile : classFiles.values()) {
+            size += classFile.length;
+        }
+        return size;
+    }
+
+    /**
+     * Called by the generated code when {@link #fuel} runs out, to stop the program when it has run the most steps.
+     */
+    public static void tick() {
+        running.refuel();
+    }
+
+    /**
+     * Called by the generated code to read the keyboard.
+     * @param commandsLeft The commands of the run of commands that {@link #fuel} was charged for, from the read on.
+     * @return The key pressed at that step.
+     */
+    public static int readKeyboard(int commandsLeft) {
+        return running.keyAt(running.stepsRun() - commandsLeft);
+    }
+
+    /**
+     * Called by the generated code for Sys.halt.
+     */
+    public static void halt() {
+        throw new Stop(true);
+    }
+
+    private static CompilationEngine.CompilationException notLoaded(LinkageError e) {
+        return new CompilationEngine.CompilationException("The bytecode of the program could not be loaded: " + e);
+    }
+
+    private void spend(int commands) {
+        fuel -= commands;
+        if (fuel <= 0) {
+            refuel();
+        }
+    }
+
+    private long stepsRun() {
+        return stepsBefore + fuelGiven - fuel;
+    }
+
+    private void refuel() {
+        long steps = stepsRun();
+        if (steps >= maxSteps) {
+            throw new Stop(false);
+        }
+
+        stepsBefore = steps;
+        fuelGiven = (int) Math.min(maxSteps - steps, Integer.MAX_VALUE);
+        fuel = fuelGiven;
+    }
+
+    // presses the keys of the script up to the step, and gives the key pressed then
+    private int keyAt(long step) {
+        while (nextKey < keys.size() && keys.get(nextKey)[0] <= step) {
+            memory[VMInterpreter.KEYBOARD] = (short) keys.get(nextKey++)[1];
+        }
+        return memory[VMInterpreter.KEYBOARD];
+    }
+
+    // the descriptor of a function's method
+    private String descriptorOf(String function) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for (int i = 0; i < argumentCounts.get(function); i++) {
+            descriptor.append('I');
+        }
+        return descriptor.append("[S)I").toString();
+    }
+
+    private static String methodNameOf(String function) {
+        return function.substring(function.indexOf('.') + 1);
+    }
+
+    private static String classNameOf(String function) {
+        return PACKAGE + function.substring(0, function.indexOf('.'));
+    }
+
+    // translates the commands of a function, starting with its function command, into a method
+    private void writeMethod(ClassWriter classWriter, String function, List<VMCommand> body, int staticBase) {
+        int arguments = argumentCounts.get(function);
+        int locals = body.get(0).number;
+        // the locals of the method: the arguments, ram, the VM locals, this, that, and one to swap through
+        int ram = arguments, firstLocal = ram + 1, pointer = firstLocal + locals, scratch = pointer + 2;
+        CodeWriter code = new CodeWriter(classWriter);
+
+        // the body of Sys.halt is not run
+        if (function.equals("Sys.halt")) {
+            spendCode(code, 1);
+            code.invokeStatic(SELF, "halt", "()V");
+            code.op(ICONST_0);
+            code.op(IRETURN);
+            classWriter.addMethod(methodNameOf(function), descriptorOf(function), code, 4, scratch + 1);
+            return;
+        }
+
+        int maxDepth = maxStackDepth(function, body);
+
+        for (int i = 0; i < locals + 2; i++) {
+            code.op(ICONST_0);
+            code.local(ISTORE, firstLocal + i);
+        }
+
+        boolean blockStart = true;
+        int blockLeft = 0;
+        for (int i = 0; i < body.size(); i++) {
+            VMCommand command = body.get(i);
+            if (command.type == Type.LABEL) {
+                code.label(command.name);
+                blockStart = true;
+                continue;
+            }
+            if (blockStart) {
+                blockLeft = blockLength(body, i);
+                spendCode(code, blockLeft);
+                blockStart = false;
+            }
+
+            VMCommand next = i + 1 < body.size() ? body.get(i + 1) : null;
+            VMCommand afterNext = i + 2 < body.size() ? body.get(i + 2) : null;
+            switch (command.type) {
+                case FUNCTION:
+                    break;
+                case PUSH:
+                    writePush(code, command.segment, command.number, ram, firstLocal, pointer, staticBase, blockLeft);
+                    break;
+                case POP:
+                    writePop(code, command.segment, command.number, ram, firstLocal, pointer, scratch, staticBase);
+                    break;
+                case ARITHMETIC:
+                    int compare = compareOf(command.command);
+                    if (compare != 0 && next != null && next.type == Type.IF_GOTO) {
+                        code.jump(compare, next.name);
+                        i++;
+                        blockStart = true;
+                    } else if (compare != 0 && next != null && next.is(Command.NOT) && afterNext != null
+                            && afterNext.type == Type.IF_GOTO) {
+                        code.jump(opposite(compare), afterNext.name);
+                        i += 2;
+                        blockStart = true;
+                    } else if (command.is(Command.NOT) && next != null && next.type == Type.IF_GOTO) {
+                        // jumps unless the value is -1
+                        code.op(ICONST_M1);
+                        code.jump(IF_ICMPNE, next.name);
+                        i++;
+                        blockStart = true;
+                    } else {
+                        writeArithmetic(code, command.command);
+                    }
+                    break;
+                case GOTO:
+                    code.jump(GOTO, command.name);
+                    blockStart = true;
+                    break;
+                case IF_GOTO:
+                    code.jump(IFNE, command.name);
+                    blockStart = true;
+                    break;
+                case CALL:
+                    for (int argument = command.number; argument < argumentCounts.get(command.name); argument++) {
+                        code.op(ICONST_0);
+                    }
+                    code.local(ALOAD, ram);
+                    code.invokeStatic(classNameOf(command.name), methodNameOf(command.name),
+                            descriptorOf(command.name));
+                    blockStart = true;
+                    break;
+                case RETURN:
+                    code.op(IRETURN);
+                    blockStart = true;
+                    break;
+            }
+            blockLeft--;
+        }
+        // a function whose last command is not a jump or a return runs into the next one
+        code.op(ICONST_0);
+        code.op(IRETURN);
+
+        classWriter.addMethod(methodNameOf(function), descriptorOf(function), code, maxDepth + 4, scratch + 1);
+    }
+
+    // the code that counts the commands of a run of commands, and stops the program when needed
+    private static void spendCode(CodeWriter code, int commands) {
+        code.getStatic(SELF, "fuel", "I");
+        code.constant(commands);
+        code.op(ISUB);
+        code.op(DUP);
+        code.putStatic(SELF, "fuel", "I");
+        String skip = code.newLabel();
+        code.jump(IFGT, skip);
+        code.invokeStatic(SELF, "tick", "()V");
+        code.label(skip);
+    }
+
+    // the number of commands from index to the end of the run of commands that starts there
+    private static int blockLength(List<VMCommand> body, int index) {
+        int length = 0;
+        for (int i = index; i < body.size(); i++) {
+            VMCommand command = body.get(i);
+            if (command.type == Type.LABEL) {
+                break;
+            }
+            length++;
+            if (command.type == Type.GOTO || command.type == Type.IF_GOTO || command.type == Type.CALL
+                    || command.type == Type.RETURN) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    // the most values the method has on the JVM operand stack for the VM stack, with the zeros and ram pushed for a
+    // call, checking that the VM stack is the same height each time a label is reached and never runs out
+    private int maxStackDepth(String function, List<VMCommand> body) {
+        Map<String, Integer> labelDepths = new HashMap<>();
+        int depth = 0, maxDepth = 0;
+        boolean reachable = true;
+        for (VMCommand command : body) {
+            if (command.type == Type.LABEL) {
+                Integer labelDepth = labelDepths.get(command.name);
+                if (!reachable) {
+                    depth = labelDepth != null ? labelDepth : 0;
+                    reachable = true;
+                } else if (labelDepth != null && labelDepth != depth) {
+                    throw stackError(function, "is not the same height at each jump to " + command.name);
+                }
+                labelDepths.put(command.name, depth);
+            }
+
+            int popped = 0, pushed = 0;
+            switch (command.type) {
+                case PUSH:
+                    pushed = 1;
+                    break;
+                case POP:
+                case IF_GOTO:
+                case RETURN:
+                    popped = 1;
+                    break;
+                case ARITHMETIC:
+                    popped = command.is(Command.NEG) || command.is(Command.NOT) ? 1 : 2;
+                    pushed = 1;
+                    break;
+                case CALL:
+                    popped = command.number;
+                    pushed = 1;
+                    int padding = argumentCounts.get(command.name) - command.number;
+                    maxDepth = Math.max(maxDepth, depth + padding + 1);
+                    break;
+            }
+            if (depth < popped) {
+                if (reachable) {
+                    throw stackError(function, "runs out at " + command.toString().trim());
+                }
+                // code after a goto or return that no label leads to is never run
+                depth = popped;
+            }
+            depth += pushed - popped;
+            maxDepth = Math.max(maxDepth, depth);
+
+            if (reachable && (command.type == Type.GOTO || command.type == Type.IF_GOTO)) {
+                Integer labelDepth = labelDepths.get(command.name);
+                if (labelDepth != null && labelDepth != depth) {
+                    throw stackError(function, "is not the same height at each jump to " + command.name);
+                }
+                labelDepths.put(command.name, depth);
+            }
+            if (command.type == Type.GOTO || command.type == Type.RETURN) {
+                reachable = false;
+            }
+        }
+        return maxDepth;
+    }
+
+    private static CompilationEngine.CompilationException stackError(String function, String problem) {
+        return new CompilationEngine.CompilationException("The VM stack of " + function + " " + problem
+                + ", so it can not be translated to bytecode");
+    }
+
+    private static void writePush(CodeWriter code, Segment segment, int index, int ram, int firstLocal, int pointer,
+                                  int staticBase, int commandsLeft) {
+        switch (segment) {
+            case CONSTANT:
+                code.constant(index);
+                break;
+            case ARGUMENT:
+                code.local(ILOAD, index);
+                break;
+            case LOCAL:
+                code.local(ILOAD, firstLocal + index);
+                break;
+            case POINTER:
+                code.local(ILOAD, pointer + index);
+                break;
+            case THIS:
+            case THAT:
+                code.local(ALOAD, ram);
+                pointerAddress(code, segment == Segment.THIS ? pointer : pointer + 1, index);
+                // the keyboard is read at the step of the push, which may be in the middle of the run of commands
+                String keyboard = code.newLabel(), end = code.newLabel();
+                code.op(DUP);
+                code.constant(VMInterpreter.KEYBOARD);
+                code.jump(IF_ICMPEQ, keyboard);
+                code.op(SALOAD);
+                code.jump(GOTO, end);
+                code.label(keyboard);
+                code.op(POP2);
+                code.constant(commandsLeft);
+                code.invokeStatic(SELF, "readKeyboard", "(I)I");
+                code.label(end);
+                break;
+            default:
+                code.local(ALOAD, ram);
+                code.constant(segment == Segment.STATIC ? staticBase + index : TEMP + index);
+                code.op(SALOAD);
+                break;
+        }
+    }
+
+    private static void writePop(CodeWriter code, Segment segment, int index, int ram, int firstLocal, int pointer,
+                                 int scratch, int staticBase) {
+        switch (segment) {
+            case ARGUMENT:
+                code.local(ISTORE, index);
+                break;
+            case LOCAL:
+                code.local(ISTORE, firstLocal + index);
+                break;
+            case POINTER:
+                code.local(ISTORE, pointer + index);
+                break;
+            case THIS:
+            case THAT:
+                code.local(ISTORE, scratch);
+                code.local(ALOAD, ram);
+                pointerAddress(code, segment == Segment.THIS ? pointer : pointer + 1, index);
+                code.local(ILOAD, scratch);
+                code.op(SASTORE);
+                break;
+            case CONSTANT:
+                throw new CompilationEngine.CompilationException("Can not pop to constant");
+            default:
+                code.local(ISTORE, scratch);
+                code.local(ALOAD, ram);
+                code.constant(segment == Segment.STATIC ? staticBase + index : TEMP + index);
+                code.local(ILOAD, scratch);
+                code.op(SASTORE);
+                break;
+        }
+    }
+
+    // the address index words after a pointer, kept in the RAM like the interpreter does
+    private static void pointerAddress(CodeWriter code, int pointer, int index) {
+        code.local(ILOAD, pointer);
+        if (index != 0) {
+            code.constant(index);
+            code.op(IADD);
+        }
+        code.constant(0x7FFF);
+        code.op(IAND);
+    }
+
+    private static void writeArithmetic(CodeWriter code, Command command) {
+        switch (command) {
+            case ADD:
+                code.op(IADD);
+                code.op(I2S);
+                break;
+            case SUB:
+                code.op(ISUB);
+                code.op(I2S);
+                break;
+            case NEG:
+                code.op(INEG);
+                code.op(I2S);
+                break;
+            case AND:
+                code.op(IAND);
+                break;
+            case OR:
+                code.op(IOR);
+                break;
+            case NOT:
+                code.op(ICONST_M1);
+                code.op(IXOR);
+                break;
+            default:
+                String isTrue = code.newLabel(), end = code.newLabel();
+                code.jump(compareOf(command), isTrue);
+                code.op(ICONST_0);
+                code.jump(GOTO, end);
+                code.label(isTrue);
+                code.op(ICONST_M1);
+                code.label(end);
+                break;
+        }
+    }
+
+    // the if_icmp opcode of a comparison, 0 for other commands
+    private static int compareOf(Command command) {
+        switch (command) {
+            case EQ:
+                return IF_ICMPEQ;
+            case GT:
+                return IF_ICMPGT;
+            case LT:
+                return IF_ICMPLT;
+            default:
+                return 0;
+        }
+    }
+
+    private static int opposite(int compare) {
+        switch (compare) {
+            case IF_ICMPEQ:
+                return IF_ICMPNE;
+            case IF_ICMPGT:
+                return IF_ICMPLE;
+            default:
+                return IF_ICMPGE;
+        }
+    }
+
+    private static final int ICONST_M1 = 0x02, ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13,
+            ILOAD = 0x15, ALOAD = 0x19, SALOAD = 0x35, ISTORE = 0x36, SASTORE = 0x56, POP2 = 0x58, DUP = 0x59,
+            IADD = 0x60, ISUB = 0x64, INEG = 0x74, IAND = 0x7E, IOR = 0x80, IXOR = 0x82, I2S = 0x93, IFNE = 0x9A,
+            IFGT = 0x9D, IF_ICMPEQ = 0x9F, IF_ICMPNE = 0xA0, IF_ICMPLT = 0xA1, IF_ICMPGE = 0xA2, IF_ICMPGT = 0xA3,
+            IF_ICMPLE = 0xA4, GOTO = 0xA7, IRETURN = 0xAC, GETSTATIC = 0xB2, PUTSTATIC = 0xB3, INVOKESTATIC = 0xB8,
+            WIDE = 0xC4;
+
+    /**
+     * A class file of static methods, with its constant pool.
+     */
+    private static class ClassWriter {
+        private final ByteArrayOutputStream constants = new ByteArrayOutputStream();
+        private final DataOutputStream constantPool = new DataOutputStream(constants);
+        private final Map<String, Integer> constantIndexes = new HashMap<>();
+        private int constantCount = 1;
+        private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+        private final DataOutputStream methods = new DataOutputStream(methodBytes);
+        private int methodCount;
+        private final int thisClass, superClass, codeName;
+
+        ClassWriter(String name) {
+            thisClass = classConstant(name);
+            superClass = classConstant("java/lang/Object");
+            codeName = utf8("Code");
+        }
+
+        void addMethod(String name, String descriptor, CodeWriter code, int maxStack, int maxLocals) {
+            byte[] bytes = code.toByteArray();
+            if (bytes.length > 0xFFFF) {
+                throw new CompilationEngine.CompilationException(name + " is too long for a JVM method");
+            }
+            try {
+                // public static
+                methods.writeShort(0x0009);
+                methods.writeShort(utf8(name));
+                methods.writeShort(utf8(descriptor));
+                methods.writeShort(1);
+                methods.writeShort(codeName);
+                methods.writeInt(12 + bytes.length);
+                methods.writeShort(maxStack);
+                methods.writeShort(maxLocals);
+                methods.writeInt(bytes.length);
+                methods.write(bytes);
+                // no exception table and no attributes
+                methods.writeShort(0);
+                methods.writeShort(0);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            methodCount++;
+        }
+
+        byte[] toByteArray() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeInt(0xCAFEBABE);
+                // version 49.0, which has no stack map frames
+                out.writeShort(0);
+                out.writeShort(49);
+                out.writeShort(constantCount);
+                out.write(constants.toByteArray());
+                // public super final
+                out.writeShort(0x0031);
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                // no interfaces or fields
+                out.writeShort(0);
+                out.writeShort(0);
+                out.writeShort(methodCount);
+                out.write(methodBytes.toByteArray());
+                // no attributes
+                out.writeShort(0);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        int utf8(String value) {
+            String key = "U" + value;
+            Integer index = constantIndexes.get(key);
+            if (index == null) {
+                try {
+                    constantPool.writeByte(1);
+                    constantPool.writeUTF(value);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                index = add(key);
+            }
+            return index;
+        }
+
+        int integer(int value) {
+            String key = "I" + value;
+            Integer index = constantIndexes.get(key);
+            if (index == null) {
+                write(3, value);
+                index = add(key);
+            }
+            return index;
+        }
+
+        int classConstant(String name) {
+            String key = "C" + name;
+            Integer index = constantIndexes.get(key);
+            if (index == null) {
+                int nameIndex = utf8(name);
+                write(7, nameIndex << 16);
+                index = add(key);
+            }
+            return index;
+        }
+
+        // a field (tag 9) or method (tag 10) reference
+        int member(int tag, String owner, String name, String descriptor) {
+            String key = tag + owner + "." + name + descriptor;
+            Integer index = constantIndexes.get(key);
+            if (index == null) {
+                int ownerIndex = classConstant(owner);
+                int nameIndex = utf8(name), descriptorIndex = utf8(descriptor);
+                String nameAndTypeKey = "N" + name + descriptor;
+                Integer nameAndType = constantIndexes.get(nameAndTypeKey);
+                if (nameAndType == null) {
+                    write(12, nameIndex << 16 | descriptorIndex);
+                    nameAndType = add(nameAndTypeKey);
+                }
+                write(tag, ownerIndex << 16 | nameAndType);
+                index = add(key);
+            }
+            return index;
+        }
+
+        // writes a constant whose value is 4 bytes, or 2 shifted to the top
+        private void write(int tag, int value) {
+            try {
+                constantPool.writeByte(tag);
+                if (tag == 7) {
+                    constantPool.writeShort(value >>> 16);
+                } else {
+                    constantPool.writeInt(value);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private int add(String key) {
+            if (constantCount == 0xFFFF) {
+                throw new CompilationEngine.CompilationException("Too many constants for a class file");
+            }
+            constantIndexes.put(key, constantCount);
+            return constantCount++;
+        }
+    }
+
+    /**
+     * The bytecode of a method, with its labels and the jumps to them.
+     */
+    private static class CodeWriter {
+        private final ClassWriter classWriter;
+        private byte[] code = new byte[256];
+        private int length;
+        private final Map<String, Integer> labels = new HashMap<>();
+        // the jumps, each the offset of its opcode and the label it jumps to
+        private final List<Integer> jumps = new ArrayList<>();
+        private final List<String> jumpLabels = new ArrayList<>();
+        private int labelCount;
+
+        CodeWriter(ClassWriter classWriter) {
+            this.classWriter = classWriter;
+        }
+
+        void op(int opcode) {
+            write(opcode);
+        }
+
+        void constant(int value) {
+            if (value >= -1 && value <= 5) {
+                write(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                write(BIPUSH);
+                write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                write(SIPUSH);
+                writeShort(value);
+            } else {
+                write(LDC_W);
+                writeShort(classWriter.integer(value));
+            }
+        }
+
+        void local(int opcode, int index) {
+            if (index > 0xFF) {
+                write(WIDE);
+                write(opcode);
+                writeShort(index);
+            } else {
+                write(opcode);
+                write(index);
+            }
+        }
+
+        void invokeStatic(String owner, String name, String descriptor) {
+            write(INVOKESTATIC);
+            writeShort(classWriter.member(10, owner, name, descriptor));
+        }
+
+        void getStatic(String owner, String name, String descriptor) {
+            write(GETSTATIC);
+            writeShort(classWriter.member(9, owner, name, descriptor));
+        }
+
+        void putStatic(String owner, String name, String descriptor) {
+            write(PUTSTATIC);
+            writeShort(classWriter.member(9, owner, name, descriptor));
+        }
+
+        // a label that can not be one of the VM's, which have no spaces
+        String newLabel() {
+            return " " + labelCount++;
+        }
+
+        void label(String label) {
+            labels.put(label, length);
+        }
+
+        void jump(int opcode, String label) {
+            jumps.add(length);
+            jumpLabels.add(label);
+            write(opcode);
+            writeShort(0);
+        }
+
+        byte[] toByteArray() {
+            for (int i = 0; i < jumps.size(); i++) {
+                Integer target = labels.get(jumpLabels.get(i));
+                if (target == null) {
+                    throw new CompilationEngine.CompilationException("No label " + jumpLabels.get(i));
+                }
+                int offset = target - jumps.get(i);
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new CompilationEngine.CompilationException("A jump is too far for a JVM method");
+                }
+                code[jumps.get(i) + 1] = (byte) (offset >> 8);
+                code[jumps.get(i) + 2] = (byte) offset;
+            }
+            byte[] bytes = new byte[length];
+            System.arraycopy(code, 0, bytes, 0, length);
+            return bytes;
+        }
+
+        private void writeShort(int value) {
+            write(value >> 8);
+            write(value);
+        }
+
+        private void write(int value) {
+            if (length == code.length) {
+                byte[] bigger = new byte[length * 2];
+                System.arraycopy(code, 0, bigger, 0, length);
+                code = bigger;
+            }
+            code[length++] = (byte) value;
+        }
+    }
+
+    /**
+     * Defines the classes of one program.
+     */
+    private static class JackClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classFiles;
+
+        JackClassLoader(Map<String, byte[]> classFiles) {
+            super(VMJit.class.getClassLoader());
+            this.classFiles = classFiles;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] classFile = classFiles.get(name);
+            if (classFile == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+}
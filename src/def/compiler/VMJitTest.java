@@ -0,0 +1,115 @@
+package def.compiler;
+
+import def.compiler.VMWriter.Command;
+import def.compiler.VMWriter.Segment;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VMJitTest {
+    @Test
+    public void runLikeTheInterpreter() throws Exception {
+        VMInterpreter interpreter = new VMInterpreter(VMInterpreterTest.triangleProgram());
+        assertTrue(interpreter.run(1000));
+        VMJit jit = new VMJit(VMInterpreterTest.triangleProgram());
+        assertTrue(jit.run(1000));
+
+        assertEquals(15, jit.memory()[16]);
+        assertEquals(interpreter.steps(), jit.steps());
+
+        jit = new VMJit(VMInterpreterTest.triangleProgram());
+        assertFalse(jit.run(10));
+        assertTrue(jit.steps() <= 10);
+    }
+
+    @Test
+    public void runTheTestProgramsLikeTheInterpreter() throws Exception {
+        // Square moves right, then quits, and Average is given 2, 4 and 6, with keys in the middle of runs of commands
+        String[][] programs = {{"1-Seven", ""}, {"2-ConvertToBin", ""},
+                {"3-Square", "133@1000003,0@3000017,81@5000029,0@5500037"},
+                {"4-Average", "50@1000002,0@2000002,128@3000002,0@4000002,52@5000002,0@6000002,128@7000002,"
+                        + "0@8000002,54@9000002,0@10000002,128@11000002,0@12000002"},
+                {"5-Pong", ""}, {"6-ComplexArrays", ""}};
+        PrintStream out = new PrintStream(new ByteArrayOutputStream());
+        for (String[] test : programs) {
+            File directory = new File("Test2", test[0]);
+            Map<String, List<VMCommand>> compiledClasses = new LinkedHashMap<>();
+            assertTrue(JackCompiler.compile(directory, JackCompiler.Mode.COMPILE,
+                    EnumSet.noneOf(CompilerOptions.Optimization.class), false, false, compiledClasses, out));
+            VMProgram program = VMProgram.read(directory, compiledClasses,
+                    Collections.singletonList(new File("Test2/0-OS")), out);
+
+            VMInterpreter interpreter = new VMInterpreter(program);
+            VMJit jit = new VMJit(program);
+            for (long[] key : JackCompiler.keysOf(test[1])) {
+                interpreter.pressKey((int) key[0], key[1]);
+                jit.pressKey((int) key[0], key[1]);
+            }
+            assertTrue(test[0], interpreter.run(20000000));
+            assertTrue(test[0], jit.run(20000000));
+
+            assertEquals(test[0], interpreter.steps(), jit.steps());
+            // the JIT keeps SP, LCL, ARG, THIS, THAT and the stack on the JVM, so only the rest of the RAM is the same
+            assertArrayEquals(test[0], Arrays.copyOfRange(interpreter.memory(), 5, 256),
+                    Arrays.copyOfRange(jit.memory(), 5, 256));
+            assertArrayEquals(test[0], Arrays.copyOfRange(interpreter.memory(), 2048, 32768),
+                    Arrays.copyOfRange(jit.memory(), 2048, 32768));
+        }
+    }
+
+    @Test
+    public void computeWithShorts() throws Exception {
+        VMProgram program = new VMProgram();
+        // 32767 + 1 wraps around, and the comparisons give -1 for true
+        program.addClass("Sys", Arrays.asList(VMCommand.function("Sys.init", 0), VMCommand.push(Segment.CONSTANT, 32767),
+                VMCommand.push(Segment.CONSTANT, 1), VMCommand.arithmetic(Command.ADD), VMCommand.pop(Segment.STATIC, 0),
+                VMCommand.push(Segment.CONSTANT, 2), VMCommand.push(Segment.CONSTANT, 1), VMCommand.arithmetic(Command.GT),
+                VMCommand.pop(Segment.STATIC, 1), VMCommand.push(Segment.CONSTANT, 3000), VMCommand.pop(Segment.POINTER, 1),
+                VMCommand.push(Segment.STATIC, 0), VMCommand.pop(Segment.THAT, 2), VMCommand.push(Segment.CONSTANT, 0),
+                VMCommand.returnCommand()));
+
+        VMJit jit = new VMJit(program);
+        assertTrue(jit.run(1000));
+
+        assertEquals(Short.MIN_VALUE, jit.memory()[16]);
+        assertEquals(-1, jit.memory()[17]);
+        assertEquals(Short.MIN_VALUE, jit.memory()[3002]);
+    }
+
+    @Test
+    public void padMissingArguments() throws Exception {
+        VMProgram program = new VMProgram();
+        // Main.last takes 5 arguments, but the call passes none, so the JIT pushes 5 zeros on a stack 2 high
+        program.addClass("Sys", Arrays.asList(VMCommand.function("Sys.init", 0), VMCommand.push(Segment.CONSTANT, 6),
+                VMCommand.push(Segment.CONSTANT, 7), VMCommand.call("Main.last", 0), VMCommand.arithmetic(Command.ADD),
+                VMCommand.arithmetic(Command.ADD), VMCommand.pop(Segment.STATIC, 0), VMCommand.push(Segment.CONSTANT, 0),
+                VMCommand.returnCommand()));
+        program.addClass("Main", Arrays.asList(VMCommand.function("Main.last", 0), VMCommand.push(Segment.ARGUMENT, 4),
+                VMCommand.returnCommand()));
+
+        VMJit jit = new VMJit(program);
+        assertTrue(jit.run(1000));
+        assertEquals(13, jit.memory()[16]);
+    }
+
+    @Test(expected = CompilationEngine.CompilationException.class)
+    public void rejectStackUnderflow() throws Exception {
+        VMProgram program = new VMProgram();
+        program.addClass("Sys", Arrays.asList(VMCommand.function("Sys.init", 0), VMCommand.push(Segment.CONSTANT, 1),
+                VMCommand.arithmetic(Command.ADD), VMCommand.returnCommand()));
+        new VMJit(program).run(1000);
+    }
+}
@@ -0,0 +1,112 @@
+package def.compiler;
+
+import def.compiler.CompilationEngine.CompilationException;
+import def.compiler.VMWriter.Command;
+import def.compiler.VMWriter.Segment;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads VM code, such as the output of {@link VMWriter} or the .vm files of the OS, back into {@link VMCommand}s.
+ * Comments, blank lines, and the spacing around commands are dropped.
+ */
+public class VMParser {
+
+    private VMParser() {
+    }
+
+    /**
+     * Reads all the commands of a .vm file.
+     * @param vmFile The file to read.
+     * @return The commands in the order of the file.
+     */
+    public static List<VMCommand> parse(File vmFile) throws IOException {
+        List<VMCommand> commands = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(vmFile))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                try {
+                    VMCommand command = parseLine(line);
+                    if (command != null) {
+                        commands.add(command);
+                    }
+                } catch (RuntimeException e) {
+                    throw new CompilationException(vmFile.getName() + ":" + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * Reads one line of VM code.
+     * @return The command on the line, or null if the line has no command.
+     */
+    public static VMCommand parseLine(String line) {
+        int commentStart = line.indexOf("//");
+        if (commentStart != -1) {
+            line = line.substring(0, commentStart);
+        }
+        line = line.trim();
+        if (line.isEmpty()) {
+            return null;
+        }
+
+        String[] words = line.split("\\s+");
+        switch (words[0]) {
+            case "push":
+                return VMCommand.push(segmentOf(words, line), numberOf(words, line));
+            case "pop":
+                return VMCommand.pop(segmentOf(words, line), numberOf(words, line));
+            case "label":
+                return VMCommand.label(nameOf(words, line));
+            case "goto":
+                return VMCommand.goTo(nameOf(words, line));
+            case "if-goto":
+                return VMCommand.ifGoTo(nameOf(words, line));
+            case "call":
+                return VMCommand.call(nameOf(words, line), numberOf(words, line));
+            case "function":
+                return VMCommand.function(nameOf(words, line), numberOf(words, line));
+            case "return":
+                return VMCommand.returnCommand();
+            default:
+                for (Command command : Command.values()) {
+                    if (command.toString().toLowerCase().equals(words[0])) {
+                        return VMCommand.arithmetic(command);
+                    }
+                }
+                throw new CompilationException("Unknown VM command " + line);
+        }
+    }
+
+    private static Segment segmentOf(String[] words, String line) {
+        for (Segment segment : Segment.values()) {
+            if (words.length > 1 && segment.toString().toLowerCase().equals(words[1])) {
+                return segment;
+            }
+        }
+        throw new CompilationException("Expected a segment in " + line);
+    }
+
+    private static String nameOf(String[] words, String line) {
+        if (words.length < 2) {
+            throw new CompilationException("Expected a name in " + line);
+        }
+        return words[1];
+    }
+
+    private static int numberOf(String[] words, String line) {
+        if (words.length < 3) {
+            throw new CompilationException("Expected a number in " + line);
+        }
+        return Integer.parseInt(words[2]);
+    }
+}
@@ -0,0 +1,206 @@
+package def.compiler;
+
+import def.compiler.VMCommand.Type;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The VM code of a whole program, one list of {@link VMCommand}s for each class, for the passes that need to see
+ * every class at once, such as the {@link TreeShaker} and the {@link Inliner}.
+ * <p>
+ * The program is made of the classes compiled from the Jack files of a directory, kept in memory or read from their
+ * .vm files, and of libraries, such as the .vm files of an OS.  A class compiled from a Jack file of the directory
+ * takes the place of a library class of the same name.  The .vm
+ * files in the directory without a Jack file are also part of the program, unless a library has the same class, as
+ * they are usually copies of library classes.  When the program is written back, each class of the directory is
+ * rewritten, and each library class that still has a function is written to the directory.  The library
+ * directories are never changed.
+ */
+public class VMProgram {
+
+    // the commands of each class, in the order they were read
+    private final Map<String, List<VMCommand>> classes;
+    // the classes with a .vm file in the program's directory
+    private final Set<String> directoryClasses;
+
+    public VMProgram() {
+        classes = new LinkedHashMap<>();
+        directoryClasses = new HashSet<>();
+    }
+
+    /**
+     * Reads the program in a directory.
+     * @param directory The directory of the compiled program.
+     * @param libraries The directories of the libraries the program uses.
+     * @param out Where to print the libraries that could not be read.
+     */
+    public static VMProgram read(File directory, List<File> libraries, PrintStream out) throws IOException {
+        return read(directory, Collections.<String, List<VMCommand>>emptyMap(), libraries, out);
+    }
+
+    /**
+     * Makes the program of a directory from the classes compiled in memory, reading only the other .vm files of the
+     * directory and the libraries.
+     * @param directory The directory of the compiled program.
+     * @param compiledClasses The VM code of each class compiled from a Jack file of the directory.
+     * @param libraries The directories of the libraries the program uses.
+     * @param out Where to print the libraries that could not be read.
+     */
+    public static VMProgram read(File directory, Map<String, List<VMCommand>> compiledClasses, List<File> libraries,
+                                 PrintStream out) throws IOException {
+        FileFilter vmFiles = new FileFilter() {
+            @Override
+            public boolean accept(File pathname) {
+                return pathname.isFile() && pathname.getName().endsWith(".vm");
+            }
+        };
+
+        VMProgram program = new VMProgram();
+        Set<String> compiledClassNames = new HashSet<>(compiledClasses.keySet());
+        for (Map.Entry<String, List<VMCommand>> entry : compiledClasses.entrySet()) {
+            program.directoryClasses.add(entry.getKey());
+            program.addClass(entry.getKey(), entry.getValue());
+        }
+
+        File[] directoryFiles = directory.listFiles(vmFiles);
+        if (directoryFiles != null) {
+            for (File vmFile : directoryFiles) {
+                String className = classNameOf(vmFile);
+                if (compiledClasses.containsKey(className)) {
+                    // an older copy of a class compiled in memory
+                    continue;
+                }
+                program.directoryClasses.add(className);
+                if (new File(directory, className + ".jack").isFile()) {
+                    compiledClassNames.add(className);
+                }
+                program.addClass(className, VMParser.parse(vmFile));
+            }
+        }
+
+        for (File library : libraries) {
+            File[] libraryFiles = library.listFiles(vmFiles);
+            if (libraryFiles == null) {
+                out.println("The library " + library + " is not a directory");
+                continue;
+            }
+            for (File vmFile : libraryFiles) {
+                String className = classNameOf(vmFile);
+                if (!compiledClassNames.contains(className)) {
+                    program.addClass(className, VMParser.parse(vmFile));
+                }
+            }
+        }
+
+        return program;
+    }
+
+    /**
+     * Writes the classes of the program to a directory: the classes read from it, and the other classes that have
+     * a function.
+     * @param directory The directory the program was read from.
+     */
+    public void write(File directory) throws IOException {
+        for (Map.Entry<String, List<VMCommand>> entry : classes.entrySet()) {
+            if (directoryClasses.contains(entry.getKey()) || countFunctions(entry.getValue()) > 0) {
+                VMWriter writer = new VMWriter(new File(directory, entry.getKey() + ".vm"));
+                for (VMCommand command : entry.getValue()) {
+                    writer.writeCommand(command);
+                }
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Adds a class to the program, replacing any class of the same name.
+     * @param className The name of the class, which its .vm file is named after.
+     * @param commands The VM code of the class.
+     */
+    public void addClass(String className, List<VMCommand> commands) {
+        classes.put(className, commands);
+    }
+
+    /**
+     * @return the names of the classes, in the order they were added.
+     */
+    public Set<String> classNames() {
+        return classes.keySet();
+    }
+
+    /**
+     * @return the VM code of a class, which passes may change in place.
+     */
+    public List<VMCommand> commandsOf(String className) {
+        return classes.get(className);
+    }
+
+    /**
+     * @return the commands of each function of the program, starting with its function command.  Changing these
+     *         lists does not change the program.
+     */
+    public Map<String, List<VMCommand>> functions() {
+        Map<String, List<VMCommand>> functions = new HashMap<>();
+        for (List<VMCommand> commands : classes.values()) {
+            List<VMCommand> function = null;
+            for (VMCommand command : commands) {
+                if (command.type == Type.FUNCTION) {
+                    function = new ArrayList<>();
+                    functions.put(command.name, function);
+                }
+                if (function != null) {
+                    function.add(command);
+                }
+            }
+        }
+        return functions;
+    }
+
+    /**
+     * @return the number of functions in the whole program.
+     */
+    public int functionCount() {
+        int count = 0;
+        for (List<VMCommand> commands : classes.values()) {
+            count += countFunctions(commands);
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of commands in the whole program.
+     */
+    public int commandCount() {
+        int count = 0;
+        for (List<VMCommand> commands : classes.values()) {
+            count += commands.size();
+        }
+        return count;
+    }
+
+    private static String classNameOf(File vmFile) {
+        String fileName = vmFile.getName();
+        return fileName.substring(0, fileName.length() - ".vm".length());
+    }
+
+    private static int countFunctions(List<VMCommand> commands) {
+        int count = 0;
+        for (VMCommand command : commands) {
+            if (command.type == Type.FUNCTION) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,55 @@
+package def.compiler;
+
+import def.compiler.CompilerOptions.Optimization;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class VMProgramTest {
+    @Test
+    public void compileIntoMemory() throws Exception {
+        File directory = new File("Test2/5-Pong");
+        Set<Optimization> optimizations = EnumSet.noneOf(Optimization.class);
+        for (Optimization optimization : Optimization.values()) {
+            if (optimization.isSafe()) {
+                optimizations.add(optimization);
+            }
+        }
+        PrintStream out = new PrintStream(new ByteArrayOutputStream());
+
+        Map<String, List<VMCommand>> compiledClasses = new LinkedHashMap<>();
+        assertTrue(JackCompiler.compile(directory, JackCompiler.Mode.COMPILE, optimizations, false, false,
+                compiledClasses, out));
+        assertEquals(4, compiledClasses.size());
+
+        // the same code as the .vm files
+        for (Map.Entry<String, List<VMCommand>> entry : compiledClasses.entrySet()) {
+            File vmFile = File.createTempFile(entry.getKey(), ".vm");
+            try {
+                JackCompiler.compileFile(new File(directory, entry.getKey() + ".jack"), vmFile,
+                        JackCompiler.Mode.COMPILE, optimizations, null);
+                assertEquals(VMParser.parse(vmFile), entry.getValue());
+            } finally {
+                vmFile.delete();
+            }
+        }
+
+        // only the library is read
+        VMProgram program = VMProgram.read(directory, compiledClasses,
+                Collections.singletonList(new File("Test2/0-OS")), out);
+        assertSame(compiledClasses.get("Ball"), program.commandsOf("Ball"));
+        assertTrue(program.classNames().contains("Sys"));
+    }
+}
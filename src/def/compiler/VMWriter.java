@@ -3,26 +3,103 @@ package def.compiler;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Created by dflor on 8/8/2017.
  *
- * Emits VM commands into a file, using the VM command syntax.
+ * Emits VM commands into a file, using the VM command syntax, or into a list in memory for the passes over a whole
+ * {@link VMProgram}.
+ * <p>
+ * With {@link PeepholeRule}s, the commands of each function are kept in memory until the function is complete, and
+ * rewritten by the rules before they are written.  Without rules each command is written as soon as it is given.
  */
 public class VMWriter {
 
+    // one of these is set, to write the commands as text or to add them to a list
     private PrintWriter writer;
+    private final List<VMCommand> commands;
+    private final Collection<PeepholeRule> rules;
+    private final List<VMCommand> function;
 
     /**
      * Creates a new file and prepares it for writing.
      * @param outputFile The file to output to.
      */
     public VMWriter(File outputFile) throws FileNotFoundException {
-        writer = new PrintWriter(outputFile);
+        this(outputFile, Collections.<PeepholeRule>emptySet());
+    }
+
+    /**
+     * Creates a new file and prepares it for writing, with the commands of each function rewritten by peephole rules.
+     * @param outputFile The file to output to.
+     * @param rules The rules to rewrite each function with, none to write the commands as they are given.
+     */
+    public VMWriter(File outputFile, Collection<PeepholeRule> rules) throws FileNotFoundException {
+        this(new PrintWriter(outputFile), rules);
     }
 
     public VMWriter(PrintWriter writer) {
+        this(writer, Collections.<PeepholeRule>emptySet());
+    }
+
+    public VMWriter(PrintWriter writer, Collection<PeepholeRule> rules) {
         this.writer = writer;
+        commands = null;
+        this.rules = rules;
+        function = new ArrayList<>();
+    }
+
+    /**
+     * Prepares to add the commands to a list instead of writing them, with the commands of each function rewritten by
+     * peephole rules.
+     * @param commands The list to add the commands to.
+     * @param rules The rules to rewrite each function with, none to add the commands as they are given.
+     */
+    public VMWriter(List<VMCommand> commands, Collection<PeepholeRule> rules) {
+        writer = null;
+        this.commands = commands;
+        this.rules = rules;
+        function = new ArrayList<>();
+    }
+
+    private void write(VMCommand command) {
+        if (rules.isEmpty()) {
+            emit(command);
+        } else {
+            function.add(command);
+        }
+    }
+
+    // rewrites and writes the commands of the function kept in memory
+    private void flushFunction() {
+        PeepholeRule.rewriteAll(function, rules);
+        for (VMCommand command : function) {
+            emit(command);
+        }
+        function.clear();
+    }
+
+    private void emit(VMCommand command) {
+        if (writer != null) {
+            writer.println(command);
+        } else {
+            commands.add(command);
+        }
+    }
+
+    /**
+     * Writes a VM command of any type, such as one read by {@link VMParser}.
+     * @param command The command to write.
+     */
+    public void writeCommand(VMCommand command) {
+        if (command.type == VMCommand.Type.FUNCTION) {
+            flushFunction();
+        }
+        write(command);
     }
 
     /**
@@ -31,7 +108,7 @@ public class VMWriter {
      * @param index The index for the push command.
      */
     public void writePush(Segment segment, int index) {
-        writer.println("    push " + segment.toString().toLowerCase() + " " + index);
+        write(VMCommand.push(segment, index));
     }
 
     /**
@@ -40,7 +117,7 @@ public class VMWriter {
      * @param index The index for the pop command.
      */
     public void writePop(Segment segment, int index) {
-        writer.println("    pop " + segment.toString().toLowerCase() + " " + index);
+        write(VMCommand.pop(segment, index));
     }
 
     /**
@@ -48,7 +125,7 @@ public class VMWriter {
      * @param command Which command is being written.
      */
     public void writeArithmetic(Command command) {
-        writer.println("    " + command.toString().toLowerCase());
+        write(VMCommand.arithmetic(command));
     }
 
     /**
@@ -56,7 +133,7 @@ public class VMWriter {
      * @param label The name for the label.
      */
     public void writeLabel(String label) {
-        writer.println("label " + label);
+        write(VMCommand.label(label));
     }
 
     /**
@@ -64,7 +141,7 @@ public class VMWriter {
      * @param label the name of the label to jump to.
      */
     public void writeGoto(String label) {
-        writer.println("    goto " + label);
+        write(VMCommand.goTo(label));
     }
 
     /**
@@ -72,7 +149,7 @@ public class VMWriter {
      * @param label the name of the label to jump to.
      */
     public void writeIf(String label) {
-        writer.println("    if-goto " + label);
+        write(VMCommand.ifGoTo(label));
     }
 
     /**
@@ -81,7 +158,7 @@ public class VMWriter {
      * @param nArgs The number of arguments pushed onto the stack
      */
     public void writeCall(String name, int nArgs) {
-        writer.println("    call " + name + " " + nArgs);
+        write(VMCommand.call(name, nArgs));
     }
 
     /**
@@ -90,22 +167,26 @@ public class VMWriter {
      * @param nLocals The number of local variables for this function.
      */
     public void writeFunction(String name, int nLocals) {
-        writer.println("function " + name + " " + nLocals);
+        flushFunction();
+        write(VMCommand.function(name, nLocals));
     }
 
     /**
      * Writes a VM return command.
      */
     public void writeReturn() {
-        writer.println("    return");
+        write(VMCommand.returnCommand());
     }
 
     /**
-     * Closes the output file.
+     * Closes the output file, or adds the last function to the list.
      */
     public void close() {
-        writer.flush();
-        writer.close();
+        flushFunction();
+        if (writer != null) {
+            writer.flush();
+            writer.close();
+        }
     }
 
     public enum Segment {
@@ -0,0 +1,474 @@
+package def.compiler;
+
+import def.compiler.JackTokenizer.KeyWord;
+import def.compiler.SymbolTable.Kind;
+import def.compiler.SyntaxTree.ArrayEntry;
+import def.compiler.SyntaxTree.BinaryOperation;
+import def.compiler.SyntaxTree.ClassDeclaration;
+import def.compiler.SyntaxTree.DoStatement;
+import def.compiler.SyntaxTree.Expression;
+import def.compiler.SyntaxTree.IfStatement;
+import def.compiler.SyntaxTree.IntegerConstant;
+import def.compiler.SyntaxTree.KeywordConstant;
+import def.compiler.SyntaxTree.LetStatement;
+import def.compiler.SyntaxTree.Parentheses;
+import def.compiler.SyntaxTree.ReturnStatement;
+import def.compiler.SyntaxTree.Statement;
+import def.compiler.SyntaxTree.StringConstant;
+import def.compiler.SyntaxTree.SubroutineCall;
+import def.compiler.SyntaxTree.SubroutineDeclaration;
+import def.compiler.SyntaxTree.UnaryOperation;
+import def.compiler.SyntaxTree.Variable;
+import def.compiler.SyntaxTree.VariableDeclaration;
+import def.compiler.SyntaxTree.WhileStatement;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Prints a {@link SyntaxTree} as the xml parse tree of the Jack grammar, one tag per line.
+ * <p>
+ * The extended xml also prints the category of each identifier, whether it is being defined or used,
+ * and, for variables, their index and type.  The emitter keeps its own {@link SymbolTable} for this,
+ * filled in as it walks the declarations.
+ */
+public class XMLEmitter {
+
+    private final PrintWriter outputWriter;
+    private final boolean extendedXML;
+    private final SymbolTable symbolTable;
+    private String indentLevel;
+
+    private String className;
+
+    /**
+     * Creates a new xml emitter.
+     * @param outputWriter Where to print the xml.
+     * @param extendedXML true to print the symbol table information for each identifier.
+     * @param identifiers The pool the identifier ids of the tree are from.
+     */
+    public XMLEmitter(PrintWriter outputWriter, boolean extendedXML, IdentifierPool identifiers) {
+        this.outputWriter = outputWriter;
+        this.extendedXML = extendedXML;
+        symbolTable = new SymbolTable(identifiers);
+        indentLevel = "";
+    }
+
+    private void increaseIndent() {
+        indentLevel += "  ";
+    }
+
+    private void decreaseIndent() {
+        if (indentLevel.length() >= 2)
+            indentLevel = indentLevel.substring(0, indentLevel.length() - 2);
+    }
+
+    private void println(String preIndentLine) {
+        outputWriter.println(indentLevel + preIndentLine);
+    }
+
+    private void printIdentifier(String identifier, String category, boolean isBeingDefined) {
+        printIdentifier(identifier, category, isBeingDefined, -1, "");
+    }
+
+    private void printIdentifier(String identifier, String category, boolean isBeingDefined, int index, String type) {
+        if (extendedXML) {
+            println("<identifier category=\"" + category + "\" > ");
+            increaseIndent();
+            println(identifier);
+            println(isBeingDefined?"<definition />":"<usage />");
+            if (index != -1) {
+                println("<index> " + index + " </index>");
+            }
+            if (type != null && !type.equals("")) {
+                println("<type> " + type + " </type>");
+            }
+            decreaseIndent();
+            println("</identifier>");
+        } else {
+            println("<identifier> " + identifier + " </identifier>");
+        }
+    }
+
+    private void printVariable(String name, int id) {
+        printIdentifier(name, symbolTable.kindOf(id).toString().toLowerCase(), false,
+                symbolTable.indexOf(id), symbolTable.typeOf(id));
+    }
+
+    private void printType(String type, boolean typeIsPrimitive) {
+        if (typeIsPrimitive) {
+            println("<keyword> " + type + " </keyword>");
+        } else {
+            printIdentifier(type, "class", false);
+        }
+    }
+
+    private void define(VariableDeclaration declaration) {
+        for (String name : declaration.names) {
+            symbolTable.define(name, declaration.type, declaration.kind);
+        }
+    }
+
+    /**
+     * Prints a complete class.
+     */
+    public void emitClass(ClassDeclaration classDeclaration) {
+        className = classDeclaration.name;
+
+        println("<class>");
+        increaseIndent();
+        println("<keyword> class </keyword>");
+        printIdentifier(className, "class", true);
+        println("<symbol> { </symbol>");
+
+        for (VariableDeclaration declaration : classDeclaration.variables) {
+            emitClassVariableDeclaration(declaration);
+        }
+
+        for (SubroutineDeclaration subroutine : classDeclaration.subroutines) {
+            emitSubroutine(subroutine);
+        }
+
+        println("<symbol> } </symbol>");
+        decreaseIndent();
+        println("</class>");
+    }
+
+    /**
+     * Prints a static declaration or a field declaration.
+     */
+    public void emitClassVariableDeclaration(VariableDeclaration declaration) {
+        define(declaration);
+
+        String category = declaration.kind.toString().toLowerCase();
+
+        println("<classVarDec>");
+        increaseIndent();
+        println("<keyword> " + category + " </keyword>");
+        printType(declaration.type, declaration.typeIsPrimitive);
+
+        for (int i = 0; i < declaration.names.size(); i++) {
+            String name = declaration.names.get(i);
+            printIdentifier(name, category, true, symbolTable.indexOf(name), symbolTable.typeOf(name));
+            println("<symbol> " + (i + 1 == declaration.names.size() ? ";" : ",") + " </symbol>");
+        }
+
+        decreaseIndent();
+        println("</classVarDec>");
+    }
+
+    /**
+     * Prints a complete method, function, or constructor.
+     */
+    public void emitSubroutine(SubroutineDeclaration subroutine) {
+        symbolTable.startSubroutine();
+
+        if (subroutine.subroutineType == KeyWord.METHOD) {
+            symbolTable.define("this", className, Kind.ARG);
+        }
+
+        println("<subroutineDec>");
+        increaseIndent();
+        println("<keyword> " + subroutine.subroutineType.toString().toLowerCase() + " </keyword>");
+        printType(subroutine.returnType, subroutine.returnTypeIsPrimitive);
+        printIdentifier(subroutine.name, "subroutine", true);
+        println("<symbol> ( </symbol>");
+
+        emitParameterList(subroutine.parameters);
+
+        println("<symbol> ) </symbol>");
+        println("<subroutineBody>");
+        increaseIndent();
+        println("<symbol> { </symbol>");
+
+        for (VariableDeclaration declaration : subroutine.localVariables) {
+            emitVariableDeclaration(declaration);
+        }
+
+        emitStatements(subroutine.statements);
+
+        println("<symbol> } </symbol>");
+        decreaseIndent();
+        println("</subroutineBody>");
+        decreaseIndent();
+        println("</subroutineDec>");
+    }
+
+    /**
+     * Prints a (possibly empty) parameter list, not including the enclosing "()".
+     */
+    public void emitParameterList(List<VariableDeclaration> parameters) {
+        for (VariableDeclaration parameter : parameters) {
+            define(parameter);
+        }
+
+        println("<parameterList>");
+        increaseIndent();
+        for (int i = 0; i < parameters.size(); i++) {
+            VariableDeclaration parameter = parameters.get(i);
+            String name = parameter.names.get(0);
+
+            printType(parameter.type, parameter.typeIsPrimitive);
+            printIdentifier(name, "arg", true, symbolTable.indexOf(name), symbolTable.typeOf(name));
+
+            if (i < parameters.size() - 1) {
+                println("<symbol> , </symbol>");
+            }
+        }
+        decreaseIndent();
+        println("</parameterList>");
+    }
+
+    /**
+     * Prints a var declaration.
+     */
+    public void emitVariableDeclaration(VariableDeclaration declaration) {
+        define(declaration);
+
+        println("<varDec>");
+        increaseIndent();
+        println("<keyword> var </keyword>");
+        printType(declaration.type, declaration.typeIsPrimitive);
+
+        for (int i = 0; i < declaration.names.size(); i++) {
+            String name = declaration.names.get(i);
+            if (i > 0) {
+                println("<symbol> , </symbol>");
+            }
+            printIdentifier(name, "var", true, symbolTable.indexOf(name), symbolTable.typeOf(name));
+        }
+
+        println("<symbol> ; </symbol>");
+        decreaseIndent();
+        println("</varDec>");
+    }
+
+    /**
+     * Prints a sequence of statements, not including the enclosing "{}".
+     */
+    public void emitStatements(List<Statement> statements) {
+        println("<statements>");
+        increaseIndent();
+
+        for (Statement statement : statements) {
+            emitStatement(statement);
+        }
+
+        decreaseIndent();
+        println("</statements>");
+    }
+
+    /**
+     * Prints a single statement.
+     */
+    public void emitStatement(Statement statement) {
+        switch (statement.nodeType()) {
+            case LET:
+                emitLet((LetStatement) statement);
+                break;
+            case IF:
+                emitIf((IfStatement) statement);
+                break;
+            case WHILE:
+                emitWhile((WhileStatement) statement);
+                break;
+            case DO:
+                println("<doStatement>");
+                increaseIndent();
+                println("<keyword> do </keyword>");
+                emitSubroutineCall(((DoStatement) statement).call);
+                println("<symbol> ; </symbol>");
+                decreaseIndent();
+                println("</doStatement>");
+                break;
+            case RETURN:
+                println("<returnStatement>");
+                increaseIndent();
+                println("<keyword> return </keyword>");
+                if (((ReturnStatement) statement).value != null) {
+                    emitExpression(((ReturnStatement) statement).value);
+                }
+                println("<symbol> ; </symbol>");
+                decreaseIndent();
+                println("</returnStatement>");
+                break;
+        }
+    }
+
+    private void emitLet(LetStatement let) {
+        println("<letStatement>");
+        increaseIndent();
+        println("<keyword> let </keyword>");
+        printVariable(let.variableName, let.variableId);
+
+        if (let.index != null) {
+            println("<symbol> [ </symbol>");
+            emitExpression(let.index);
+            println("<symbol> ] </symbol>");
+        }
+
+        println("<symbol> = </symbol>");
+        emitExpression(let.value);
+        println("<symbol> ; </symbol>");
+        decreaseIndent();
+        println("</letStatement>");
+    }
+
+    private void emitWhile(WhileStatement loop) {
+        println("<whileStatement>");
+        increaseIndent();
+        println("<keyword> while </keyword>");
+        println("<symbol> ( </symbol>");
+        emitExpression(loop.condition);
+        println("<symbol> ) </symbol>");
+        println("<symbol> { </symbol>");
+        emitStatements(loop.statements);
+        println("<symbol> } </symbol>");
+        decreaseIndent();
+        println("</whileStatement>");
+    }
+
+    private void emitIf(IfStatement ifStatement) {
+        println("<ifStatement>");
+        increaseIndent();
+        println("<keyword> if </keyword>");
+        println("<symbol> ( </symbol>");
+        emitExpression(ifStatement.condition);
+        println("<symbol> ) </symbol>");
+        println("<symbol> { </symbol>");
+        emitStatements(ifStatement.thenStatements);
+
+        if (ifStatement.elseStatements != null) {
+            println("<symbol> } </symbol>");
+            println("<keyword> else </keyword>");
+            println("<symbol> { </symbol>");
+            emitStatements(ifStatement.elseStatements);
+        }
+
+        println("<symbol> } </symbol>");
+        decreaseIndent();
+        println("</ifStatement>");
+    }
+
+    /**
+     * Prints an expression.
+     */
+    public void emitExpression(Expression expression) {
+        println("<expression>");
+        increaseIndent();
+        emitOperands(expression);
+        decreaseIndent();
+        println("</expression>");
+    }
+
+    // an expression is printed flat, as term (op term)*
+    private void emitOperands(Expression expression) {
+        if (expression.nodeType() != SyntaxTree.NodeType.BINARY_OPERATION) {
+            emitTerm(expression);
+            return;
+        }
+
+        BinaryOperation operation = (BinaryOperation) expression;
+        emitOperands(operation.left);
+
+        switch (operation.operator) {
+            case '<':
+                println("<symbol> &lt; </symbol>");
+                break;
+            case '>':
+                println("<symbol> &gt; </symbol>");
+                break;
+            case '&':
+                println("<symbol> &amp; </symbol>");
+                break;
+            default:
+                println("<symbol> " + operation.operator + " </symbol>");
+                break;
+        }
+
+        emitTerm(operation.right);
+    }
+
+    /**
+     * Prints a term.
+     */
+    public void emitTerm(Expression term) {
+        println("<term>");
+        increaseIndent();
+
+        switch (term.nodeType()) {
+            case INTEGER_CONSTANT:
+                println("<integerConstant> " + ((IntegerConstant) term).value + " </integerConstant>");
+                break;
+            case STRING_CONSTANT:
+                println("<stringConstant> " + ((StringConstant) term).value + " </stringConstant>");
+                break;
+            case KEYWORD_CONSTANT:
+                println("<keyword> " + ((KeywordConstant) term).keyWord.toString().toLowerCase() + " </keyword>");
+                break;
+            case VARIABLE:
+                printVariable(((Variable) term).name, ((Variable) term).id);
+                break;
+            case ARRAY_ENTRY:
+                ArrayEntry entry = (ArrayEntry) term;
+                printVariable(entry.arrayName, entry.arrayId);
+                println("<symbol> [ </symbol>");
+                emitExpression(entry.index);
+                println("<symbol> ] </symbol>");
+                break;
+            case SUBROUTINE_CALL:
+                emitSubroutineCall((SubroutineCall) term);
+                break;
+            case UNARY_OPERATION:
+                println("<symbol> " + ((UnaryOperation) term).operator + " </symbol>");
+                emitTerm(((UnaryOperation) term).operand);
+                break;
+            case BINARY_OPERATION:
+                // only a pass that rewrote the tree puts an operation where a term goes
+                println("<symbol> ( </symbol>");
+                emitExpression(term);
+                println("<symbol> ) </symbol>");
+                break;
+            case PARENTHESES:
+                println("<symbol> ( </symbol>");
+                emitExpression(((Parentheses) term).expression);
+                println("<symbol> ) </symbol>");
+                break;
+        }
+
+        decreaseIndent();
+        println("</term>");
+    }
+
+    /**
+     * Prints a (possibly empty) comma-separated list of expressions.
+     */
+    public void emitExpressionList(List<Expression> expressions) {
+        println("<expressionList>");
+        increaseIndent();
+
+        for (int i = 0; i < expressions.size(); i++) {
+            if (i > 0) {
+                println("<symbol> , </symbol>");
+            }
+            emitExpression(expressions.get(i));
+        }
+
+        decreaseIndent();
+        println("</expressionList>");
+    }
+
+    private void emitSubroutineCall(SubroutineCall call) {
+        if (call.classOrVarName != null) {
+            Kind kind = symbolTable.kindOf(call.classOrVarNameId);
+            printIdentifier(call.classOrVarName, kind!= Kind.NONE?kind.toString().toLowerCase():"class",
+                    false, symbolTable.indexOf(call.classOrVarNameId), symbolTable.typeOf(call.classOrVarNameId));
+            println("<symbol> . </symbol>");
+        }
+
+        printIdentifier(call.subroutineName, "subroutine", false);
+        println("<symbol> ( </symbol>");
+        emitExpressionList(call.arguments);
+        println("<symbol> ) </symbol>");
+    }
+}